@@ -0,0 +1,86 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import org.infinispan.loaders.jpa.entity.Document;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.loaders.jpa.entity.Vehicle;
+import org.infinispan.loaders.jpa.entity.VehicleId;
+
+/**
+ * The entities of the store tests, benchmarked in turn: a small entity, an entity with a
+ * larger text column and an entity with an embedded identifier.
+ */
+public enum BenchmarkEntity {
+	USER(User.class) {
+		@Override
+		public Object key(int i) {
+			return "u_" + i;
+		}
+
+		@Override
+		public Object create(int i) {
+			User user = new User();
+			user.setUsername("u_" + i);
+			user.setFirstName("fn_" + i);
+			user.setLastName("ln_" + i);
+			user.setNote("Some notes " + i);
+			return user;
+		}
+	},
+	DOCUMENT(Document.class) {
+		@Override
+		public Object key(int i) {
+			return "d_" + i;
+		}
+
+		@Override
+		public Object create(int i) {
+			Document document = new Document();
+			document.setName("d_" + i);
+			document.setTitle("Title " + i);
+			document.setArticle(ARTICLE);
+			return document;
+		}
+	},
+	VEHICLE(Vehicle.class) {
+		@Override
+		public Object key(int i) {
+			return new VehicleId("CA", "p_" + i);
+		}
+
+		@Override
+		public Object create(int i) {
+			Vehicle vehicle = new Vehicle();
+			vehicle.setId(new VehicleId("CA", "p_" + i));
+			vehicle.setColor("c_" + i);
+			return vehicle;
+		}
+	};
+
+	private static final String ARTICLE;
+	static {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 200)
+			sb.append("Lorem ipsum dolor sit amet. ");
+		ARTICLE = sb.toString();
+	}
+
+	private final Class<?> entityClass;
+
+	private BenchmarkEntity(Class<?> entityClass) {
+		this.entityClass = entityClass;
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	/**
+	 * @return the key of the i-th entity
+	 */
+	public abstract Object key(int i);
+
+	/**
+	 * @return the i-th entity
+	 */
+	public abstract Object create(int i);
+}
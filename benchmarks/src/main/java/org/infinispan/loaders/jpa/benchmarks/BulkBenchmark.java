@@ -0,0 +1,96 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.io.UnclosableObjectInputStream;
+import org.infinispan.io.UnclosableObjectOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preloads, with and without a maximum number of entries, key loads and state transfer
+ * round trips of the whole table, at several table sizes. A round trip writes the table to
+ * a stream, clears it and reads it back from the stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkBenchmark extends StoreBenchmark {
+	private static final int MAX_ENTRIES = 100;
+
+	@Param({ "1000", "10000", "100000" })
+	public int tableSize;
+
+	@Override
+	protected int getTableSize() {
+		return tableSize;
+	}
+
+	@Benchmark
+	public Set<InternalCacheEntry> loadAll() throws Exception {
+		return store.loadAll();
+	}
+
+	@Benchmark
+	public Set<InternalCacheEntry> loadMaxEntries() throws Exception {
+		return store.load(MAX_ENTRIES);
+	}
+
+	@Benchmark
+	public Set<Object> loadAllKeys() throws Exception {
+		return store.loadAllKeys(null);
+	}
+
+	@Benchmark
+	public byte[] toStream() throws Exception {
+		return writeStream();
+	}
+
+	@Benchmark
+	public void streamRoundTrip() throws Exception {
+		byte[] bytes = writeStream();
+		store.clear();
+
+		StreamingMarshaller marshaller = getMarshaller();
+		ObjectInput oi = marshaller.startObjectInput(new ByteArrayInputStream(bytes), false);
+		try {
+			store.fromStream(new UnclosableObjectInputStream(oi));
+		} finally {
+			marshaller.finishObjectInput(oi);
+		}
+	}
+
+	private byte[] writeStream() throws Exception {
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutput oo = marshaller.startObjectOutput(out, false, 1024);
+		try {
+			store.toStream(new UnclosableObjectOutputStream(oo));
+		} finally {
+			marshaller.finishObjectOutput(oo);
+		}
+		return out.toByteArray();
+	}
+
+	private StreamingMarshaller getMarshaller() {
+		return cacheManager.getCache().getAdvancedCache().getComponentRegistry().getCacheMarshaller();
+	}
+}
@@ -0,0 +1,112 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.infinispan.loaders.jpa.JpaCacheStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-call work which the entity descriptor of the store resolves once at start: key
+ * validation against the id type, and the preparation of the query of the identifiers. Each
+ * is compared with the metamodel lookups and criteria queries the store used to build on
+ * every call. Run with <code>-prof gc</code> to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DescriptorBenchmark extends StoreBenchmark {
+
+	/**
+	 * Exposes the key validation of the store.
+	 */
+	static class ValidatingStore extends JpaCacheStore {
+		boolean validate(Object key) {
+			return isValidKeyType(key);
+		}
+	}
+
+	private Object validKey;
+	private Object invalidKey;
+	private String idsQuery;
+	private EntityManager em;
+
+	@Override
+	protected int getTableSize() {
+		return 0;
+	}
+
+	@Override
+	protected JpaCacheStore createStore() {
+		return new ValidatingStore();
+	}
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		validKey = entity.key(0);
+		invalidKey = Long.valueOf(0);
+		em = store.getEntityManagerFactory().createEntityManager();
+		EntityType<?> entityType = em.getMetamodel().entity(entity.getEntityClass());
+		SingularAttribute<?, ?> idAttribute = entityType.getId(entityType.getIdType().getJavaType());
+		idsQuery = "SELECT e." + idAttribute.getName() + " FROM " + entityType.getName() + " e";
+	}
+
+	@TearDown(Level.Trial)
+	public void closeEntityManager() {
+		em.close();
+	}
+
+	@Benchmark
+	public boolean validKey() {
+		return ((ValidatingStore) store).validate(validKey);
+	}
+
+	@Benchmark
+	public boolean invalidKey() {
+		return ((ValidatingStore) store).validate(invalidKey);
+	}
+
+	@Benchmark
+	public boolean validKeyFromMetamodel() {
+		return store.getEntityManagerFactory().getMetamodel().entity(entity.getEntityClass())
+				.getIdType().getJavaType().isAssignableFrom(validKey.getClass());
+	}
+
+	@Benchmark
+	public Query idsQuery() {
+		return em.createQuery(idsQuery);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Benchmark
+	public Query idsCriteriaQuery() {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+		Root root = cq.from(entity.getEntityClass());
+		SingularAttribute idAttribute = root.getModel().getId(root.getModel().getIdType().getJavaType());
+		cq.multiselect(root.get(idAttribute));
+		return em.createQuery(cq);
+	}
+}
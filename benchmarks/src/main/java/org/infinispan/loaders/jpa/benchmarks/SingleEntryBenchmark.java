@@ -0,0 +1,70 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.jpa.JpaCacheStoreConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads, stores and removes of a single entry. Loads either hit an entity of the table or
+ * miss, stores update an entity of the table, and every thread stores and removes its own
+ * entity, so that the table keeps its size. Run with <code>-prof gc</code> to compare the
+ * allocation rates with and without an entity manager pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SingleEntryBenchmark extends StoreBenchmark {
+
+	@Param({ "10000" })
+	public int tableSize;
+
+	@Param({ "0", "8" })
+	public int entityManagerPoolSize;
+
+	@Override
+	protected int getTableSize() {
+		return tableSize;
+	}
+
+	@Override
+	protected JpaCacheStoreConfig createConfig() {
+		JpaCacheStoreConfig config = super.createConfig();
+		config.setEntityManagerPoolSize(entityManagerPoolSize);
+		return config;
+	}
+
+	@Benchmark
+	public InternalCacheEntry loadHit(ThreadState thread) throws Exception {
+		return store.load(entity.key(thread.nextStored(tableSize)));
+	}
+
+	@Benchmark
+	public InternalCacheEntry loadMiss(ThreadState thread) throws Exception {
+		return store.load(entity.key(thread.ownKey));
+	}
+
+	@Benchmark
+	public void store(ThreadState thread) throws Exception {
+		store.store(entry(thread.nextStored(tableSize)));
+	}
+
+	@Benchmark
+	public boolean storeAndRemove(ThreadState thread) throws Exception {
+		store.store(entry(thread.ownKey));
+		return store.remove(entity.key(thread.ownKey));
+	}
+}
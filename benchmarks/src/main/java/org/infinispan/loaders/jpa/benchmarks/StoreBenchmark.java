@@ -0,0 +1,129 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.Cache;
+import org.infinispan.container.entries.ImmortalCacheEntry;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.jpa.JpaCacheStore;
+import org.infinispan.loaders.jpa.JpaCacheStoreConfig;
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Store;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.transaction.xa.GlobalTransaction;
+import org.infinispan.transaction.xa.TransactionFactory;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Starts a {@link JpaCacheStore} of the benchmarked entity against an in-memory H2 database,
+ * and fills its table with <code>tableSize</code> entities whose keys are
+ * <code>entity.key(0)</code> to <code>entity.key(tableSize - 1)</code>.
+ */
+@State(Scope.Benchmark)
+public abstract class StoreBenchmark {
+	public static final String PERSISTENCE_UNIT_NAME = "org.infinispan.loaders.jpa.benchmarks";
+
+	private static final int POPULATE_BATCH_SIZE = 1000;
+
+	@Param({ "USER", "DOCUMENT", "VEHICLE" })
+	public BenchmarkEntity entity;
+
+	protected EmbeddedCacheManager cacheManager;
+	protected JpaCacheStore store;
+	protected final TransactionFactory transactionFactory = new TransactionFactory();
+
+	/**
+	 * The state of each benchmark thread: its own keys, outside the ones of the table, and
+	 * a cursor over the keys of the table.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private static final AtomicInteger threads = new AtomicInteger();
+
+		/**
+		 * Negative, so that it never matches a key of the table.
+		 */
+		final int ownKey = -1 - threads.getAndIncrement();
+		private int next = ownKey * 7919;
+
+		/**
+		 * @return the index of the next key of the table, in an order which does not follow
+		 *         the identifiers
+		 */
+		int nextStored(int tableSize) {
+			next += 7919;
+			return (next & Integer.MAX_VALUE) % tableSize;
+		}
+	}
+
+	protected StoreBenchmark() {
+		transactionFactory.init(false, false, true, false);
+	}
+
+	/**
+	 * @return the number of entities stored before the benchmark runs
+	 */
+	protected abstract int getTableSize();
+
+	protected JpaCacheStoreConfig createConfig() {
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+		config.setPersistenceUnitName(PERSISTENCE_UNIT_NAME);
+		config.setEntityClass(entity.getEntityClass());
+		config.setPurgeSynchronously(true);
+		return config;
+	}
+
+	protected JpaCacheStore createStore() {
+		return new JpaCacheStore();
+	}
+
+	@Setup(Level.Trial)
+	public void startStore() throws Exception {
+		cacheManager = new DefaultCacheManager();
+		Cache<Object, Object> cache = cacheManager.getCache();
+		store = createStore();
+		store.init(createConfig(), cache, cache.getAdvancedCache().getComponentRegistry().getCacheMarshaller());
+		store.start();
+		store.clear();
+		populate(store, 0, getTableSize());
+	}
+
+	@TearDown(Level.Trial)
+	public void stopStore() throws Exception {
+		try {
+			store.clear();
+			store.stop();
+		} finally {
+			cacheManager.stop();
+		}
+	}
+
+	/**
+	 * Stores the entities <code>from</code> to <code>to - 1</code>, one transaction per
+	 * {@value #POPULATE_BATCH_SIZE} entities.
+	 */
+	protected void populate(JpaCacheStore store, int from, int to) throws Exception {
+		for (int i = from; i < to; i += POPULATE_BATCH_SIZE) {
+			List<Modification> mods = new ArrayList<Modification>(POPULATE_BATCH_SIZE);
+			for (int j = i; j < Math.min(i + POPULATE_BATCH_SIZE, to); j++)
+				mods.add(new Store(entry(j)));
+			store.prepare(mods, newTransaction(), true);
+		}
+	}
+
+	protected InternalCacheEntry entry(int i) {
+		return new ImmortalCacheEntry(entity.key(i), entity.create(i));
+	}
+
+	protected GlobalTransaction newTransaction() {
+		return transactionFactory.newGlobalTransaction(null, false);
+	}
+}
@@ -0,0 +1,65 @@
+package org.infinispan.loaders.jpa.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Remove;
+import org.infinispan.loaders.modifications.Store;
+import org.infinispan.transaction.xa.GlobalTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transactions of <code>modifications</code> stores of entities of the table, with one
+ * remove of an entity of the benchmark thread, applied either by a one-phase prepare or by
+ * a prepare followed by a commit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionBenchmark extends StoreBenchmark {
+
+	@Param({ "10000" })
+	public int tableSize;
+
+	@Param({ "1", "10", "100" })
+	public int modifications;
+
+	@Override
+	protected int getTableSize() {
+		return tableSize;
+	}
+
+	private List<Modification> modifications(ThreadState thread) {
+		List<Modification> mods = new ArrayList<Modification>(modifications + 1);
+		for (int i = 0; i < modifications; i++)
+			mods.add(new Store(entry(thread.nextStored(tableSize))));
+		mods.add(new Remove(entity.key(thread.ownKey)));
+		return mods;
+	}
+
+	@Benchmark
+	public void onePhasePrepare(ThreadState thread) throws Exception {
+		store.prepare(modifications(thread), newTransaction(), true);
+	}
+
+	@Benchmark
+	public void prepareAndCommit(ThreadState thread) throws Exception {
+		GlobalTransaction tx = newTransaction();
+		store.prepare(modifications(thread), tx, false);
+		store.commit(tx);
+	}
+}
@@ -1,87 +1,198 @@
 package org.infinispan.loaders.jpa;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
 
 import org.infinispan.util.logging.Log;
 import org.infinispan.util.logging.LogFactory;
 
 /**
- * 
+ * Entity manager factories shared by the stores of a cache manager, one per persistence unit,
+ * closed when the last store using them stops. There is no global lock: the factories of
+ * distinct persistence units bootstrap in parallel, and the stores needing a factory which is
+ * bootstrapping wait for it without blocking the stores of other persistence units.
+ *
  * @author <a href="mailto:rtsang@redhat.com">Ray Tsang</a>
  *
  */
 public class EntityManagerFactoryRegistry {
    private static final Log log = LogFactory.getLog(EntityManagerFactoryRegistry.class);
-   
-	private Map<String, EntityManagerFactory> registry = new HashMap<String, EntityManagerFactory>();
-	public Map<String, AtomicInteger> usage =  new HashMap<String, AtomicInteger>();
-	
-	public EntityManagerFactory getEntityManagerFactory(String persistenceUnitName) {
-		synchronized (this) {
-			if (!registry.containsKey(persistenceUnitName)) {
-				EntityManagerFactory emf = Persistence.createEntityManagerFactory(persistenceUnitName);
-				registry.put(persistenceUnitName, emf);
-				usage.put(persistenceUnitName, new AtomicInteger(1));
-				return emf;
-			} else {
-			   incrementUsage(persistenceUnitName);
-			   return registry.get(persistenceUnitName);
+
+	private final ConcurrentMap<String, Registration> registry = new ConcurrentHashMap<String, Registration>();
+	private final AtomicLong bootstrapNanos = new AtomicLong();
+	private final AtomicInteger bootstraps = new AtomicInteger();
+
+	/**
+	 * The factory of a persistence unit, bootstrapped by the first store needing it, and the
+	 * number of stores using it. Once the usage drops to 0, the registration is removed and
+	 * can never be used again.
+	 */
+	private final class Registration {
+		final String persistenceUnitName;
+		final FutureTask<EntityManagerFactory> factory;
+		final AtomicInteger usage = new AtomicInteger(1);
+		volatile long bootstrapNanos = -1;
+
+		Registration(String persistenceUnitName) {
+			this.persistenceUnitName = persistenceUnitName;
+			this.factory = new FutureTask<EntityManagerFactory>(new Callable<EntityManagerFactory>() {
+				@Override
+				public EntityManagerFactory call() {
+					return bootstrap();
+				}
+			});
+		}
+
+		EntityManagerFactory bootstrap() {
+			long start = System.nanoTime();
+			EntityManagerFactory emf = Persistence.createEntityManagerFactory(persistenceUnitName);
+			bootstrapNanos = System.nanoTime() - start;
+			EntityManagerFactoryRegistry.this.bootstrapNanos.addAndGet(bootstrapNanos);
+			bootstraps.incrementAndGet();
+			log.debugf("Bootstrapped the entity manager factory of Persistence Unit [%s] in %d ms",
+					persistenceUnitName, TimeUnit.NANOSECONDS.toMillis(bootstrapNanos));
+			return emf;
+		}
+
+		/**
+		 * @return whether the registration was still in use, and now counts one more user
+		 */
+		boolean acquire() {
+			int count;
+			do {
+				count = usage.get();
+				if (count == 0)
+					return false;
+			} while (!usage.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		EntityManagerFactory get() {
+			try {
+				return factory.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new PersistenceException("Interrupted while waiting for Persistence Unit [" + persistenceUnitName + "] to bootstrap", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				if (e.getCause() instanceof Error)
+					throw (Error) e.getCause();
+				throw new PersistenceException(e.getCause());
 			}
 		}
-	}
-	
-	public void closeEntityManagerFactory(String persistenceUnitName) {
-		synchronized (this) {
-			if (!registry.containsKey(persistenceUnitName)) {
+
+		void close() {
+			// a failed or interrupted bootstrap left no factory to close
+			if (!factory.isDone())
+				return;
+			EntityManagerFactory emf;
+			try {
+				emf = factory.get();
+			} catch (Exception e) {
 				return;
 			}
-			
-			int count = decrementUsage(persistenceUnitName);
-			if (count == 0) {
-				EntityManagerFactory emf = registry.remove(persistenceUnitName);
-				try {
-				   if (emf.isOpen()) emf.close();
-				} catch (IllegalStateException e) {
-				   log.warn("Entity manager factory was already closed: " + persistenceUnitName);
-				}
+
+			try {
+				if (emf.isOpen()) emf.close();
+			} catch (IllegalStateException e) {
+				log.warn("Entity manager factory was already closed: " + persistenceUnitName);
 			}
 		}
 	}
-	
-	public void closeAll() {
-	   synchronized (this) {
-   	   for (Entry<String, EntityManagerFactory> entry : registry.entrySet()) {
-   	      try {
-   	         if (entry.getValue().isOpen())
-   	            entry.getValue().close();
-   	      } catch (IllegalStateException e) {
-   	         log.warn("Entity manager factory was already closed: " + entry.getKey());
-   	      }
-   	   }
-	   }
+
+	/**
+	 * Returns the factory of the persistence unit, bootstrapping it in the calling thread if
+	 * no store uses it yet, and counts one more user of it. Every successful call must be
+	 * followed by a call to {@link #closeEntityManagerFactory(String)}.
+	 *
+	 * @throws PersistenceException if the persistence unit could not be bootstrapped
+	 */
+	public EntityManagerFactory getEntityManagerFactory(String persistenceUnitName) {
+		while (true) {
+			Registration registration = registry.get(persistenceUnitName);
+			if (registration == null) {
+				registration = new Registration(persistenceUnitName);
+				if (registry.putIfAbsent(persistenceUnitName, registration) != null)
+					continue;
+				registration.factory.run();
+			} else if (!registration.acquire()) {
+				// being closed by the last store using it, which removes it
+				registry.remove(persistenceUnitName, registration);
+				continue;
+			}
+
+			try {
+				return registration.get();
+			} catch (RuntimeException e) {
+				// a failed bootstrap is retried by the next store
+				release(registration);
+				throw e;
+			} catch (Error e) {
+				release(registration);
+				throw e;
+			}
+		}
 	}
-	
-	protected int incrementUsage(String persistenceUnitName) {
-		synchronized (this) {
-			return usage.get(persistenceUnitName).incrementAndGet();
+
+	public void closeEntityManagerFactory(String persistenceUnitName) {
+		Registration registration = registry.get(persistenceUnitName);
+		if (registration != null)
+			release(registration);
+	}
+
+	private void release(Registration registration) {
+		if (registration.usage.decrementAndGet() == 0) {
+			registry.remove(registration.persistenceUnitName, registration);
+			registration.close();
 		}
 	}
-	
-	protected int decrementUsage(String persistenceUnitName) {
-		synchronized (this) {
-			return usage.get(persistenceUnitName).decrementAndGet();
+
+	public void closeAll() {
+		for (Entry<String, Registration> entry : registry.entrySet()) {
+			if (registry.remove(entry.getKey(), entry.getValue()))
+				entry.getValue().close();
 		}
 	}
-	
+
+	/**
+	 * @return the time taken to bootstrap the current factory of the persistence unit, or -1
+	 *         if it is not bootstrapped
+	 */
+	public long getBootstrapTime(String persistenceUnitName, TimeUnit unit) {
+		Registration registration = registry.get(persistenceUnitName);
+		if (registration == null || registration.bootstrapNanos < 0)
+			return -1;
+		return unit.convert(registration.bootstrapNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the time taken by all the bootstraps so far, which may overlap
+	 */
+	public long getTotalBootstrapTime(TimeUnit unit) {
+		return unit.convert(bootstrapNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the number of entity manager factories bootstrapped so far
+	 */
+	public int getBootstrapCount() {
+		return bootstraps.get();
+	}
+
 	protected int getUsage(String persistenceUnitName) {
-		synchronized (this) {
-			return usage.get(persistenceUnitName).intValue();
-		}
+		Registration registration = registry.get(persistenceUnitName);
+		return registration == null ? 0 : registration.usage.get();
 	}
 }
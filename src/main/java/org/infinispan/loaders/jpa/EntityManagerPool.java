@@ -0,0 +1,142 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.infinispan.util.logging.Log;
+import org.infinispan.util.logging.LogFactory;
+
+/**
+ * Bounded pool of idle entity managers, so that every operation of a {@link JpaCacheStore}
+ * does not allocate a new persistence context. Entity managers are cleared when released,
+ * so that no entity is shared between operations, and closed instead of being pooled after
+ * <code>maxUses</code> operations, if positive, or when the pool is full. Entity managers
+ * whose operation failed are discarded rather than released.
+ */
+final class EntityManagerPool {
+	private static final Log log = LogFactory.getLog(EntityManagerPool.class);
+
+	private final EntityManagerFactory emf;
+	private final int maxUses;
+	private final BlockingQueue<EntityManager> idle;
+	/**
+	 * Operations executed by each entity manager of the pool, including the borrowed ones.
+	 * Entity manager implementations do not override equals(), so they are compared by identity.
+	 */
+	private final ConcurrentMap<EntityManager, Integer> uses = new ConcurrentHashMap<EntityManager, Integer>();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private volatile boolean closed;
+
+	EntityManagerPool(EntityManagerFactory emf, int size, int maxUses) {
+		this.emf = emf;
+		this.maxUses = maxUses;
+		this.idle = new ArrayBlockingQueue<EntityManager>(size);
+	}
+
+	EntityManager acquire() {
+		EntityManager em = idle.poll();
+		if (em != null) {
+			reused.incrementAndGet();
+			return em;
+		}
+
+		created.incrementAndGet();
+		em = emf.createEntityManager();
+		uses.put(em, 0);
+		return em;
+	}
+
+	/**
+	 * Returns an entity manager whose operation completed to the pool, unless it was
+	 * discarded since.
+	 */
+	void release(EntityManager em) {
+		if (!em.isOpen()) {
+			uses.remove(em);
+			return;
+		}
+
+		try {
+			if (em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			em.clear();
+		} catch (RuntimeException e) {
+			discard(em);
+			throw e;
+		}
+
+		Integer count = uses.get(em);
+		int n = count == null ? 1 : count + 1;
+		if (closed || count == null || (maxUses > 0 && n >= maxUses)) {
+			discard(em);
+			return;
+		}
+		// counted before it is offered, since another thread may borrow it right away
+		uses.put(em, n);
+		if (!idle.offer(em)) {
+			discard(em);
+			return;
+		}
+
+		// the pool may have been closed while the entity manager was being returned
+		if (closed && idle.remove(em))
+			discard(em);
+	}
+
+	/**
+	 * Closes the idle entity managers. Borrowed ones are closed when released.
+	 */
+	void close() {
+		closed = true;
+		EntityManager em;
+		while ((em = idle.poll()) != null)
+			discard(em);
+	}
+
+	/**
+	 * Closes an entity manager whose operation failed instead of returning it to the pool,
+	 * since its persistence context or connection may be unusable. Releasing it afterwards
+	 * does nothing.
+	 */
+	void discard(EntityManager em) {
+		uses.remove(em);
+		close(em);
+	}
+
+	/**
+	 * Closes the entity manager, rolling back its transaction first if still active.
+	 */
+	static void close(EntityManager em) {
+		if (!em.isOpen())
+			return;
+		try {
+			if (em.getTransaction().isActive())
+				em.getTransaction().rollback();
+		} catch (RuntimeException e) {
+			log.debug("Unable to roll back the transaction of a discarded entity manager", e);
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * @return the number of entity managers created by the pool
+	 */
+	long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return the number of times an idle entity manager was reused
+	 */
+	long getReused() {
+		return reused.get();
+	}
+}
@@ -0,0 +1,15 @@
+package org.infinispan.loaders.jpa;
+
+/**
+ * The default {@link ShardFunction}, spreading the keys evenly over the shards according to
+ * their hash code, which must be the same in every JVM. The shard is chosen from the low bits
+ * of the mixed hash code, while the lock stripe of a key is chosen from its high bits, so that
+ * the keys of a shard still spread over all the lock stripes of the shard.
+ */
+public class HashShardFunction implements ShardFunction {
+
+	@Override
+	public int getShard(Object key, int shardCount) {
+		return (LockStripeStatistics.mix(key.hashCode()) & 0x7fffffff) % shardCount;
+	}
+}
@@ -3,40 +3,68 @@ package org.infinispan.loaders.jpa;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
-import javax.persistence.GeneratedValue;
+import javax.persistence.FlushModeType;
 import javax.persistence.PersistenceException;
-import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Query;
-import javax.persistence.Tuple;
-import javax.persistence.TypedQuery;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Root;
-import javax.persistence.metamodel.IdentifiableType;
-import javax.persistence.metamodel.ManagedType;
-import javax.persistence.metamodel.SingularAttribute;
-import javax.persistence.metamodel.Type;
 
 import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
 import org.infinispan.container.entries.ImmortalCacheEntry;
 import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.container.entries.MortalCacheEntry;
+import org.infinispan.container.entries.TransientCacheEntry;
+import org.infinispan.container.entries.TransientMortalCacheEntry;
+import org.infinispan.configuration.global.GlobalConfiguration;
+import org.infinispan.jmx.JmxUtil;
 import org.infinispan.loaders.CacheLoaderConfig;
 import org.infinispan.loaders.CacheLoaderException;
 import org.infinispan.loaders.CacheLoaderMetadata;
 import org.infinispan.loaders.LockSupportCacheStore;
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Remove;
+import org.infinispan.loaders.modifications.Store;
 import org.infinispan.commons.marshall.StreamingMarshaller;
 import org.infinispan.commons.util.InfinispanCollections;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.loaders.jpa.JpaCacheStoreStatistics.Operation;
+import org.infinispan.util.logging.Log;
+import org.infinispan.util.logging.LogFactory;
 
 /**
  *
@@ -44,13 +72,119 @@ import org.infinispan.commons.util.InfinispanCollections;
  *
  */
 @CacheLoaderMetadata(configurationClass = JpaCacheStoreConfig.class)
-public class JpaCacheStore extends LockSupportCacheStore<Integer> {
+public class JpaCacheStore extends LockSupportCacheStore<LockingKey> {
+	private static final Log log = LogFactory.getLog(JpaCacheStore.class);
+
 	private JpaCacheStoreConfig config;
 	private AdvancedCache<?, ?> cache;
 	private EntityManagerFactory emf;
 	private EntityManagerFactoryRegistry emfRegistry;
-
-	private final static byte BINARY_STREAM_DELIMITER = 100;
+	private JpaEntityDescriptor descriptor;
+	private Map<String, Object> readOnlyHints;
+	private UpsertStatement upsert;
+	private LockStripeStatistics lockStatistics;
+	private volatile KeyBloomFilter keyFilter;
+	private EntityManagerPool entityManagerPool;
+	private final AtomicLong entityManagersCreated = new AtomicLong();
+	private JpaCacheStoreStatistics statistics;
+	private MBeanServer mBeanServer;
+	private ObjectName statisticsObjectName;
+
+	/**
+	 * The startup running in the background when the store starts asynchronously, until an
+	 * operation sees it completed. The fields it initializes are only read once it completed.
+	 */
+	private volatile FutureTask<Void> startup;
+	/**
+	 * Set once the store is stopping, so that a startup still running in the background skips
+	 * the steps it has not begun yet.
+	 */
+	private volatile boolean stopping;
+
+	/**
+	 * The persistence unit of this store, if it is a shard of a {@link ShardedJpaCacheStore}.
+	 */
+	private String shardName;
+
+	/**
+	 * The read replica, if configured and bootstrapped. The loads of keys written within the
+	 * read-your-writes window, and of all the keys after a clear within the window, go to
+	 * the primary persistence unit, as do all loads for a while after a replica read failed.
+	 */
+	private EntityManagerFactory readEmf;
+	private EntityManagerPool readEntityManagerPool;
+	private RecentWrites recentWrites;
+	private volatile boolean replicaFailed;
+	private volatile long replicaFailedAt;
+	private final AtomicLong replicaReads = new AtomicLong();
+	private final AtomicLong replicaFailures = new AtomicLong();
+
+	/**
+	 * Runs the asynchronous operations, created on the first one unless set by the
+	 * application. At most <code>asyncMaxInFlight</code> operations are submitted and not yet
+	 * completed.
+	 */
+	private ExecutorService asyncExecutor;
+	private boolean asyncExecutorOwned;
+	private Semaphore asyncPermits;
+
+	/**
+	 * The modifications queued by write-behind, written to the database by a flusher thread.
+	 * A queued modification is only removed once it is committed, and only while no
+	 * modification of its key can happen: the flusher holds the write locks of the keys it
+	 * writes, and bulk reads flush the whole queue under the global lock.
+	 */
+	private WriteBehindQueue writeBehindQueue;
+	private ScheduledExecutorService writeBehindExecutor;
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final Runnable writeBehindFlush = new Runnable() {
+		@Override
+		public void run() {
+			flushRequested.set(false);
+			try {
+				flushWriteBehindQueue();
+			} catch (Throwable t) {
+				log.warnf(t, "Unable to write the %d queued modifications of entity %s, retrying in %d ms",
+						writeBehindQueue.getPendingCount(), descriptor.getEntityName(), config.getWriteBehindInterval());
+			}
+		}
+	};
+
+	/**
+	 * Loads being executed, by key. Threads loading a key which is already being loaded wait
+	 * for the result of that load instead of querying the database again. Every loading
+	 * thread holds the read lock of the key, so no store or remove of the key can happen
+	 * while a load is in flight and its result is never stale.
+	 */
+	private final ConcurrentMap<Object, FutureTask<InternalCacheEntry>> loadsInFlight = new ConcurrentHashMap<Object, FutureTask<InternalCacheEntry>>();
+	private final AtomicLong coalescedLoads = new AtomicLong();
+
+	final static byte BINARY_STREAM_DELIMITER = 100;
+
+	private final static String DELETE_METADATA = "DELETE FROM MetadataEntity m WHERE m.entityName = :entityName";
+	private final static String DELETE_METADATA_BY_IDS = "DELETE FROM MetadataEntity m WHERE m.id IN (:ids)";
+	private final static String SELECT_METADATA_BY_IDS = "SELECT m FROM MetadataEntity m WHERE m.id IN (:ids)";
+	private final static String SELECT_EXPIRED_KEYS = "SELECT m.keyBytes FROM MetadataEntity m WHERE m.entityName = :entityName AND m.expiration >= 0 AND m.expiration <= :now";
+	private final static String SELECT_EXPIRED_METADATA = "SELECT m FROM MetadataEntity m WHERE m.entityName = :entityName AND m.expiration >= 0 AND m.expiration <= :now ORDER BY m.expiration";
+
+	/**
+	 * The maximum number of expired keys excluded in the query of each page when preloading.
+	 * Beyond that, expired entities are loaded and filtered out of the page.
+	 */
+	private final static int MAX_EXCLUDED_KEYS = 1000;
+
+	/**
+	 * The key filter is sized for this many times the number of stored entities, so that the
+	 * table can grow before the false positive rate degrades.
+	 */
+	private final static int KEY_FILTER_HEADROOM = 2;
+	private final static long MIN_KEY_FILTER_KEYS = 1024;
+
+	/**
+	 * How long loads go to the primary persistence unit after a read from the replica failed.
+	 */
+	private final static long REPLICA_RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(30);
 
 	@Override
 	public void init(CacheLoaderConfig config, Cache<?, ?> cache,
@@ -64,346 +198,2797 @@ public class JpaCacheStore extends LockSupportCacheStore<Integer> {
 	@Override
 	public void start() throws CacheLoaderException {
 		super.start();
-
-		try {
-			this.emf = this.emfRegistry.getEntityManagerFactory(config.getPersistenceUnitName());
-		} catch (PersistenceException e) {
-			throw new JpaCacheLoaderException("Persistence Unit [" + this.config.getPersistenceUnitName() + "] not found", e);
+		this.stopping = false;
+
+		this.lockStatistics = new LockStripeStatistics(config.getLockConcurrencyLevel());
+		this.statistics = new JpaCacheStoreStatistics(this);
+		this.asyncPermits = new Semaphore(config.getAsyncMaxInFlight());
+		synchronized (this) {
+			// shut down by a previous stop
+			if (asyncExecutorOwned)
+				this.asyncExecutor = null;
 		}
 
-		ManagedType<?> mt;
-
-		try {
-			mt = emf.getMetamodel()
-				.entity(this.config.getEntityClass());
-		} catch (IllegalArgumentException e) {
-			throw new JpaCacheLoaderException("Entity class [" + this.config.getEntityClassName() + " specified in configuration is not recognized by the EntityManagerFactory with Persistence Unit [" + this.config.getPersistenceUnitName() + "]", e);
+		validateConfig();
+		if (!config.isAsyncStart()) {
+			startStore();
+			return;
 		}
 
-		if (!(mt instanceof IdentifiableType)) {
-			throw new JpaCacheLoaderException(
-					"Entity class must have one and only one identifier (@Id or @EmbeddedId)");
-		}
-		IdentifiableType<?> it = (IdentifiableType<?>) mt;
-		if (!it.hasSingleIdAttribute()) {
-			throw new JpaCacheLoaderException(
-					"Entity class has more than one identifier.  It must have only one identifier.");
-		}
+		this.startup = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (stopping)
+					return null;
 
-		Type<?> idType = it.getIdType();
-		Class<?> idJavaType = idType.getJavaType();
+				long start = System.nanoTime();
+				try {
+					startStore();
+				} catch (Exception e) {
+					log.warnf(e, "Unable to start the store of entity class %s", config.getEntityClassName());
+					throw e;
+				}
+				if (stopping)
+					return null;
+				try {
+					warmUp();
+				} catch (RuntimeException e) {
+					log.warnf(e, "Unable to warm up the store of entity %s", descriptor.getEntityName());
+				}
+				log.debugf("Started the store of entity %s in the background in %d ms",
+						descriptor.getEntityName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				return null;
+			}
+		});
+		Thread thread = new Thread(startup, "JpaCacheStore-Startup-" + config.getEntityClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
 
-		if (idJavaType.isAnnotationPresent(GeneratedValue.class)) {
-			throw new JpaCacheLoaderException(
-					"Entity class has one identifier, but it must not have @GeneratedValue annotation");
-		}
+	/**
+	 * Names the statistics MBean of this store after its persistence unit, as one of the shards
+	 * of a {@link ShardedJpaCacheStore}.
+	 */
+	void setShardName(String shardName) {
+		this.shardName = shardName;
+	}
 
+	/**
+	 * Acquires the global lock of this store for an operation of a {@link ShardedJpaCacheStore}
+	 * spanning all its shards, such as streaming.
+	 */
+	void acquireShardLock(boolean exclusive) throws CacheLoaderException {
+		awaitStartup();
+		if (!acquireGlobalLock(exclusive))
+			throw new JpaCacheLoaderException("Unable to acquire the global lock of shard " + shardName);
 	}
 
-	public EntityManagerFactory getEntityManagerFactory() {
-		return emf;
+	void releaseShardLock(boolean exclusive) {
+		releaseGlobalLock(exclusive);
 	}
 
-	@Override
-	public void stop() throws CacheLoaderException {
+	/**
+	 * Checks the configuration which can be checked without bootstrapping the persistence
+	 * unit, so that a store starting in the background fails early on obvious mistakes.
+	 */
+	private void validateConfig() throws CacheLoaderException {
+		if (config.getPersistenceUnitName() == null)
+			throw new JpaCacheLoaderException("No Persistence Unit configured");
+		if (config.getEntityClass() == null)
+			throw new JpaCacheLoaderException("No entity class configured");
+		if (config.getShardPersistenceUnitNames() != null)
+			throw new JpaCacheLoaderException("Shard persistence units are configured, use " + ShardedJpaCacheStore.class.getName());
+		if (!config.getEntityClass().isAnnotationPresent(Entity.class))
+			throw new JpaCacheLoaderException("Entity class [" + config.getEntityClassName() + "] is not annotated with @Entity");
+		if (config.getWriteBehindThreshold() < 1)
+			throw new JpaCacheLoaderException("writeBehindThreshold must be at least 1, was " + config.getWriteBehindThreshold());
+		if (config.getWriteBehindMaxQueueSize() < 1)
+			throw new JpaCacheLoaderException("writeBehindMaxQueueSize must be at least 1, was " + config.getWriteBehindMaxQueueSize());
+		if (config.getWriteBehindMaxAttempts() < 1)
+			throw new JpaCacheLoaderException("writeBehindMaxAttempts must be at least 1, was " + config.getWriteBehindMaxAttempts());
+	}
+
+	/**
+	 * Waits for the startup running in the background, if any, for at most
+	 * <code>startupTimeout</code> milliseconds.
+	 */
+	private void awaitStartup() throws CacheLoaderException {
+		FutureTask<Void> task = startup;
+		if (task == null)
+			return;
+
 		try {
-		   this.emfRegistry.closeEntityManagerFactory(config.getPersistenceUnitName());
-			super.stop();
-		} catch (Throwable t) {
-			throw new CacheLoaderException(
-					"Exceptions occurred while stopping store", t);
+			task.get(config.getStartupTimeout(), TimeUnit.MILLISECONDS);
+			startup = null;
+		} catch (TimeoutException e) {
+			throw new JpaCacheLoaderException("The store of entity class [" + config.getEntityClassName() + "] did not start within " + config.getStartupTimeout() + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CacheLoaderException("Interrupted while waiting for the store to start", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CacheLoaderException)
+				throw (CacheLoaderException) e.getCause();
+			throw new CacheLoaderException("Exception caught while starting the store", e.getCause());
 		}
 	}
 
-	@Override
-	public Class<? extends CacheLoaderConfig> getConfigurationClass() {
-		return JpaCacheStoreConfig.class;
-	}
+	/**
+	 * Waits for the startup running in the background, if any, however long it takes, so that
+	 * the entity manager factory, write-behind thread and MBean it sets up are released by
+	 * {@link #stop()} instead of being leaked.
+	 */
+	private void awaitStartupCompletion() throws CacheLoaderException {
+		FutureTask<Void> task = startup;
+		if (task == null)
+			return;
 
-	protected boolean isValidKeyType(Object key) {
-		return emf.getMetamodel().entity(config.getEntityClass()).getIdType().getJavaType().isAssignableFrom(key.getClass());
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CacheLoaderException("Interrupted while waiting for the store to start", e);
+		} catch (ExecutionException e) {
+			// already logged by the startup
+			log.debugf("The store of entity class %s did not start", config.getEntityClassName());
+		}
+		startup = null;
 	}
 
-	@Override
-	protected void clearLockSafe() throws CacheLoaderException {
-		EntityManager em = emf.createEntityManager();
-		EntityTransaction txn = em.getTransaction();
+	/**
+	 * Bootstraps the entity manager factory and sets up the store. The entity manager factory
+	 * is released if the setup fails.
+	 */
+	private void startStore() throws CacheLoaderException {
+		try {
+			this.emf = this.emfRegistry.getEntityManagerFactory(config.getPersistenceUnitName());
+		} catch (PersistenceException e) {
+			throw new JpaCacheLoaderException("Persistence Unit [" + this.config.getPersistenceUnitName() + "] not found", e);
+		}
 
 		try {
-			txn.begin();
+			setUp();
+		} catch (CacheLoaderException e) {
+			releaseEntityManagerFactory();
+			throw e;
+		} catch (RuntimeException e) {
+			releaseEntityManagerFactory();
+			throw e;
+		}
 
-			String name = em.getMetamodel().entity(config.getEntityClass())
-					.getName();
-			Query query = em.createQuery("DELETE FROM " + name);
-			query.executeUpdate();
+		if (config.getReadPersistenceUnitName() != null)
+			startReadReplica();
+	}
 
-			txn.commit();
-		} catch (Exception e) {
-			if (txn != null && txn.isActive())
-				txn.rollback();
-			throw new CacheLoaderException("Exception caught in clear()", e);
-		} finally {
-			em.close();
+	/**
+	 * Bootstraps the entity manager factory of the read replica. The store starts without
+	 * it, loading everything from the primary persistence unit, if it cannot be bootstrapped.
+	 */
+	private void startReadReplica() {
+		this.recentWrites = new RecentWrites(timeService, config.getReadYourWritesWindow(), TimeUnit.MILLISECONDS);
+		try {
+			this.readEmf = this.emfRegistry.getEntityManagerFactory(config.getReadPersistenceUnitName());
+		} catch (PersistenceException e) {
+			log.warnf(e, "Read replica Persistence Unit [%s] could not be bootstrapped, loading from Persistence Unit [%s] instead",
+					config.getReadPersistenceUnitName(), config.getPersistenceUnitName());
+			return;
 		}
 
+		if (config.getEntityManagerPoolSize() > 0) {
+			this.readEntityManagerPool = new EntityManagerPool(readEmf, config.getEntityManagerPoolSize(),
+					config.getEntityManagerMaxUses());
+		}
 	}
 
-	@Override
-	protected Set<InternalCacheEntry> loadAllLockSafe()
-			throws CacheLoaderException {
-		return loadLockSafe(-1);
+	private void stopReadReplica() {
+		if (readEmf == null)
+			return;
+		if (readEntityManagerPool != null)
+			readEntityManagerPool.close();
+		this.emfRegistry.closeEntityManagerFactory(config.getReadPersistenceUnitName());
+		this.readEntityManagerPool = null;
+		this.readEmf = null;
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	@Override
-	protected Set<InternalCacheEntry> loadLockSafe(int maxEntries)
-			throws CacheLoaderException {
-
-	   if (maxEntries == 0)
-	      return InfinispanCollections.emptySet();
-
-		EntityManager em = emf.createEntityManager();
+	private void releaseEntityManagerFactory() {
+		if (entityManagerPool != null)
+			entityManagerPool.close();
+		this.emfRegistry.closeEntityManagerFactory(config.getPersistenceUnitName());
+		this.entityManagerPool = null;
+		this.emf = null;
+	}
 
+	/**
+	 * Opens a connection and compiles the queries of the common operations, so that the
+	 * first operations do not pay for it.
+	 */
+	private void warmUp() {
+		EntityManager em = acquireEntityManager();
 		try {
-			CriteriaBuilder cb = em.getCriteriaBuilder();
-			CriteriaQuery cq = cb.createQuery(config.getEntityClass());
-			cq.select(cq.from(config.getEntityClass()));
+			EntityTransaction txn = em.getTransaction();
+			txn.begin();
+			try {
+				em.createQuery(descriptor.getSelectByIdsQuery(1));
+				em.createQuery(descriptor.getIdsPageQuery(true, 0));
+				if (descriptor.isBulkDeleteSupported())
+					em.createQuery(descriptor.getDeleteByIdsQuery(1));
+			} finally {
+				txn.rollback();
+			}
+		} catch (RuntimeException e) {
+			discardEntityManager(em);
+			throw e;
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
 
-			TypedQuery q = em.createQuery(cq);
-			if (maxEntries > 0)
-			   q.setMaxResults(maxEntries);
+	private void setUp() throws CacheLoaderException {
+		this.descriptor = JpaEntityDescriptor.create(emf, config);
+		this.readOnlyHints = readOnlyHints(emf);
 
-			List list = q.getResultList();
+		if (config.getEntityManagerPoolSize() > 0) {
+			this.entityManagerPool = new EntityManagerPool(emf, config.getEntityManagerPoolSize(),
+					config.getEntityManagerMaxUses());
+		}
 
-			if (list == null || list.isEmpty()) {
-				return Collections.emptySet();
+		if (config.isStoreMetadata()) {
+			try {
+				emf.getMetamodel().entity(MetadataEntity.class);
+			} catch (IllegalArgumentException e) {
+				throw new JpaCacheLoaderException("Storing metadata requires " + MetadataEntity.class.getName() + " to be listed in Persistence Unit [" + config.getPersistenceUnitName() + "]", e);
 			}
+		}
 
-			PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+		if (config.isNativeUpsert()) {
+			this.upsert = UpsertStatement.create(emf, descriptor);
+		}
 
-			Set<InternalCacheEntry> result = new HashSet<InternalCacheEntry>(
-					list.size());
-			for (Object o : list) {
-				Object key = util.getIdentifier(o);
-				result.add(new ImmortalCacheEntry(key, o));
-			}
+		if (config.isKeyFilter()) {
+			if (cache.getCacheConfiguration().loaders().shared())
+				throw new JpaCacheLoaderException("The key filter of the store of entity " + descriptor.getEntityName() + " cannot be enabled on a shared store, since it would ignore the entities stored by other nodes");
+			buildKeyFilter();
+		}
 
-			return result;
-		} finally {
-			em.close();
+		if (config.getWriteBehindInterval() > 0) {
+			this.writeBehindQueue = new WriteBehindQueue(config.getWriteBehindMaxQueueSize());
+			final String threadName = "JpaCacheStore-WriteBehind-" + descriptor.getEntityName();
+			this.writeBehindExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			writeBehindExecutor.scheduleWithFixedDelay(writeBehindFlush, config.getWriteBehindInterval(),
+					config.getWriteBehindInterval(), TimeUnit.MILLISECONDS);
 		}
-	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	@Override
-	protected Set<Object> loadAllKeysLockSafe(Set<Object> keysToExclude)
-			throws CacheLoaderException {
+		registerStatistics();
+	}
 
-		EntityManager em = emf.createEntityManager();
+	/**
+	 * Registers the statistics MBean if JMX statistics are enabled for the cache manager. The
+	 * store still works if the registration fails, e.g. because another store of the same
+	 * cache and entity is registered already.
+	 */
+	private void registerStatistics() {
+		GlobalConfiguration globalConfiguration = cache.getCacheManager().getCacheManagerConfiguration();
+		if (!globalConfiguration.globalJmxStatistics().enabled())
+			return;
 
 		try {
-			CriteriaBuilder cb = em.getCriteriaBuilder();
-			CriteriaQuery<Tuple> cq = cb.createTupleQuery();
-
-			Root root = cq.from(config.getEntityClass());
-			Type idType = root.getModel().getIdType();
-			SingularAttribute idAttr = root.getModel().getId(
-					idType.getJavaType());
-
-			cq.multiselect(root.get(idAttr));
-			List<Tuple> tuples = em.createQuery(cq).getResultList();
+			ObjectName objectName = new ObjectName(globalConfiguration.globalJmxStatistics().domain()
+					+ ":type=JpaCacheStore,name=" + ObjectName.quote(cache.getName())
+					+ ",entity=" + ObjectName.quote(descriptor.getEntityName())
+					+ (shardName == null ? "" : ",shard=" + ObjectName.quote(shardName)));
+			MBeanServer server = JmxUtil.lookupMBeanServer(globalConfiguration);
+			JmxUtil.registerMBean(statistics, objectName, server);
+			this.mBeanServer = server;
+			this.statisticsObjectName = objectName;
+		} catch (Exception e) {
+			log.warnf(e, "Unable to register the statistics of the store of entity %s", descriptor.getEntityName());
+		}
+	}
 
-			Set<Object> keys = new HashSet<Object>();
-			for (Tuple t : tuples) {
-				Object id = t.get(0);
-				if (includeKey(id, keysToExclude)) {
-					keys.add(id);
-				}
-			}
+	private void unregisterStatistics() {
+		if (statisticsObjectName == null)
+			return;
 
-			return keys;
+		try {
+			JmxUtil.unregisterMBean(statisticsObjectName, mBeanServer);
+		} catch (Exception e) {
+			log.warnf(e, "Unable to unregister the statistics of the store of entity %s", descriptor.getEntityName());
 		} finally {
-			em.close();
+			statisticsObjectName = null;
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	@Override
-	protected void toStreamLockSafe(ObjectOutput oos)
-			throws CacheLoaderException {
-
-		EntityManager em = emf.createEntityManager();
+	/**
+	 * @return the operation counters and latency histograms of the store
+	 */
+	public JpaCacheStoreStatistics getStatistics() {
+		return statistics;
+	}
 
-		try {
-			CriteriaBuilder cb = em.getCriteriaBuilder();
-			CriteriaQuery cq = cb.createQuery(config.getEntityClass());
-			cq.select(cq.from(config.getEntityClass()));
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
+	}
 
-			TypedQuery q = em.createQuery(cq);
+	/**
+	 * @return the native upsert statement of the entity, or <code>null</code> if entities are
+	 *         stored with merge()
+	 */
+	UpsertStatement getUpsertStatement() {
+		return upsert;
+	}
 
-			Iterator it = q.getResultList().iterator();
-			for (; it.hasNext();) {
-				Object o = it.next();
-				marshaller.objectToObjectStream(o, oos);
-			}
-			marshaller.objectToObjectStream(BINARY_STREAM_DELIMITER, oos);
-		} catch (IOException e) {
-			throw new CacheLoaderException("IO Exception in toStreamLockSafe",
-					e);
+	/**
+	 * Rebuilds the key filter from the identifiers stored in the table, e.g. after entities
+	 * were removed, the table was modified by another application or it grew beyond the
+	 * size of the filter. Writes wait for the rebuild, reads keep using the previous filter.
+	 */
+	public void rebuildKeyFilter() throws CacheLoaderException {
+		awaitStartup();
+		if (!config.isKeyFilter())
+			return;
+
+		if (!acquireGlobalLock(false))
+			throw new JpaCacheLoaderException("Unable to acquire the global lock to rebuild the key filter");
+		try {
+			buildKeyFilter();
 		} finally {
-			em.close();
+			releaseGlobalLock(false);
 		}
 	}
 
-	@Override
-	protected void fromStreamLockSafe(ObjectInput ois)
-			throws CacheLoaderException {
+	/**
+	 * Builds a key filter sized for the entities currently stored and fills it with an id-only
+	 * scan of the table. Must be called while writes are blocked.
+	 */
+	private void buildKeyFilter() throws CacheLoaderException {
+		EntityManager em = acquireEntityManager();
+		try {
+			long count = (Long) em.createQuery(descriptor.getCountQuery()).getSingleResult();
+			KeyBloomFilter filter = KeyBloomFilter.create(
+					Math.max(count * KEY_FILTER_HEADROOM, MIN_KEY_FILTER_KEYS),
+					config.getKeyFilterFalsePositiveRate(), config.getKeyFilterMaxMemory());
+
+			KeyPageIterator it = new KeyPageIterator(em, null);
+			while (it.hasNext())
+				filter.add(it.next());
+
+			this.keyFilter = filter;
+			log.debugf("Built a key filter of %d bits and %d hashes for %d entities of %s",
+					filter.getBitCount(), filter.getHashCount(), count, descriptor.getEntityName());
+		} catch (RuntimeException e) {
+			discardEntityManager(em);
+			throw e;
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
 
-		long batchSize = 0;
+	/**
+	 * @return whether the key may be stored, i.e. it must be looked up in the database
+	 */
+	private boolean mightContain(Object key) {
+		KeyBloomFilter filter = keyFilter;
+		return filter == null || filter.mightContain(key);
+	}
 
-		EntityManager em = emf.createEntityManager();
-		EntityTransaction txn = em.getTransaction();
-		try {
-			Object o = marshaller.objectFromObjectStream(ois);
+	private void addToKeyFilter(Object key) {
+		KeyBloomFilter filter = keyFilter;
+		if (filter != null)
+			filter.add(key);
+	}
 
-			txn.begin();
-			while (o != null) {
-				if (!o.getClass().isAnnotationPresent(Entity.class))
-					break;
+	private void clearKeyFilter() {
+		KeyBloomFilter filter = keyFilter;
+		if (filter != null)
+			filter.clear();
+	}
 
-				em.merge(o);
-				batchSize++;
+	/**
+	 * @return the modifications queued by write-behind and the flush counters, or
+	 *         <code>null</code> if write-behind is not configured
+	 */
+	public WriteBehindQueue getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
 
-				if (batchSize >= config.getBatchSize()) {
-					em.flush();
-					em.clear();
-					batchSize = 0;
-				}
+	/**
+	 * Writes the modifications queued by write-behind to the database, without waiting for
+	 * the end of the write-behind interval.
+	 */
+	public void flushWriteBehind() throws CacheLoaderException {
+		awaitStartup();
+		if (writeBehindQueue != null)
+			flushWriteBehindQueue();
+	}
 
-				o = marshaller.objectFromObjectStream(ois);
-			}
+	/**
+	 * @return whether the modification of the key can be queued by write-behind. Otherwise the
+	 *         queue is full, and the caller writes the modification itself while a flush
+	 *         drains the queue. The caller holds the write lock of the key.
+	 */
+	private boolean canQueue(Object key) {
+		if (writeBehindQueue == null)
+			return false;
+		if (writeBehindQueue.canQueue(key))
+			return true;
 
-			txn.commit();
-		} catch (InterruptedException e) {
-			if (txn != null && txn.isActive())
-				txn.rollback();
+		writeBehindQueue.recordOverflow();
+		requestFlush();
+		return false;
+	}
 
-			Thread.currentThread().interrupt();
-		} catch (Exception e) {
-			if (txn != null && txn.isActive())
-				txn.rollback();
+	/**
+	 * Queues the modification of the key, and requests a flush once the queue reaches the
+	 * write-behind threshold. The caller holds the write lock of the key.
+	 */
+	private void queueModification(Object key, Modification modification) {
+		writeBehindQueue.put(key, modification);
+		if (writeBehindQueue.getPendingCount() >= config.getWriteBehindThreshold())
+			requestFlush();
+	}
 
-			throw new CacheLoaderException(e);
-		} finally {
-			em.close();
+	/**
+	 * Runs a flush on the write-behind thread, unless one is requested already.
+	 */
+	private void requestFlush() {
+		if (flushRequested.compareAndSet(false, true)) {
+			try {
+				writeBehindExecutor.execute(writeBehindFlush);
+			} catch (RejectedExecutionException e) {
+				// the store is stopping, and drains the queue
+				flushRequested.set(false);
+			}
 		}
 	}
 
-	@Override
-	protected boolean removeLockSafe(Object key, Integer lockingKey)
-			throws CacheLoaderException {
+	/**
+	 * @return a copy of the entry of the queued modification, so that changes to the loaded
+	 *         entity do not change what is written, or <code>null</code> if the queued
+	 *         modification is a remove or an expired store
+	 */
+	private InternalCacheEntry queuedEntry(Modification modification) throws CacheLoaderException {
+		if (modification.getType() != Modification.Type.STORE)
+			return null;
 
-		if (!isValidKeyType(key)) {
-			return false;
+		InternalCacheEntry entry = ((Store) modification).getStoredEntry();
+		if (entry.canExpire() && entry.isExpired(timeService.wallClockTime()))
+			return null;
+		return copyOf(entry);
+	}
+
+	/**
+	 * Writes all the queued modifications, one transaction of at most
+	 * <code>writeBehindThreshold</code> keys at a time, holding the write locks of the keys.
+	 */
+	private void flushWriteBehindQueue() throws CacheLoaderException {
+		List<Object> keys = writeBehindQueue.keys();
+		int threshold = config.getWriteBehindThreshold();
+		for (int i = 0; i < keys.size(); i += threshold) {
+			List<Object> chunk = keys.subList(i, Math.min(i + threshold, keys.size()));
+			SortedSet<LockingKey> lockingKeys = new TreeSet<LockingKey>();
+			for (Object key : chunk)
+				lockingKeys.add(getLockFromKey(key));
+
+			lockAllForWriting(lockingKeys);
+			try {
+				flushQueuedModifications(chunk);
+			} finally {
+				for (LockingKey lockingKey : lockingKeys)
+					unlock(lockingKey);
+			}
 		}
+	}
+
+	/**
+	 * Writes all the queued modifications. The caller holds the global lock.
+	 */
+	private void flushWriteBehindQueueLockSafe() throws CacheLoaderException {
+		if (writeBehindQueue != null)
+			flushQueuedModifications(writeBehindQueue.keys());
+	}
 
-		EntityManager em = emf.createEntityManager();
+	/**
+	 * Writes the queued modifications of the keys in one transaction, then removes them from
+	 * the queue. If the transaction fails, the modifications are written one by one, so that
+	 * the failing ones do not hold back the others. The caller holds locks preventing the
+	 * keys from being modified.
+	 */
+	private void flushQueuedModifications(List<Object> keys) throws CacheLoaderException {
+		flushLock.lock();
 		try {
-			Object o = em.find(config.getEntityClass(), key);
-			if (o == null) {
-				return false;
+			List<Modification> mods = new ArrayList<Modification>(keys.size());
+			for (Object key : keys) {
+				Modification modification = writeBehindQueue.get(key);
+				if (modification != null)
+					mods.add(modification);
 			}
+			if (mods.isEmpty())
+				return;
 
-			EntityTransaction txn = em.getTransaction();
 			try {
-				txn.begin();
-				em.remove(o);
-				txn.commit();
+				writeQueuedModifications(mods);
+			} catch (CacheLoaderException e) {
+				if (mods.size() == 1) {
+					if (!recordFailure(mods.get(0), e))
+						throw e;
+					return;
+				}
 
-				return true;
-			} catch (Exception e) {
-				if (txn != null && txn.isActive())
-					txn.rollback();
-				throw new CacheLoaderException(
-						"Exception caught in removeLockSafe()", e);
+				CacheLoaderException failure = null;
+				for (Modification modification : mods) {
+					try {
+						writeQueuedModifications(Collections.singletonList(modification));
+					} catch (CacheLoaderException modificationFailure) {
+						if (!recordFailure(modification, modificationFailure))
+							failure = modificationFailure;
+					}
+				}
+				if (failure != null)
+					throw failure;
 			}
 		} finally {
-			em.close();
+			flushLock.unlock();
 		}
 	}
 
-	@Override
-	protected void storeLockSafe(InternalCacheEntry entry, Integer lockingKey)
-			throws CacheLoaderException {
+	private void writeQueuedModifications(List<Modification> mods) throws CacheLoaderException {
+		long start = System.nanoTime();
+		applyModificationsLockSafe(mods, start);
+		for (Modification modification : mods)
+			writeBehindQueue.remove(modifiedKey(modification), modification);
+		writeBehindQueue.recordFlush(mods.size(), System.nanoTime() - start);
+	}
 
-		EntityManager em = emf.createEntityManager();
+	/**
+	 * Records a failed attempt to write a queued modification, and drops the modification
+	 * once it failed <code>writeBehindMaxAttempts</code> times.
+	 *
+	 * @return whether the modification was dropped
+	 */
+	private boolean recordFailure(Modification modification, CacheLoaderException e) {
+		Object key = modifiedKey(modification);
+		if (writeBehindQueue.recordFailure(key, modification) < config.getWriteBehindMaxAttempts())
+			return false;
 
-		Object o = entry.getValue();
-		try {
-			if (!config.getEntityClass().isAssignableFrom(o.getClass())) {
-				throw new JpaCacheLoaderException(
-						"This cache is configured with JPA CacheStore to only store values of type " + config.getEntityClassName());
-			} else {
-				EntityTransaction txn = em.getTransaction();
-				Object id = emf.getPersistenceUnitUtil().getIdentifier(o);
-				if (!entry.getKey().equals(id)) {
-					throw new JpaCacheLoaderException(
-							"Entity id value must equal to key of cache entry: "
-									+ "key = [" + entry.getKey() + "], id = ["
-									+ id + "]");
-				}
-				try {
-					txn.begin();
+		writeBehindQueue.drop(key, modification);
+		log.errorf(e, "Dropped the queued %s of key %s of entity %s after %d failed attempts",
+				modification.getType(), key, descriptor.getEntityName(), config.getWriteBehindMaxAttempts());
+		return true;
+	}
 
-					em.merge(o);
+	private static Object modifiedKey(Modification modification) {
+		return modification.getType() == Modification.Type.STORE
+				? ((Store) modification).getStoredEntry().getKey()
+				: ((Remove) modification).getKey();
+	}
 
-					txn.commit();
-				} catch (Exception e) {
-					if (txn != null && txn.isActive())
-						txn.rollback();
-					throw new CacheLoaderException(
-							"Exception caught in store()", e);
-				}
-			}
-		} finally {
-			em.close();
-		}
+	/**
+	 * @return the number of entity managers created, by the pool if entity managers are pooled
+	 */
+	public long getEntityManagersCreated() {
+		return entityManagerPool == null ? entityManagersCreated.get() : entityManagerPool.getCreated();
+	}
 
+	/**
+	 * @return the number of times a pooled entity manager was reused, or -1 if entity managers
+	 *         are not pooled
+	 */
+	public long getEntityManagersReused() {
+		return entityManagerPool == null ? -1 : entityManagerPool.getReused();
 	}
 
-	@Override
-	protected InternalCacheEntry loadLockSafe(Object key, Integer lockingKey)
-			throws CacheLoaderException {
+	/**
+	 * @return an entity manager from the pool, if configured, otherwise a new one
+	 */
+	EntityManager acquireEntityManager() {
+		if (entityManagerPool != null)
+			return entityManagerPool.acquire();
 
-		if (!isValidKeyType(key)) {
-			return null;
+		entityManagersCreated.incrementAndGet();
+		return emf.createEntityManager();
+	}
+
+	/**
+	 * Releases an entity manager, which does nothing if it was discarded.
+	 */
+	void releaseEntityManager(EntityManager em) {
+		if (entityManagerPool == null) {
+			if (em.isOpen())
+				em.close();
+		} else {
+			entityManagerPool.release(em);
 		}
+	}
 
-		EntityManager em = emf.createEntityManager();
-		try {
-			Object o = em.find(config.getEntityClass(), key);
-			if (o == null)
-				return null;
+	/**
+	 * Closes an entity manager whose operation failed, rather than returning it to the pool.
+	 */
+	private void discardEntityManager(EntityManager em) {
+		if (entityManagerPool == null)
+			EntityManagerPool.close(em);
+		else
+			entityManagerPool.discard(em);
+	}
 
-			return new ImmortalCacheEntry(key, o);
-		} finally {
+	/**
+	 * @return an entity manager of the read replica if <code>replica</code>, otherwise of the
+	 *         primary persistence unit
+	 */
+	private EntityManager acquireEntityManager(boolean replica) {
+		if (!replica)
+			return acquireEntityManager();
+
+		replicaReads.incrementAndGet();
+		if (readEntityManagerPool != null)
+			return readEntityManagerPool.acquire();
+
+		entityManagersCreated.incrementAndGet();
+		return readEmf.createEntityManager();
+	}
+
+	private void releaseEntityManager(EntityManager em, boolean replica) {
+		if (!replica)
+			releaseEntityManager(em);
+		else if (readEntityManagerPool != null)
+			readEntityManagerPool.release(em);
+		else if (em.isOpen())
 			em.close();
-		}
+	}
 
+	private void discardEntityManager(EntityManager em, boolean replica) {
+		if (!replica)
+			discardEntityManager(em);
+		else if (readEntityManagerPool != null)
+			readEntityManagerPool.discard(em);
+		else
+			EntityManagerPool.close(em);
 	}
 
-	@Override
-	protected Integer getLockFromKey(Object key) throws CacheLoaderException {
-		return key.hashCode() & 0xfffffc00;
+	/**
+	 * @return whether bulk loads go to the read replica, which is the case unless there is
+	 *         none, all the keys were written within the window or a replica read failed
+	 *         recently
+	 */
+	private boolean useReplica() {
+		if (readEmf == null || recentWrites.isAllRecent())
+			return false;
+		return !replicaFailed || timeService.time() - replicaFailedAt >= REPLICA_RETRY_INTERVAL;
 	}
 
-	protected boolean includeKey(Object key, Set<Object> keysToExclude) {
-		return keysToExclude == null || !keysToExclude.contains(key);
+	/**
+	 * @return whether the load of the key goes to the read replica
+	 */
+	private boolean useReplica(Object key) {
+		return useReplica() && !recentWrites.isRecent(key);
+	}
+
+	private void replicaFailed(PersistenceException e) {
+		replicaFailures.incrementAndGet();
+		replicaFailedAt = timeService.time();
+		replicaFailed = true;
+		log.warnf(e, "Read from read replica Persistence Unit [%s] failed, loading from Persistence Unit [%s] for %d s",
+				config.getReadPersistenceUnitName(), config.getPersistenceUnitName(),
+				TimeUnit.NANOSECONDS.toSeconds(REPLICA_RETRY_INTERVAL));
+	}
+
+	/**
+	 * Records that the key was written, so that it is loaded from the primary persistence
+	 * unit for the read-your-writes window.
+	 */
+	private void recordWrite(Object key) {
+		if (recentWrites != null)
+			recentWrites.record(key);
+	}
+
+	/**
+	 * Records that all the keys were written, e.g. by a clear.
+	 */
+	private void recordWriteAll() {
+		if (recentWrites != null)
+			recentWrites.recordAll();
+	}
+
+	/**
+	 * @return the number of entity managers of the read replica acquired to load entries
+	 */
+	public long getReplicaReads() {
+		return replicaReads.get();
+	}
+
+	/**
+	 * @return the number of reads from the read replica which failed, and were retried on the
+	 *         primary persistence unit
+	 */
+	public long getReplicaFailures() {
+		return replicaFailures.get();
+	}
+
+	/**
+	 * @return the number of loads which waited for a concurrent load of the same key instead
+	 *         of querying the database
+	 */
+	public long getCoalescedLoadCount() {
+		return coalescedLoads.get();
+	}
+
+	/**
+	 * @return the lock acquisition counters and wait times of each lock stripe
+	 */
+	public LockStripeStatistics getLockStatistics() {
+		return lockStatistics;
 	}
 
+	@Override
+	public void stop() throws CacheLoaderException {
+		stopAsyncExecutor();
+		stopping = true;
+		awaitStartupCompletion();
+		if (emf == null) {
+			super.stop();
+			return;
+		}
+
+		unregisterStatistics();
+		try {
+			try {
+				if (writeBehindExecutor != null) {
+					writeBehindExecutor.shutdown();
+					writeBehindExecutor.awaitTermination(config.getLockAcquistionTimeout(), TimeUnit.MILLISECONDS);
+					// drains the queue
+					flushWriteBehindQueue();
+				}
+			} finally {
+				if (entityManagerPool != null)
+					entityManagerPool.close();
+				stopReadReplica();
+			}
+		   this.emfRegistry.closeEntityManagerFactory(config.getPersistenceUnitName());
+			super.stop();
+		} catch (Throwable t) {
+			throw new CacheLoaderException(
+					"Exceptions occurred while stopping store", t);
+		}
+	}
+
+	/**
+	 * Sets the executor running the asynchronous operations, e.g. one starting a virtual
+	 * thread per task on the JDKs supporting them, instead of a pool of
+	 * <code>asyncThreads</code> threads. The executor is not shut down by the store.
+	 *
+	 * @throws IllegalStateException if an asynchronous operation was already submitted
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService executor) {
+		if (asyncExecutor != null)
+			throw new IllegalStateException("The executor of the asynchronous operations is already in use");
+		this.asyncExecutor = executor;
+		this.asyncExecutorOwned = false;
+	}
+
+	private synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			final String threadName = "JpaCacheStore-Async-" + config.getEntityClass().getSimpleName() + "-";
+			this.asyncExecutor = Executors.newFixedThreadPool(config.getAsyncThreads(), new ThreadFactory() {
+				private final AtomicLong threads = new AtomicLong();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName + threads.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.asyncExecutorOwned = true;
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Waits for the asynchronous operations in flight to complete, for at most
+	 * <code>lockAcquistionTimeout</code> milliseconds, so that the store is not stopped under
+	 * them. The operations submitted afterwards are rejected, unless the executor was set by
+	 * the application.
+	 */
+	private void stopAsyncExecutor() {
+		ExecutorService executor;
+		boolean owned;
+		synchronized (this) {
+			executor = asyncExecutor;
+			owned = asyncExecutorOwned;
+		}
+		if (executor == null || asyncPermits == null)
+			return;
+
+		if (owned)
+			executor.shutdown();
+		try {
+			int permits = config.getAsyncMaxInFlight();
+			if (asyncPermits.tryAcquire(permits, config.getLockAcquistionTimeout(), TimeUnit.MILLISECONDS))
+				asyncPermits.release(permits);
+			else
+				log.warnf("Stopping the store of entity class %s with asynchronous operations in flight", config.getEntityClassName());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the operation on the executor of the asynchronous operations. Waits for up to
+	 * <code>asyncSubmitTimeout</code> milliseconds for an operation to complete if
+	 * <code>asyncMaxInFlight</code> operations are in flight, so that callers submitting
+	 * faster than the database can keep up are slowed down instead of queuing without bound.
+	 * The permit of the operation is released by the operation itself, before its future
+	 * completes, or by the future if it is cancelled before the operation runs.
+	 *
+	 * @throws JpaCacheLoaderException if no operation completed within the timeout, or the
+	 *            store is stopped
+	 */
+	private <T> NotifyingFuture<T> submitAsync(final Callable<T> operation) throws CacheLoaderException {
+		try {
+			if (!asyncPermits.tryAcquire(config.getAsyncSubmitTimeout(), TimeUnit.MILLISECONDS))
+				throw new JpaCacheLoaderException("Timed out waiting for one of the " + config.getAsyncMaxInFlight()
+						+ " asynchronous operations in flight to complete");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CacheLoaderException("Interrupted while waiting to submit an asynchronous operation", e);
+		}
+
+		final AtomicBoolean released = new AtomicBoolean();
+		NotifyingFutureTask<T> task = new NotifyingFutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return operation.call();
+				} finally {
+					releaseAsyncPermit(released);
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (isCancelled())
+					releaseAsyncPermit(released);
+				super.done();
+			}
+		};
+		try {
+			getAsyncExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			releaseAsyncPermit(released);
+			throw new JpaCacheLoaderException("The store of entity class [" + config.getEntityClassName() + "] is stopped", e);
+		}
+		return task;
+	}
+
+	private void releaseAsyncPermit(AtomicBoolean released) {
+		if (released.compareAndSet(false, true))
+			asyncPermits.release();
+	}
+
+	/**
+	 * @return the number of asynchronous operations submitted and not yet completed
+	 */
+	public int getAsyncInFlight() {
+		return asyncPermits == null ? 0 : config.getAsyncMaxInFlight() - asyncPermits.availablePermits();
+	}
+
+	/**
+	 * Loads the entry of the key on the executor of the asynchronous operations.
+	 *
+	 * @see #load(Object)
+	 */
+	public NotifyingFuture<InternalCacheEntry> loadAsync(final Object key) throws CacheLoaderException {
+		return submitAsync(new Callable<InternalCacheEntry>() {
+			@Override
+			public InternalCacheEntry call() throws Exception {
+				return load(key);
+			}
+		});
+	}
+
+	/**
+	 * Loads the entries of the keys on the executor of the asynchronous operations.
+	 *
+	 * @see #loadAll(Collection)
+	 */
+	public NotifyingFuture<Map<Object, InternalCacheEntry>> loadAllAsync(final Collection<?> keys) throws CacheLoaderException {
+		return submitAsync(new Callable<Map<Object, InternalCacheEntry>>() {
+			@Override
+			public Map<Object, InternalCacheEntry> call() throws Exception {
+				return loadAll(keys);
+			}
+		});
+	}
+
+	/**
+	 * Loads all the entries on the executor of the asynchronous operations.
+	 *
+	 * @see #loadAll()
+	 */
+	public NotifyingFuture<Set<InternalCacheEntry>> loadAllAsync() throws CacheLoaderException {
+		return submitAsync(new Callable<Set<InternalCacheEntry>>() {
+			@Override
+			public Set<InternalCacheEntry> call() throws Exception {
+				return loadAll();
+			}
+		});
+	}
+
+	/**
+	 * Stores the entry on the executor of the asynchronous operations.
+	 *
+	 * @see #store(InternalCacheEntry)
+	 */
+	public NotifyingFuture<Void> storeAsync(final InternalCacheEntry entry) throws CacheLoaderException {
+		return submitAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				store(entry);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Removes the entry of the key on the executor of the asynchronous operations.
+	 *
+	 * @see #remove(Object)
+	 */
+	public NotifyingFuture<Boolean> removeAsync(final Object key) throws CacheLoaderException {
+		return submitAsync(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return remove(key);
+			}
+		});
+	}
+
+	@Override
+	public Class<? extends CacheLoaderConfig> getConfigurationClass() {
+		return JpaCacheStoreConfig.class;
+	}
+
+	protected boolean isValidKeyType(Object key) {
+		return descriptor.isValidKey(key);
+	}
+
+	@Override
+	protected void clearLockSafe() throws CacheLoaderException {
+		awaitStartup();
+		long start = System.nanoTime();
+		EntityManager em = acquireEntityManager();
+		EntityTransaction txn = em.getTransaction();
+
+		try {
+			txn.begin();
+
+			removeAll(em);
+			removeAllMetadata(em);
+
+			txn.commit();
+			recordWriteAll();
+			clearKeyFilter();
+			if (writeBehindQueue != null)
+				writeBehindQueue.clear();
+			statistics.record(Operation.CLEAR, start);
+		} catch (Exception e) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			discardEntityManager(em);
+			throw new CacheLoaderException("Exception caught in clear()", e);
+		} finally {
+			releaseEntityManager(em);
+		}
+
+	}
+
+	@Override
+	protected Set<InternalCacheEntry> loadAllLockSafe()
+			throws CacheLoaderException {
+		return loadLockSafe(-1);
+	}
+
+	@Override
+	protected Set<InternalCacheEntry> loadLockSafe(int maxEntries)
+			throws CacheLoaderException {
+
+	   if (maxEntries == 0)
+	      return InfinispanCollections.emptySet();
+
+		awaitStartup();
+		long start = System.nanoTime();
+		flushWriteBehindQueueLockSafe();
+		Set<InternalCacheEntry> result = null;
+		if (useReplica()) {
+			try {
+				result = loadEntries(maxEntries, true);
+			} catch (PersistenceException e) {
+				replicaFailed(e);
+			}
+		}
+		if (result == null)
+			result = loadEntries(maxEntries, false);
+
+		statistics.record(Operation.LOAD_ALL, start, result.size());
+		return result;
+	}
+
+	/**
+	 * Loads all the entries, or <code>maxEntries</code> of them if positive, from the replica
+	 * if <code>replica</code>, except the ones of the recently written keys, which are loaded
+	 * from the primary persistence unit.
+	 */
+	private Set<InternalCacheEntry> loadEntries(int maxEntries, boolean replica) throws CacheLoaderException {
+		Map<Object, InternalCacheEntry> entries = new HashMap<Object, InternalCacheEntry>();
+		EntityManager em = acquireEntityManager(replica);
+		try {
+			EntityPageIterator it = new EntityPageIterator(em, maxEntries);
+			while (it.hasNext()) {
+				Object o = it.next();
+				Object key = descriptor.getIdentifier(o);
+				entries.put(key, createCacheEntry(key, o, it.getMetadata(key)));
+			}
+		} catch (RuntimeException e) {
+			discardEntityManager(em, replica);
+			throw e;
+		} finally {
+			releaseEntityManager(em, replica);
+		}
+
+		if (replica) {
+			Set<Object> recent = recentWrites.getKeys();
+			entries.keySet().removeAll(recent);
+			entries.putAll(loadFromPrimary(recent, null));
+		}
+
+		Set<InternalCacheEntry> result = new HashSet<InternalCacheEntry>(entries.values());
+		truncate(result, maxEntries);
+		return result;
+	}
+
+	/**
+	 * Loads the entries of the keys from the primary persistence unit, one
+	 * <code>batchSize</code> chunk at a time, and puts their metadata into
+	 * <code>metadata</code> if not null.
+	 */
+	private Map<Object, InternalCacheEntry> loadFromPrimary(Collection<Object> keys,
+			Map<Object, MetadataEntity> metadata) throws CacheLoaderException {
+		Map<Object, InternalCacheEntry> result = new HashMap<Object, InternalCacheEntry>();
+		if (keys.isEmpty())
+			return result;
+
+		if (metadata == null || !config.isStoreMetadata()) {
+			loadChunks(new ArrayList<Object>(keys), result, false);
+			return result;
+		}
+
+		List<Object> keyList = new ArrayList<Object>(keys);
+		EntityManager em = acquireEntityManager();
+		try {
+			int batchSize = (int) config.getBatchSize();
+			for (int i = 0; i < keyList.size(); i += batchSize) {
+				List<Object> chunk = keyList.subList(i, Math.min(i + batchSize, keyList.size()));
+				loadChunk(em, chunk, result);
+				metadata.putAll(loadMetadata(em, chunk));
+				em.clear();
+			}
+		} catch (RuntimeException e) {
+			discardEntityManager(em);
+			throw e;
+		} finally {
+			releaseEntityManager(em);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes entries from the set until there are at most <code>maxEntries</code>, if
+	 * positive.
+	 */
+	static <T> void truncate(Set<T> entries, int maxEntries) {
+		if (maxEntries <= 0 || entries.size() <= maxEntries)
+			return;
+
+		Iterator<T> it = entries.iterator();
+		for (int i = 0; i < maxEntries; i++)
+			it.next();
+		while (it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	@Override
+	protected Set<Object> loadAllKeysLockSafe(final Set<Object> keysToExclude)
+			throws CacheLoaderException {
+
+		awaitStartup();
+		long start = System.nanoTime();
+		flushWriteBehindQueueLockSafe();
+		Set<Object> keys = null;
+		if (useReplica()) {
+			try {
+				keys = loadKeys(keysToExclude, true);
+			} catch (PersistenceException e) {
+				replicaFailed(e);
+			}
+		}
+		if (keys == null)
+			keys = loadKeys(keysToExclude, false);
+
+		statistics.record(Operation.LOAD_KEYS, start, keys.size());
+		return keys;
+	}
+
+	/**
+	 * Loads the keys from the replica if <code>replica</code>, replacing the recently written
+	 * keys with the ones still stored in the primary persistence unit.
+	 */
+	private Set<Object> loadKeys(Set<Object> keysToExclude, boolean replica) throws CacheLoaderException {
+		Set<Object> keys = new HashSet<Object>();
+		EntityManager em = acquireEntityManager(replica);
+		try {
+			KeyPageIterator it = new KeyPageIterator(em, keysToExclude);
+			while (it.hasNext())
+				keys.add(it.next());
+		} catch (RuntimeException e) {
+			discardEntityManager(em, replica);
+			throw e;
+		} finally {
+			releaseEntityManager(em, replica);
+		}
+
+		if (replica) {
+			Set<Object> recent = recentWrites.getKeys();
+			keys.removeAll(recent);
+			for (Object key : loadFromPrimary(recent, null).keySet()) {
+				if (includeKey(key, keysToExclude))
+					keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Passes the stored keys, except the excluded and expired ones, to the processor one at a
+	 * time. Only the identifiers are selected, one page of <code>batchSize</code> identifiers
+	 * at a time, so the memory used does not depend on the number of stored entities. Up to
+	 * 1000 excluded keys are excluded by the queries themselves.
+	 */
+	public void processKeys(Set<Object> keysToExclude, final KeyProcessor processor)
+			throws CacheLoaderException {
+		awaitStartup();
+		if (!acquireGlobalLock(false))
+			throw new JpaCacheLoaderException("Unable to acquire the global lock to process keys");
+
+		try {
+			long start = System.nanoTime();
+			flushWriteBehindQueueLockSafe();
+			// keys are processed as they are read, so a replica failure cannot be retried
+			boolean replica = useReplica();
+			Set<Object> recent = replica ? recentWrites.getKeys() : Collections.<Object>emptySet();
+			EntityManager em = acquireEntityManager(replica);
+			int processed = 0;
+			boolean stopped = false;
+			try {
+				KeyPageIterator it = new KeyPageIterator(em, keysToExclude);
+				while (it.hasNext() && !stopped) {
+					Object key = it.next();
+					if (recent.contains(key))
+						continue;
+					processed++;
+					stopped = !processor.processKey(key);
+				}
+			} catch (PersistenceException e) {
+				if (replica)
+					replicaFailed(e);
+				discardEntityManager(em, replica);
+				throw e;
+			} catch (RuntimeException e) {
+				discardEntityManager(em, replica);
+				throw e;
+			} finally {
+				releaseEntityManager(em, replica);
+			}
+
+			if (!recent.isEmpty() && !stopped) {
+				for (Object key : loadFromPrimary(recent, null).keySet()) {
+					if (!includeKey(key, keysToExclude))
+						continue;
+					processed++;
+					if (!processor.processKey(key))
+						break;
+				}
+			}
+			statistics.record(Operation.LOAD_KEYS, start, processed);
+		} finally {
+			releaseGlobalLock(false);
+		}
+	}
+
+	/**
+	 * Writes the entities to the stream one page at a time, so that neither the heap usage
+	 * nor the delay before the first entity is written depend on the size of the table.
+	 */
+	@Override
+	protected void toStreamLockSafe(ObjectOutput oos)
+			throws CacheLoaderException {
+
+		awaitStartup();
+		long start = System.nanoTime();
+		int written = writeEntities(oos);
+
+		try {
+			marshaller.objectToObjectStream(BINARY_STREAM_DELIMITER, oos);
+		} catch (IOException e) {
+			throw new CacheLoaderException("IO Exception in toStreamLockSafe",
+					e);
+		}
+		statistics.record(Operation.TO_STREAM, start, written);
+	}
+
+	/**
+	 * Writes the entities, each followed by its metadata if stored, to the stream. The caller
+	 * holds the global lock.
+	 *
+	 * @return the number of entities written
+	 */
+	int writeEntities(ObjectOutput oos) throws CacheLoaderException {
+		flushWriteBehindQueueLockSafe();
+		// entities are written as they are read, so a replica failure cannot be retried
+		boolean replica = useReplica();
+		Set<Object> recent = replica ? recentWrites.getKeys() : Collections.<Object>emptySet();
+		EntityManager em = acquireEntityManager(replica);
+
+		try {
+			EntityPageIterator it = new EntityPageIterator(em, -1);
+			int written = 0;
+			while (it.hasNext()) {
+				Object o = it.next();
+				Object key = descriptor.getIdentifier(o);
+				if (!recent.contains(key)) {
+					writeEntity(oos, o, it.getMetadata(key));
+					written++;
+				}
+			}
+
+			if (!recent.isEmpty()) {
+				Map<Object, MetadataEntity> metadata = new HashMap<Object, MetadataEntity>();
+				for (InternalCacheEntry entry : loadFromPrimary(recent, metadata).values()) {
+					writeEntity(oos, entry.getValue(), metadata.get(entry.getKey()));
+					written++;
+				}
+			}
+			return written;
+		} catch (IOException e) {
+			discardEntityManager(em, replica);
+			throw new CacheLoaderException("IO Exception in toStreamLockSafe",
+					e);
+		} catch (PersistenceException e) {
+			if (replica)
+				replicaFailed(e);
+			discardEntityManager(em, replica);
+			throw e;
+		} catch (RuntimeException e) {
+			discardEntityManager(em, replica);
+			throw e;
+		} finally {
+			releaseEntityManager(em, replica);
+		}
+	}
+
+	private void writeEntity(ObjectOutput oos, Object o, MetadataEntity metadata) throws IOException {
+		marshaller.objectToObjectStream(o, oos);
+		// metadata is an entity too, so it is merged along with the entity it follows
+		if (config.isStoreMetadata() && metadata != null)
+			marshaller.objectToObjectStream(metadata, oos);
+	}
+
+	/**
+	 * Applies the entities read from the stream, flushing every <code>batchSize</code> entities
+	 * and committing every <code>streamCommitInterval</code> batches, if configured.
+	 */
+	@Override
+	protected void fromStreamLockSafe(ObjectInput ois)
+			throws CacheLoaderException {
+
+		awaitStartup();
+		long start = System.nanoTime();
+		int read = readEntities(ois, Collections.singletonList(this), null);
+		statistics.record(Operation.FROM_STREAM, start, read);
+	}
+
+	/**
+	 * Reads the entities from the stream into the given stores, which are either this store
+	 * or the shards of a {@link ShardedJpaCacheStore}, with one transaction per store. The
+	 * caller holds the global locks of the stores.
+	 *
+	 * @param shardFunction chooses the store of each entity, if there are several stores
+	 * @return the number of entities read
+	 */
+	int readEntities(ObjectInput ois, List<JpaCacheStore> stores, ShardFunction shardFunction)
+			throws CacheLoaderException {
+		// the store has just been cleared, so entities can be inserted without a select
+		boolean persist = config.isPersistStreamedEntities();
+		int read = 0;
+
+		EntityManager[] ems = new EntityManager[stores.size()];
+		EntityTransaction[] txns = new EntityTransaction[stores.size()];
+		long[] batchSizes = new long[stores.size()];
+		long[] batches = new long[stores.size()];
+		try {
+			for (int i = 0; i < stores.size(); i++) {
+				stores.get(i).flushWriteBehindQueueLockSafe();
+				ems[i] = stores.get(i).acquireEntityManager();
+				txns[i] = ems[i].getTransaction();
+			}
+
+			Object o = marshaller.objectFromObjectStream(ois);
+
+			for (EntityTransaction txn : txns)
+				txn.begin();
+			int i = 0;
+			while (o != null) {
+				if (!o.getClass().isAnnotationPresent(Entity.class))
+					break;
+
+				// the metadata streamed by a store which keeps it is dropped by one which does not
+				if (o instanceof MetadataEntity && !config.isStoreMetadata()) {
+					o = marshaller.objectFromObjectStream(ois);
+					continue;
+				}
+
+				// metadata goes to the shard of the entity it follows
+				if (stores.size() > 1 && !(o instanceof MetadataEntity))
+					i = shardFunction.getShard(stores.get(0).descriptor.getIdentifier(o), stores.size());
+
+				if (persist)
+					ems[i].persist(o);
+				else
+					ems[i].merge(o);
+				batchSizes[i]++;
+				read++;
+
+				if (batchSizes[i] >= config.getBatchSize()) {
+					ems[i].flush();
+					ems[i].clear();
+					batchSizes[i] = 0;
+
+					batches[i]++;
+					if (config.getStreamCommitInterval() > 0
+							&& batches[i] >= config.getStreamCommitInterval()) {
+						txns[i].commit();
+						txns[i].begin();
+						batches[i] = 0;
+					}
+				}
+
+				o = marshaller.objectFromObjectStream(ois);
+			}
+
+			for (EntityTransaction txn : txns)
+				txn.commit();
+			for (JpaCacheStore store : stores)
+				store.recordWriteAll();
+		} catch (InterruptedException e) {
+			rollback(txns);
+			discardEntityManagers(stores, ems);
+
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			rollback(txns);
+			discardEntityManagers(stores, ems);
+
+			throw new CacheLoaderException(e);
+		} finally {
+			for (int i = 0; i < stores.size(); i++) {
+				if (ems[i] != null)
+					stores.get(i).releaseEntityManager(ems[i]);
+			}
+		}
+
+		// the streamed entities may outnumber what the filter was sized for
+		if (config.isKeyFilter()) {
+			for (JpaCacheStore store : stores)
+				store.buildKeyFilter();
+		}
+		return read;
+	}
+
+	private static void discardEntityManagers(List<JpaCacheStore> stores, EntityManager[] ems) {
+		for (int i = 0; i < stores.size(); i++) {
+			if (ems[i] != null)
+				stores.get(i).discardEntityManager(ems[i]);
+		}
+	}
+
+	private static void rollback(EntityTransaction[] txns) {
+		for (EntityTransaction txn : txns) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+		}
+	}
+
+	@Override
+	protected boolean removeLockSafe(Object key, LockingKey lockingKey)
+			throws CacheLoaderException {
+		lockStatistics.recordAcquisition(lockingKey.getHash());
+
+		if (!isValidKeyType(key)) {
+			return false;
+		}
+
+		long start = lockingKey.getRequestNanos();
+		if (canQueue(key)) {
+			Modification queued = writeBehindQueue.get(key);
+			boolean removed = queued != null
+					? queued.getType() == Modification.Type.STORE
+					: mightContain(key) && existsInDatabase(key);
+			queueModification(key, new Remove(key));
+			statistics.record(Operation.REMOVE, start);
+			return removed;
+		}
+
+		EntityManager em = acquireEntityManager();
+		EntityTransaction txn = em.getTransaction();
+		try {
+			txn.begin();
+			int removed = removeByKey(em, key);
+			removeMetadata(em, Collections.singletonList(key));
+			txn.commit();
+			recordWrite(key);
+
+			statistics.record(Operation.REMOVE, start);
+			return removed > 0;
+		} catch (Exception e) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			discardEntityManager(em);
+			throw new CacheLoaderException(
+					"Exception caught in removeLockSafe()", e);
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
+
+	/**
+	 * Removes all the given keys in a single transaction, issuing one
+	 * <code>DELETE ... WHERE id IN (...)</code> statement per <code>batchSize</code> keys.
+	 */
+	@Override
+	public void removeAll(Set<Object> keys) throws CacheLoaderException {
+		if (keys == null || keys.isEmpty())
+			return;
+
+		awaitStartup();
+		// recorded from before the locks are acquired
+		long start = System.nanoTime();
+		List<Object> validKeys = new ArrayList<Object>(keys.size());
+		SortedSet<LockingKey> lockingKeys = new TreeSet<LockingKey>();
+		for (Object key : keys) {
+			if (isValidKeyType(key)) {
+				validKeys.add(key);
+				lockingKeys.add(getLockFromKey(key));
+			}
+		}
+		if (validKeys.isEmpty())
+			return;
+
+		lockAllForWriting(lockingKeys);
+		try {
+			EntityManager em = acquireEntityManager();
+			EntityTransaction txn = em.getTransaction();
+			try {
+				txn.begin();
+
+				int batchSize = (int) config.getBatchSize();
+				for (int i = 0; i < validKeys.size(); i += batchSize) {
+					List<Object> chunk = validKeys.subList(i, Math.min(i + batchSize, validKeys.size()));
+					removeByKeys(em, chunk);
+					removeMetadata(em, chunk);
+				}
+
+				txn.commit();
+				for (Object key : validKeys)
+					recordWrite(key);
+
+				// queued stores would otherwise bring the entities back
+				if (writeBehindQueue != null) {
+					for (Object key : validKeys)
+						writeBehindQueue.remove(key);
+				}
+				statistics.record(Operation.REMOVE_ALL, start, validKeys.size());
+			} catch (Exception e) {
+				if (txn != null && txn.isActive())
+					txn.rollback();
+				discardEntityManager(em);
+				throw new CacheLoaderException(
+						"Exception caught in removeAll()", e);
+			} finally {
+				releaseEntityManager(em);
+			}
+		} finally {
+			for (LockingKey lockingKey : lockingKeys)
+				unlock(lockingKey);
+		}
+	}
+
+	/**
+	 * Deletes all the entities within the current transaction. Entities with collections are
+	 * removed one page of <code>batchSize</code> entities at a time, so that their collections
+	 * are deleted too.
+	 */
+	private void removeAll(EntityManager em) {
+		if (descriptor.isBulkDeleteSupported()) {
+			em.createQuery(descriptor.getDeleteAllQuery()).executeUpdate();
+			return;
+		}
+
+		int batchSize = (int) config.getBatchSize();
+		List<?> ids;
+		do {
+			ids = em.createQuery(descriptor.getIdsPageQuery(true, 0)).setMaxResults(batchSize).getResultList();
+			for (Object id : ids)
+				removeByKey(em, id);
+			em.flush();
+			em.clear();
+		} while (ids.size() == batchSize);
+	}
+
+	/**
+	 * Deletes the entity with the given identifier within the current transaction.
+	 *
+	 * @return the number of entities deleted
+	 */
+	private int removeByKey(EntityManager em, Object key) {
+		if (!descriptor.isBulkDeleteSupported()) {
+			Object o = em.find(descriptor.getEntityClass(), key);
+			if (o == null)
+				return 0;
+			em.remove(o);
+			return 1;
+		}
+
+		Query query = em.createQuery(descriptor.getDeleteByIdsQuery(1));
+		descriptor.setIdParameter(query, key);
+		return query.executeUpdate();
+	}
+
+	/**
+	 * Deletes the entities with the given identifiers within the current transaction.
+	 * Uses a single bulk JPQL delete when the entity has no collections to cascade to,
+	 * otherwise falls back to finding and removing every entity.
+	 *
+	 * @return the number of entities deleted
+	 */
+	private int removeByKeys(EntityManager em, List<Object> keys) {
+		if (!descriptor.isBulkDeleteSupported()) {
+			int removed = 0;
+			for (Object key : keys)
+				removed += removeByKey(em, key);
+			return removed;
+		}
+
+		Query query = em.createQuery(descriptor.getDeleteByIdsQuery(keys.size()));
+		descriptor.setIdParameters(query, keys);
+		return query.executeUpdate();
+	}
+
+	@Override
+	protected void storeLockSafe(InternalCacheEntry entry, LockingKey lockingKey)
+			throws CacheLoaderException {
+		lockStatistics.recordAcquisition(lockingKey.getHash());
+
+		long start = lockingKey.getRequestNanos();
+		Object o = validateEntity(entry);
+		// added before the entity is written, a failed write only leaves a false positive
+		addToKeyFilter(entry.getKey());
+
+		if (canQueue(entry.getKey())) {
+			queueModification(entry.getKey(), new Store(entry));
+			statistics.record(Operation.STORE, start);
+			return;
+		}
+
+		EntityManager em = acquireEntityManager();
+		try {
+			EntityTransaction txn = em.getTransaction();
+			try {
+				txn.begin();
+
+				storeInTransaction(em, o);
+				storeMetadata(em, entry);
+
+				txn.commit();
+				recordWrite(entry.getKey());
+				statistics.record(Operation.STORE, start);
+			} catch (Exception e) {
+				if (txn != null && txn.isActive())
+					txn.rollback();
+				discardEntityManager(em);
+				throw new CacheLoaderException(
+						"Exception caught in store()", e);
+			}
+		} finally {
+			releaseEntityManager(em);
+		}
+
+	}
+
+	/**
+	 * Checks that the value of the entry is an instance of the configured entity class
+	 * and that its identifier matches the key of the entry.
+	 *
+	 * @return the entity to be stored
+	 */
+	protected Object validateEntity(InternalCacheEntry entry)
+			throws JpaCacheLoaderException {
+		Object o = entry.getValue();
+		if (!descriptor.getEntityClass().isInstance(o)) {
+			throw new JpaCacheLoaderException(
+					"This cache is configured with JPA CacheStore to only store values of type " + config.getEntityClassName());
+		}
+		Object id = descriptor.getIdentifier(o);
+		if (!entry.getKey().equals(id)) {
+			throw new JpaCacheLoaderException(
+					"Entity id value must equal to key of cache entry: "
+							+ "key = [" + entry.getKey() + "], id = ["
+							+ id + "]");
+		}
+		return o;
+	}
+
+	/**
+	 * Applies the whole list of modifications of a transaction using a single
+	 * EntityManager and EntityTransaction, so that either all or none of the
+	 * modifications are persisted. The persistence context is flushed every
+	 * <code>batchSize</code> modifications so that the JDBC driver can batch statements.
+	 */
+	@Override
+	protected void applyModifications(List<? extends Modification> mods)
+			throws CacheLoaderException {
+		if (mods == null || mods.isEmpty())
+			return;
+
+		awaitStartup();
+		// recorded from before the locks are acquired
+		long start = System.nanoTime();
+		boolean clear = false;
+		SortedSet<LockingKey> lockingKeys = new TreeSet<LockingKey>();
+		for (Modification m : mods) {
+			switch (m.getType()) {
+			case STORE:
+				lockingKeys.add(getLockFromKey(((Store) m).getStoredEntry().getKey()));
+				break;
+			case REMOVE:
+				lockingKeys.add(getLockFromKey(((Remove) m).getKey()));
+				break;
+			case CLEAR:
+				clear = true;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown modification type " + m.getType());
+			}
+		}
+
+		if (clear) {
+			if (!acquireGlobalLock(true))
+				throw new JpaCacheLoaderException("Unable to acquire the global lock to apply modifications");
+		} else {
+			lockAllForWriting(lockingKeys);
+		}
+
+		try {
+			applyModificationsLockSafe(mods, start);
+
+			// the modifications are newer than the queued ones
+			if (writeBehindQueue != null) {
+				if (clear) {
+					writeBehindQueue.clear();
+				} else {
+					for (Modification m : mods)
+						writeBehindQueue.remove(modifiedKey(m));
+				}
+			}
+		} finally {
+			if (clear) {
+				releaseGlobalLock(true);
+			} else {
+				for (LockingKey lockingKey : lockingKeys)
+					unlock(lockingKey);
+			}
+		}
+	}
+
+	/**
+	 * Acquires the write locks for all the given locking keys, in order. If a lock
+	 * cannot be acquired immediately, the ones already held are released and the
+	 * attempt is retried until the lock acquisition timeout elapses, so that two
+	 * concurrent commits can never deadlock on each other.
+	 */
+	private void lockAllForWriting(Collection<LockingKey> lockingKeys)
+			throws CacheLoaderException {
+		long start = System.nanoTime();
+		long timeout = System.currentTimeMillis() + config.getLockAcquistionTimeout();
+		List<LockingKey> acquired = new ArrayList<LockingKey>(lockingKeys.size());
+		LockingKey contended = null;
+
+		while (true) {
+			for (LockingKey lockingKey : lockingKeys) {
+				if (!immediateLockForWriting(lockingKey)) {
+					contended = lockingKey;
+					break;
+				}
+				acquired.add(lockingKey);
+			}
+
+			if (acquired.size() == lockingKeys.size()) {
+				// the whole wait is charged to the stripe that made the last attempt fail
+				long waited = System.nanoTime() - start;
+				for (LockingKey lockingKey : lockingKeys)
+					lockStatistics.record(lockingKey.getHash(), lockingKey.equals(contended) ? waited : 0);
+				return;
+			}
+
+			for (LockingKey lockingKey : acquired)
+				unlock(lockingKey);
+			acquired.clear();
+
+			if (System.currentTimeMillis() > timeout)
+				throw new CacheLoaderException(
+						"Unable to acquire locks for " + lockingKeys.size() + " keys within " + config.getLockAcquistionTimeout() + " ms");
+
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CacheLoaderException("Interrupted while acquiring locks", e);
+			}
+		}
+	}
+
+	/**
+	 * Applies the modifications in one transaction. The caller holds the locks of their keys,
+	 * which it requested at <code>start</code>.
+	 */
+	protected void applyModificationsLockSafe(List<? extends Modification> mods, long start)
+			throws CacheLoaderException {
+		EntityManager em = acquireEntityManager();
+		EntityTransaction txn = em.getTransaction();
+
+		try {
+			txn.begin();
+
+			long now = timeService.wallClockTime();
+			long batchSize = 0;
+			// keys of the entities merged into the current persistence context
+			Set<Object> managedKeys = new HashSet<Object>();
+			// keys stored after the last clear, added to the key filter again once it is cleared
+			boolean cleared = false;
+			List<Object> storedKeys = new ArrayList<Object>();
+			for (Modification m : mods) {
+				switch (m.getType()) {
+				case STORE: {
+					InternalCacheEntry entry = ((Store) m).getStoredEntry();
+					if (entry.canExpire() && entry.isExpired(now)) {
+						removeInTransaction(em, entry.getKey(), managedKeys);
+					} else {
+						Object o = validateEntity(entry);
+						addToKeyFilter(entry.getKey());
+						if (cleared)
+							storedKeys.add(entry.getKey());
+						if (storeInTransaction(em, o))
+							managedKeys.add(entry.getKey());
+						storeMetadata(em, entry);
+					}
+					break;
+				}
+				case REMOVE: {
+					removeInTransaction(em, ((Remove) m).getKey(), managedKeys);
+					break;
+				}
+				case CLEAR: {
+					em.flush();
+					removeAll(em);
+					removeAllMetadata(em);
+					em.clear();
+					managedKeys.clear();
+					cleared = true;
+					storedKeys.clear();
+					break;
+				}
+				default:
+					break;
+				}
+
+				batchSize++;
+				if (batchSize >= config.getBatchSize()) {
+					em.flush();
+					em.clear();
+					managedKeys.clear();
+					batchSize = 0;
+				}
+			}
+
+			txn.commit();
+			if (recentWrites != null)
+				recordWrites(mods);
+
+			if (cleared) {
+				clearKeyFilter();
+				for (Object key : storedKeys)
+					addToKeyFilter(key);
+			}
+			statistics.record(Operation.APPLY_MODIFICATIONS, start, mods.size());
+		} catch (CacheLoaderException e) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			discardEntityManager(em);
+			throw e;
+		} catch (Exception e) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			discardEntityManager(em);
+			throw new CacheLoaderException(
+					"Exception caught in applyModifications()", e);
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
+
+	private void recordWrites(List<? extends Modification> mods) {
+		for (Modification m : mods) {
+			switch (m.getType()) {
+			case STORE:
+				recordWrite(((Store) m).getStoredEntry().getKey());
+				break;
+			case REMOVE:
+				recordWrite(((Remove) m).getKey());
+				break;
+			case CLEAR:
+				recordWriteAll();
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Stores the entity with the native upsert statement if configured and supported,
+	 * otherwise with merge().
+	 *
+	 * @return whether the entity was merged into the persistence context
+	 */
+	private boolean storeInTransaction(EntityManager em, Object o) {
+		if (upsert != null && upsert.supports(o)) {
+			upsert.execute(em, o);
+			return false;
+		}
+
+		em.merge(o);
+		return true;
+	}
+
+	private void removeInTransaction(EntityManager em, Object key, Set<Object> managedKeys)
+			throws CacheLoaderException {
+		if (!isValidKeyType(key))
+			return;
+
+		if (managedKeys.remove(key)) {
+			// a bulk delete would leave the managed entity behind in the persistence context
+			Object o = em.find(descriptor.getEntityClass(), key);
+			if (o != null)
+				em.remove(o);
+		} else {
+			removeByKey(em, key);
+		}
+
+		if (config.isStoreMetadata()) {
+			// the metadata may have been merged earlier in the same transaction
+			MetadataEntity metadata = em.find(MetadataEntity.class, metadataId(key));
+			if (metadata != null)
+				em.remove(metadata);
+		}
+	}
+
+	/**
+	 * Merges the expiration metadata of the entry, or removes it if the entry is immortal.
+	 */
+	private void storeMetadata(EntityManager em, InternalCacheEntry entry)
+			throws CacheLoaderException {
+		if (!config.isStoreMetadata())
+			return;
+
+		byte[] keyBytes = marshallKey(entry.getKey());
+		if (entry.canExpire()) {
+			em.merge(new MetadataEntity(descriptor.getEntityName(), keyBytes,
+					entry.getCreated(), entry.getLastUsed(), entry.getLifespan(),
+					entry.getMaxIdle(), entry.getExpiryTime()));
+		} else {
+			MetadataEntity metadata = em.find(MetadataEntity.class,
+					MetadataEntity.id(descriptor.getEntityName(), keyBytes));
+			if (metadata != null)
+				em.remove(metadata);
+		}
+	}
+
+	private void removeMetadata(EntityManager em, List<Object> keys)
+			throws CacheLoaderException {
+		if (!config.isStoreMetadata())
+			return;
+
+		List<String> ids = new ArrayList<String>(keys.size());
+		for (Object key : keys)
+			ids.add(metadataId(key));
+		em.createQuery(DELETE_METADATA_BY_IDS).setParameter("ids", ids).executeUpdate();
+	}
+
+	private void removeAllMetadata(EntityManager em) {
+		if (!config.isStoreMetadata())
+			return;
+
+		em.createQuery(DELETE_METADATA)
+				.setParameter("entityName", descriptor.getEntityName())
+				.executeUpdate();
+	}
+
+	/**
+	 * @return the keys of the expired entries, or <code>null</code> if there are more than
+	 *         <code>maxKeys</code> of them
+	 */
+	private List<Object> loadExpiredKeys(EntityManager em, int maxKeys)
+			throws CacheLoaderException {
+		Query query = em.createQuery(SELECT_EXPIRED_KEYS);
+		query.setParameter("entityName", descriptor.getEntityName());
+		query.setParameter("now", timeService.wallClockTime());
+		if (maxKeys > 0)
+			query.setMaxResults(maxKeys + 1);
+
+		List<?> list = query.getResultList();
+		if (maxKeys > 0 && list.size() > maxKeys)
+			return null;
+
+		List<Object> keys = new ArrayList<Object>(list.size());
+		for (Object keyBytes : list)
+			keys.add(unmarshallKey((byte[]) keyBytes));
+		return keys;
+	}
+
+	/**
+	 * @return the stored metadata of the given keys, by key
+	 */
+	private Map<Object, MetadataEntity> loadMetadata(EntityManager em, Collection<?> keys)
+			throws CacheLoaderException {
+		Map<String, Object> keysById = new HashMap<String, Object>();
+		for (Object key : keys)
+			keysById.put(metadataId(key), key);
+
+		Query query = readOnly(em.createQuery(SELECT_METADATA_BY_IDS));
+		query.setParameter("ids", new ArrayList<String>(keysById.keySet()));
+
+		Map<Object, MetadataEntity> metadata = new HashMap<Object, MetadataEntity>();
+		for (Object o : query.getResultList()) {
+			MetadataEntity m = (MetadataEntity) o;
+			metadata.put(keysById.get(m.getId()), m);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Marks a query of a load path as read-only, and keeps it from flushing the persistence
+	 * context, which holds no changes.
+	 */
+	private Query readOnly(Query query) {
+		// set before the hints, so that a provider specific flush mode takes precedence
+		query.setFlushMode(FlushModeType.COMMIT);
+		for (Map.Entry<String, Object> hint : readOnlyHints.entrySet())
+			query.setHint(hint.getKey(), hint.getValue());
+		return query;
+	}
+
+	/**
+	 * @return the hints of the provider of the entity manager factory loading entities as
+	 *         read-only, so that the persistence context keeps no snapshot of them for dirty
+	 *         checking, or none for other providers. Only the hints of the provider in use are
+	 *         set, since providers may log every hint they do not recognize, on every query.
+	 *         Only set on queries, see {@link #findReadOnly(EntityManager, Class, Object)}.
+	 */
+	static Map<String, Object> readOnlyHints(EntityManagerFactory emf) {
+		String provider = emf.getClass().getName();
+		Map<String, Object> hints = new HashMap<String, Object>();
+		if (provider.startsWith("org.hibernate.")) {
+			hints.put("org.hibernate.readOnly", Boolean.TRUE);
+			hints.put("org.hibernate.flushMode", "MANUAL");
+		} else if (provider.startsWith("org.eclipse.persistence.")) {
+			hints.put("eclipselink.read-only", "True");
+		}
+		return Collections.unmodifiableMap(hints);
+	}
+
+	/**
+	 * Finds an entity and detaches it right away, so that the persistence context does not
+	 * track it. The read-only hints are not passed, since Hibernate ignores the hints of
+	 * {@link EntityManager#find(Class, Object, Map)}.
+	 */
+	private <T> T findReadOnly(EntityManager em, Class<T> entityClass, Object key) {
+		T o = em.find(entityClass, key);
+		if (o != null)
+			em.detach(o);
+		return o;
+	}
+
+	private InternalCacheEntry createCacheEntry(Object key, Object value, MetadataEntity metadata) {
+		if (metadata == null)
+			return new ImmortalCacheEntry(key, value);
+		if (metadata.getLifespan() < 0)
+			return new TransientCacheEntry(key, value, metadata.getMaxIdle(), metadata.getLastUsed());
+		if (metadata.getMaxIdle() < 0)
+			return new MortalCacheEntry(key, value, metadata.getLifespan(), metadata.getCreated());
+		return new TransientMortalCacheEntry(key, value, metadata.getMaxIdle(),
+				metadata.getLifespan(), metadata.getLastUsed(), metadata.getCreated());
+	}
+
+	private String metadataId(Object key) throws CacheLoaderException {
+		return MetadataEntity.id(descriptor.getEntityName(), marshallKey(key));
+	}
+
+	private byte[] marshallKey(Object key) throws CacheLoaderException {
+		try {
+			return marshaller.objectToByteBuffer(key);
+		} catch (IOException e) {
+			throw new JpaCacheLoaderException("Unable to marshall key [" + key + "]", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JpaCacheLoaderException("Interrupted while marshalling key [" + key + "]", e);
+		}
+	}
+
+	private Object unmarshallKey(byte[] keyBytes) throws CacheLoaderException {
+		try {
+			return marshaller.objectFromByteBuffer(keyBytes);
+		} catch (IOException e) {
+			throw new JpaCacheLoaderException("Unable to unmarshall key", e);
+		} catch (ClassNotFoundException e) {
+			throw new JpaCacheLoaderException("Unable to unmarshall key", e);
+		}
+	}
+
+	@Override
+	protected InternalCacheEntry loadLockSafe(Object key, LockingKey lockingKey)
+			throws CacheLoaderException {
+		lockStatistics.recordAcquisition(lockingKey.getHash());
+
+		long start = lockingKey.getRequestNanos();
+		InternalCacheEntry entry = loadEntry(key);
+		statistics.recordLoad(start, entry != null);
+		return entry;
+	}
+
+	/**
+	 * Loads the entry, or waits for the result of a concurrent load of the same key. Waiting
+	 * threads receive their own copy of the entry loaded by the thread which queried the
+	 * database, so that none of them shares a mutable entity with another.
+	 */
+	private InternalCacheEntry loadEntry(final Object key) throws CacheLoaderException {
+		if (!isValidKeyType(key) || !mightContain(key)) {
+			return null;
+		}
+
+		if (writeBehindQueue != null) {
+			Modification queued = writeBehindQueue.get(key);
+			if (queued != null)
+				return queuedEntry(queued);
+		}
+
+		FutureTask<InternalCacheEntry> load = new FutureTask<InternalCacheEntry>(new Callable<InternalCacheEntry>() {
+			@Override
+			public InternalCacheEntry call() throws Exception {
+				return loadFromDatabase(key, useReplica(key));
+			}
+		});
+		FutureTask<InternalCacheEntry> inFlight = loadsInFlight.putIfAbsent(key, load);
+		if (inFlight == null) {
+			try {
+				load.run();
+			} finally {
+				loadsInFlight.remove(key, load);
+			}
+			return getLoaded(load);
+		}
+
+		coalescedLoads.incrementAndGet();
+		return copyOf(getLoaded(inFlight));
+	}
+
+	private InternalCacheEntry getLoaded(FutureTask<InternalCacheEntry> load) throws CacheLoaderException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CacheLoaderException("Interrupted while waiting for a concurrent load", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CacheLoaderException)
+				throw (CacheLoaderException) e.getCause();
+			throw new CacheLoaderException("Exception caught in load()", e.getCause());
+		}
+	}
+
+	/**
+	 * @return a copy of the entry with a copy of its value made through the marshaller
+	 */
+	private InternalCacheEntry copyOf(InternalCacheEntry entry) throws CacheLoaderException {
+		if (entry == null)
+			return null;
+
+		try {
+			Object value = marshaller.objectFromByteBuffer(marshaller.objectToByteBuffer(entry.getValue()));
+			InternalCacheEntry copy = entry.toInternalCacheValue().toInternalCacheEntry(entry.getKey());
+			copy.setValue(value);
+			return copy;
+		} catch (IOException e) {
+			throw new JpaCacheLoaderException("Unable to copy the entity of key " + entry.getKey(), e);
+		} catch (ClassNotFoundException e) {
+			throw new JpaCacheLoaderException("Unable to copy the entity of key " + entry.getKey(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JpaCacheLoaderException("Interrupted while copying the entity of key " + entry.getKey(), e);
+		}
+	}
+
+	/**
+	 * Loads the entry from the replica if <code>replica</code>, or from the primary
+	 * persistence unit if it is not, or if the replica fails.
+	 */
+	/**
+	 * Checks whether the entity of the key is stored with a key-only count, without loading the
+	 * entity, its associations or its metadata.
+	 */
+	private boolean existsInDatabase(Object key) {
+		EntityManager em = acquireEntityManager();
+		try {
+			Query query = em.createQuery(descriptor.getCountByIdQuery());
+			descriptor.setIdParameter(query, key);
+			return ((Number) query.getSingleResult()).longValue() > 0;
+		} catch (RuntimeException e) {
+			discardEntityManager(em);
+			throw e;
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
+
+	private InternalCacheEntry loadFromDatabase(Object key, boolean replica) throws CacheLoaderException {
+		if (replica) {
+			try {
+				return loadFromDatabase(key, acquireEntityManager(true), true);
+			} catch (PersistenceException e) {
+				replicaFailed(e);
+			}
+		}
+		return loadFromDatabase(key, acquireEntityManager(), false);
+	}
+
+	private InternalCacheEntry loadFromDatabase(Object key, EntityManager em, boolean replica)
+			throws CacheLoaderException {
+		try {
+			MetadataEntity metadata = null;
+			if (config.isStoreMetadata()) {
+				// expired entities are not even looked up
+				metadata = findReadOnly(em, MetadataEntity.class, metadataId(key));
+				if (metadata != null && metadata.isExpired(timeService.wallClockTime()))
+					return null;
+			}
+
+			// detached rather than read-only, see findReadOnly()
+			Object o = em.find(descriptor.getEntityClass(), key);
+			if (o == null)
+				return null;
+			fetchAssociations(em, Collections.singletonList(key));
+			em.detach(o);
+
+			return createCacheEntry(key, o, metadata);
+		} catch (RuntimeException e) {
+			discardEntityManager(em, replica);
+			throw e;
+		} finally {
+			releaseEntityManager(em, replica);
+		}
+
+	}
+
+	/**
+	 * Loads the entries of all the given keys, fetching the entities with one
+	 * <code>SELECT ... WHERE id IN (...)</code> per <code>batchSize</code> keys instead of one
+	 * lookup per key. Embedded identifiers are matched with one conjunction of their
+	 * components per key. The read locks of the keys are acquired in order for the whole load.
+	 *
+	 * @return the entries found, by key; keys that are not stored or expired are absent
+	 */
+	public Map<Object, InternalCacheEntry> loadAll(Collection<?> keys) throws CacheLoaderException {
+		Map<Object, InternalCacheEntry> result = new HashMap<Object, InternalCacheEntry>();
+		if (keys == null || keys.isEmpty())
+			return result;
+
+		awaitStartup();
+		// recorded from before the locks are acquired
+		long start = System.nanoTime();
+		List<Object> validKeys = new ArrayList<Object>(keys.size());
+		SortedSet<LockingKey> lockingKeys = new TreeSet<LockingKey>();
+		for (Object key : keys) {
+			if (isValidKeyType(key) && mightContain(key)) {
+				validKeys.add(key);
+				lockingKeys.add(getLockFromKey(key));
+			}
+		}
+		if (validKeys.isEmpty())
+			return result;
+
+		List<LockingKey> locked = new ArrayList<LockingKey>(lockingKeys.size());
+		try {
+			for (LockingKey lockingKey : lockingKeys) {
+				long requested = System.nanoTime();
+				lockForReading(lockingKey);
+				lockStatistics.record(lockingKey.getHash(), System.nanoTime() - requested);
+				locked.add(lockingKey);
+			}
+
+			if (writeBehindQueue != null) {
+				List<Object> unqueued = new ArrayList<Object>(validKeys.size());
+				for (Object key : validKeys) {
+					Modification queued = writeBehindQueue.get(key);
+					if (queued == null) {
+						unqueued.add(key);
+					} else {
+						InternalCacheEntry entry = queuedEntry(queued);
+						if (entry != null)
+							result.put(key, entry);
+					}
+				}
+				validKeys = unqueued;
+			}
+
+			if (useReplica()) {
+				List<Object> recent = new ArrayList<Object>();
+				List<Object> replicated = new ArrayList<Object>(validKeys.size());
+				for (Object key : validKeys) {
+					if (recentWrites.isRecent(key))
+						recent.add(key);
+					else
+						replicated.add(key);
+				}
+
+				try {
+					Map<Object, InternalCacheEntry> entries = new HashMap<Object, InternalCacheEntry>();
+					loadChunks(replicated, entries, true);
+					result.putAll(entries);
+					validKeys = recent;
+				} catch (PersistenceException e) {
+					replicaFailed(e);
+				}
+			}
+			loadChunks(validKeys, result, false);
+			statistics.record(Operation.LOAD_BATCH, start, result.size());
+		} finally {
+			for (LockingKey lockingKey : locked)
+				unlock(lockingKey);
+		}
+		return result;
+	}
+
+	private void loadChunks(List<Object> keys, Map<Object, InternalCacheEntry> result, boolean replica)
+			throws CacheLoaderException {
+		if (keys.isEmpty())
+			return;
+
+		EntityManager em = acquireEntityManager(replica);
+		try {
+			int batchSize = (int) config.getBatchSize();
+			for (int i = 0; i < keys.size(); i += batchSize) {
+				loadChunk(em, keys.subList(i, Math.min(i + batchSize, keys.size())), result);
+				em.clear();
+			}
+		} catch (RuntimeException e) {
+			discardEntityManager(em, replica);
+			throw e;
+		} finally {
+			releaseEntityManager(em, replica);
+		}
+	}
+
+	private void loadChunk(EntityManager em, List<Object> keys, Map<Object, InternalCacheEntry> result)
+			throws CacheLoaderException {
+		Map<Object, MetadataEntity> metadata = Collections.emptyMap();
+		if (config.isStoreMetadata()) {
+			// expired entities are not even selected
+			metadata = loadMetadata(em, keys);
+			long now = timeService.wallClockTime();
+			List<Object> liveKeys = new ArrayList<Object>(keys.size());
+			for (Object key : keys) {
+				MetadataEntity m = metadata.get(key);
+				if (m == null || !m.isExpired(now))
+					liveKeys.add(key);
+			}
+			keys = liveKeys;
+			if (keys.isEmpty())
+				return;
+		}
+
+		Query query = readOnly(em.createQuery(descriptor.getSelectByIdsQuery(keys.size())));
+		descriptor.setIdParameters(query, keys);
+		List<Object> found = new ArrayList<Object>(keys.size());
+		for (Object o : query.getResultList()) {
+			Object key = descriptor.getIdentifier(o);
+			found.add(key);
+			result.put(key, createCacheEntry(key, o, metadata.get(key)));
+		}
+		if (!found.isEmpty())
+			fetchAssociations(em, found);
+	}
+
+	/**
+	 * Initializes the configured associations of the managed entities with the given keys,
+	 * with one join fetch query per association, so that they are usable once the entities
+	 * leave the store.
+	 */
+	private void fetchAssociations(EntityManager em, List<?> keys) {
+		for (String attribute : descriptor.getFetchAttributes()) {
+			Query query = readOnly(em.createQuery(descriptor.getFetchQuery(attribute, keys.size())));
+			descriptor.setIdParameters(query, keys);
+			query.getResultList();
+		}
+	}
+
+	@Override
+	protected LockingKey getLockFromKey(Object key) throws CacheLoaderException {
+		long requested = System.nanoTime();
+		awaitStartup();
+		return new LockingKey(LockStripeStatistics.mix(key.hashCode()), requested);
+	}
+
+	protected boolean includeKey(Object key, Set<Object> keysToExclude) {
+		return keysToExclude == null || !keysToExclude.contains(key);
+	}
+
+	/**
+	 * Expired entries can only be purged if the entity has an expiry attribute or if metadata
+	 * is stored, otherwise they are all immortal.
+	 */
 	@Override
 	protected void purgeInternal() throws CacheLoaderException {
-		// Immortal - no purging needed
+		awaitStartup();
+		long start = System.nanoTime();
+		if (descriptor.getExpiryAttribute() != null)
+			purgeByExpiryAttribute();
+		if (config.isStoreMetadata())
+			purgeByMetadata();
+		statistics.record(Operation.PURGE, start);
+	}
+
+	/**
+	 * Deletes the entities whose expiry attribute is before now, on the calling thread, about
+	 * <code>purgeBatchSize</code> entities per transaction. Entities without collections are
+	 * deleted by bulk deletes bounded by the expiry time of the
+	 * <code>purgeBatchSize</code>-th oldest expired entity, since JPQL deletes take no row
+	 * limit, so that both statements use the index of the expiry column. The others are
+	 * removed one chunk of identifiers at a time, read in identifier order.
+	 */
+	private void purgeByExpiryAttribute() throws CacheLoaderException {
+		Object now = descriptor.toExpiryValue(timeService.wallClockTime());
+		int removed = descriptor.isBulkDeleteSupported() ? deleteExpired(now) : removeExpired(now);
+
+		log.debugf("Purged %d expired entities of %s", removed, descriptor.getEntityName());
+	}
+
+	/**
+	 * @return the number of entities deleted
+	 */
+	private int deleteExpired(Object now) throws CacheLoaderException {
+		int removed = 0;
+		boolean last = false;
+		while (!last) {
+			EntityManager em = acquireEntityManager();
+			EntityTransaction txn = em.getTransaction();
+			try {
+				txn.begin();
+
+				Query bound = em.createQuery(descriptor.getExpiryBoundQuery());
+				bound.setParameter("now", now);
+				bound.setFirstResult(config.getPurgeBatchSize() - 1);
+				bound.setMaxResults(1);
+				List<?> bounds = bound.getResultList();
+
+				Query query;
+				if (bounds.isEmpty()) {
+					last = true;
+					query = em.createQuery(descriptor.getDeleteExpiredQuery());
+					query.setParameter("now", now);
+				} else {
+					query = em.createQuery(descriptor.getDeleteExpiredUpToQuery());
+					query.setParameter("bound", bounds.get(0));
+				}
+				removed += query.executeUpdate();
+
+				txn.commit();
+			} catch (Exception e) {
+				if (txn != null && txn.isActive())
+					txn.rollback();
+				discardEntityManager(em);
+				throw new CacheLoaderException(
+						"Exception caught in purgeExpired()", e);
+			} finally {
+				releaseEntityManager(em);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the number of entities removed
+	 */
+	private int removeExpired(Object now) throws CacheLoaderException {
+		int chunkSize = config.getPurgeBatchSize();
+		int removed = 0;
+
+		Object lastId = null;
+		while (true) {
+			List<?> ids;
+			EntityManager em = acquireEntityManager();
+			try {
+				Query query = em.createQuery(descriptor.getExpiredIdsQuery(lastId == null));
+				query.setParameter("now", now);
+				if (lastId != null)
+					descriptor.setKeysetParameters(query, lastId);
+				query.setMaxResults(chunkSize);
+				ids = query.getResultList();
+			} catch (RuntimeException e) {
+				discardEntityManager(em);
+				throw e;
+			} finally {
+				releaseEntityManager(em);
+			}
+			if (ids.isEmpty())
+				return removed;
+			lastId = ids.get(ids.size() - 1);
+
+			removed += purgeExpiredIds(ids, now);
+
+			if (ids.size() < chunkSize)
+				return removed;
+		}
+	}
+
+	/**
+	 * Deletes the entities among the given identifiers that are still expired, within a
+	 * single transaction. Entities stored again since their identifier was read are kept.
+	 *
+	 * @return the number of entities deleted
+	 */
+	private int purgeExpiredIds(List<?> ids, Object now) throws CacheLoaderException {
+		EntityManager em = acquireEntityManager();
+		EntityTransaction txn = em.getTransaction();
+		try {
+			txn.begin();
+
+			Query query = em.createQuery(descriptor.getSelectExpiredByIdsQuery(ids.size()));
+			descriptor.setIdParameters(query, ids);
+			query.setParameter("now", now);
+			List<?> expired = query.getResultList();
+			for (Object o : expired)
+				em.remove(o);
+
+			txn.commit();
+			return expired.size();
+		} catch (Exception e) {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			discardEntityManager(em);
+			throw new CacheLoaderException(
+					"Exception caught in purgeExpired()", e);
+		} finally {
+			releaseEntityManager(em);
+		}
+	}
+
+	/**
+	 * Removes the entries whose stored metadata is expired, <code>purgeBatchSize</code> at a time.
+	 */
+	private void purgeByMetadata() throws CacheLoaderException {
+		int batchSize = config.getPurgeBatchSize();
+		while (true) {
+			List<?> expired;
+			EntityManager em = acquireEntityManager();
+			try {
+				Query query = em.createQuery(SELECT_EXPIRED_METADATA);
+				query.setParameter("entityName", descriptor.getEntityName());
+				query.setParameter("now", timeService.wallClockTime());
+				query.setMaxResults(batchSize);
+				expired = query.getResultList();
+			} catch (RuntimeException e) {
+				discardEntityManager(em);
+				throw e;
+			} finally {
+				releaseEntityManager(em);
+			}
+
+			if (!expired.isEmpty())
+				purgeExpired(expired);
+			if (expired.size() < batchSize)
+				return;
+		}
+	}
+
+	/**
+	 * Removes the entries of the given expired metadata, under the write locks of their keys.
+	 * An entry is left alone if it was stored again since its metadata was read.
+	 */
+	private void purgeExpired(List<?> expired) throws CacheLoaderException {
+		List<Object> keys = new ArrayList<Object>(expired.size());
+		SortedSet<LockingKey> lockingKeys = new TreeSet<LockingKey>();
+		for (Object o : expired) {
+			Object key = unmarshallKey(((MetadataEntity) o).getKeyBytes());
+			keys.add(key);
+			lockingKeys.add(getLockFromKey(key));
+		}
+
+		lockAllForWriting(lockingKeys);
+		try {
+			EntityManager em = acquireEntityManager();
+			EntityTransaction txn = em.getTransaction();
+			try {
+				txn.begin();
+
+				long now = timeService.wallClockTime();
+				List<Object> removedKeys = new ArrayList<Object>(keys.size());
+				for (int i = 0; i < keys.size(); i++) {
+					MetadataEntity metadata = em.find(MetadataEntity.class,
+							((MetadataEntity) expired.get(i)).getId());
+					if (metadata != null && metadata.isExpired(now)) {
+						em.remove(metadata);
+						removedKeys.add(keys.get(i));
+					}
+				}
+				if (!removedKeys.isEmpty())
+					removeByKeys(em, removedKeys);
+
+				txn.commit();
+			} catch (Exception e) {
+				if (txn != null && txn.isActive())
+					txn.rollback();
+				discardEntityManager(em);
+				throw new CacheLoaderException(
+						"Exception caught in purgeExpired()", e);
+			} finally {
+				releaseEntityManager(em);
+			}
+		} finally {
+			for (LockingKey lockingKey : lockingKeys)
+				unlock(lockingKey);
+		}
+	}
+
+	/**
+	 * Iterates over the identifiers of the stored entities one page of <code>batchSize</code>
+	 * identifiers at a time, using keyset pagination. Excluded and expired keys are excluded
+	 * by the page queries when there are at most {@link #MAX_EXCLUDED_KEYS} of them, otherwise
+	 * they are filtered out of every page.
+	 */
+	private class KeyPageIterator {
+		private final EntityManager em;
+		private final List<Object> queryExclusions;
+		private final Set<Object> pageExclusions;
+		private final boolean filterExpired;
+		private Iterator<?> page = Collections.emptyList().iterator();
+		private Object lastId;
+		private boolean lastPage;
+
+		KeyPageIterator(EntityManager em, Set<Object> keysToExclude) throws CacheLoaderException {
+			this.em = em;
+
+			List<Object> excluded = new ArrayList<Object>();
+			if (keysToExclude != null) {
+				for (Object key : keysToExclude) {
+					if (isValidKeyType(key))
+						excluded.add(key);
+				}
+			}
+			List<Object> expired = null;
+			if (config.isStoreMetadata())
+				expired = loadExpiredKeys(em, MAX_EXCLUDED_KEYS);
+			this.filterExpired = config.isStoreMetadata() && expired == null;
+			if (expired != null)
+				excluded.addAll(expired);
+
+			if (excluded.size() <= MAX_EXCLUDED_KEYS) {
+				this.queryExclusions = excluded;
+				this.pageExclusions = Collections.emptySet();
+			} else {
+				this.queryExclusions = Collections.emptyList();
+				this.pageExclusions = new HashSet<Object>(excluded);
+			}
+		}
+
+		boolean hasNext() throws CacheLoaderException {
+			while (!page.hasNext()) {
+				if (lastPage)
+					return false;
+				fetchNextPage();
+			}
+			return true;
+		}
+
+		Object next() throws CacheLoaderException {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			return page.next();
+		}
+
+		private void fetchNextPage() throws CacheLoaderException {
+			int pageSize = (int) config.getBatchSize();
+
+			Query q = readOnly(em.createQuery(descriptor.getIdsPageQuery(lastId == null, queryExclusions.size())));
+			if (lastId != null)
+				descriptor.setKeysetParameters(q, lastId);
+			if (!queryExclusions.isEmpty())
+				descriptor.setIdParameters(q, queryExclusions);
+			q.setMaxResults(pageSize);
+
+			List<?> ids = q.getResultList();
+			lastPage = ids.size() < pageSize;
+			if (ids.isEmpty()) {
+				page = ids.iterator();
+				return;
+			}
+			lastId = ids.get(ids.size() - 1);
+
+			Set<Object> expired = Collections.emptySet();
+			if (filterExpired) {
+				expired = new HashSet<Object>();
+				long now = timeService.wallClockTime();
+				for (Map.Entry<Object, MetadataEntity> entry : loadMetadata(em, ids).entrySet()) {
+					if (entry.getValue().isExpired(now))
+						expired.add(entry.getKey());
+				}
+			}
+			if (pageExclusions.isEmpty() && expired.isEmpty()) {
+				page = ids.iterator();
+				return;
+			}
+
+			List<Object> filtered = new ArrayList<Object>(ids.size());
+			for (Object id : ids) {
+				if (!pageExclusions.contains(id) && !expired.contains(id))
+					filtered.add(id);
+			}
+			page = filtered.iterator();
+		}
+	}
+
+	/**
+	 * Iterates over the stored entities one page of <code>batchSize</code> entities at a time,
+	 * using keyset pagination on the identifier. The persistence context is cleared before
+	 * every page is fetched, so at most one page of entities is managed at any time. When
+	 * metadata is stored, expired entities are excluded from the page queries and the
+	 * metadata of the entities of the current page is available with {@link #getMetadata(Object)}.
+	 */
+	private class EntityPageIterator {
+		private final EntityManager em;
+		private final List<Object> excludedKeys;
+		private long remaining;
+		private Iterator<?> page = Collections.emptyList().iterator();
+		private Map<Object, MetadataEntity> pageMetadata = Collections.emptyMap();
+		private Object lastId;
+		private boolean lastPage;
+
+		/**
+		 * @param maxEntries the maximum number of entities to return, or a negative value
+		 *        to return all of them
+		 */
+		EntityPageIterator(EntityManager em, long maxEntries) throws CacheLoaderException {
+			this.em = em;
+			this.remaining = maxEntries;
+
+			List<Object> expired = null;
+			if (config.isStoreMetadata())
+				expired = loadExpiredKeys(em, MAX_EXCLUDED_KEYS);
+			this.excludedKeys = expired == null ? Collections.emptyList() : expired;
+		}
+
+		boolean hasNext() throws CacheLoaderException {
+			while (!page.hasNext()) {
+				if (lastPage || remaining == 0)
+					return false;
+				fetchNextPage();
+			}
+			return true;
+		}
+
+		Object next() throws CacheLoaderException {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			if (remaining > 0)
+				remaining--;
+			return page.next();
+		}
+
+		/**
+		 * @return the metadata of an entity of the current page, or <code>null</code> if the
+		 *         entity is immortal
+		 */
+		MetadataEntity getMetadata(Object key) {
+			return pageMetadata.get(key);
+		}
+
+		private void fetchNextPage() throws CacheLoaderException {
+			em.clear();
+
+			int pageSize = (int) config.getBatchSize();
+			if (remaining > 0 && remaining < pageSize)
+				pageSize = (int) remaining;
+
+			Query q;
+			if (lastId == null) {
+				q = readOnly(em.createQuery(descriptor.getFirstPageQuery(excludedKeys.size())));
+			} else {
+				q = readOnly(em.createQuery(descriptor.getNextPageQuery(excludedKeys.size())));
+				descriptor.setKeysetParameters(q, lastId);
+			}
+			if (!excludedKeys.isEmpty())
+				descriptor.setIdParameters(q, excludedKeys);
+			q.setMaxResults(pageSize);
+
+			List<?> list = q.getResultList();
+			lastPage = list.size() < pageSize;
+			if (!list.isEmpty()) {
+				lastId = descriptor.getIdentifier(list.get(list.size() - 1));
+				if (config.isStoreMetadata())
+					list = loadPageMetadata(list);
+			}
+			if (!list.isEmpty() && !descriptor.getFetchAttributes().isEmpty()) {
+				List<Object> keys = new ArrayList<Object>(list.size());
+				for (Object o : list)
+					keys.add(descriptor.getIdentifier(o));
+				fetchAssociations(em, keys);
+			}
+			page = list.iterator();
+		}
+
+		/**
+		 * Loads the metadata of the entities of the page, and filters out the entities that
+		 * expired since the excluded keys were read.
+		 */
+		private List<?> loadPageMetadata(List<?> list) throws CacheLoaderException {
+			List<Object> keys = new ArrayList<Object>(list.size());
+			for (Object o : list)
+				keys.add(descriptor.getIdentifier(o));
+
+			long now = timeService.wallClockTime();
+			Set<Object> expired = new HashSet<Object>();
+			pageMetadata = loadMetadata(em, keys);
+			for (Iterator<Map.Entry<Object, MetadataEntity>> it = pageMetadata.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Object, MetadataEntity> entry = it.next();
+				if (entry.getValue().isExpired(now)) {
+					expired.add(entry.getKey());
+					it.remove();
+				}
+			}
+			if (expired.isEmpty())
+				return list;
+
+			List<Object> filtered = new ArrayList<Object>(list.size());
+			for (Object o : list) {
+				if (!expired.contains(descriptor.getIdentifier(o)))
+					filtered.add(o);
+			}
+			return filtered;
+		}
 	}
 
 }
@@ -14,11 +14,50 @@ public class JpaCacheStoreConfig extends LockSupportCacheStoreConfig {
 	private static final long serialVersionUID = -8588748696540797858L;
 
 	public static final long DEFAULT_BATCH_SIZE = 100L;
+	public static final int DEFAULT_STREAM_COMMIT_INTERVAL = 0;
+	public static final int DEFAULT_PURGE_BATCH_SIZE = 1000;
+	public static final double DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	public static final long DEFAULT_KEY_FILTER_MAX_MEMORY = 16777216L;
+	public static final int DEFAULT_WRITE_BEHIND_THRESHOLD = 1000;
+	public static final int DEFAULT_WRITE_BEHIND_MAX_QUEUE_SIZE = 10000;
+	public static final int DEFAULT_WRITE_BEHIND_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_STARTUP_TIMEOUT = 60000L;
+	public static final int DEFAULT_SHARD_THREADS = 4;
+	public static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 5000L;
+	public static final int DEFAULT_ASYNC_THREADS = 4;
+	public static final int DEFAULT_ASYNC_MAX_IN_FLIGHT = 256;
+	public static final long DEFAULT_ASYNC_SUBMIT_TIMEOUT = 10000L;
 
 	private String persistenceUnitName;
    private String entityClassName;
    private Class<?> entityClass;
    private long batchSize = DEFAULT_BATCH_SIZE;
+   private int streamCommitInterval = DEFAULT_STREAM_COMMIT_INTERVAL;
+   private boolean persistStreamedEntities;
+   private boolean nativeUpsert;
+   private boolean storeMetadata;
+   private String expiryAttribute;
+   private int purgeBatchSize = DEFAULT_PURGE_BATCH_SIZE;
+   private boolean keyFilter;
+   private double keyFilterFalsePositiveRate = DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE;
+   private long keyFilterMaxMemory = DEFAULT_KEY_FILTER_MAX_MEMORY;
+   private int entityManagerPoolSize;
+   private int entityManagerMaxUses;
+   private String fetchAttributes;
+   private long writeBehindInterval;
+   private int writeBehindThreshold = DEFAULT_WRITE_BEHIND_THRESHOLD;
+   private int writeBehindMaxQueueSize = DEFAULT_WRITE_BEHIND_MAX_QUEUE_SIZE;
+   private int writeBehindMaxAttempts = DEFAULT_WRITE_BEHIND_MAX_ATTEMPTS;
+   private boolean asyncStart;
+   private long startupTimeout = DEFAULT_STARTUP_TIMEOUT;
+   private String shardPersistenceUnitNames;
+   private String shardFunction;
+   private int shardThreads = DEFAULT_SHARD_THREADS;
+   private String readPersistenceUnitName;
+   private long readYourWritesWindow = DEFAULT_READ_YOUR_WRITES_WINDOW;
+   private int asyncThreads = DEFAULT_ASYNC_THREADS;
+   private int asyncMaxInFlight = DEFAULT_ASYNC_MAX_IN_FLIGHT;
+   private long asyncSubmitTimeout = DEFAULT_ASYNC_SUBMIT_TIMEOUT;
 
 	public JpaCacheStoreConfig() {
 		cacheLoaderClassName = JpaCacheStore.class.getName();
@@ -29,6 +68,32 @@ public class JpaCacheStoreConfig extends LockSupportCacheStoreConfig {
 		setProperty(config.getPersistenceUnitName(), "persistenceUnitName", p);
 		setProperty(config.getEntityClassName(), "entityClassName", p);
 		setProperty(String.valueOf(config.getBatchSize()), "batchSize", p);
+		setProperty(String.valueOf(config.getStreamCommitInterval()), "streamCommitInterval", p);
+		setProperty(String.valueOf(config.isPersistStreamedEntities()), "persistStreamedEntities", p);
+		setProperty(String.valueOf(config.isNativeUpsert()), "nativeUpsert", p);
+		setProperty(String.valueOf(config.isStoreMetadata()), "storeMetadata", p);
+		setProperty(config.getExpiryAttribute(), "expiryAttribute", p);
+		setProperty(String.valueOf(config.getPurgeBatchSize()), "purgeBatchSize", p);
+		setProperty(String.valueOf(config.isKeyFilter()), "keyFilter", p);
+		setProperty(String.valueOf(config.getKeyFilterFalsePositiveRate()), "keyFilterFalsePositiveRate", p);
+		setProperty(String.valueOf(config.getKeyFilterMaxMemory()), "keyFilterMaxMemory", p);
+		setProperty(String.valueOf(config.getEntityManagerPoolSize()), "entityManagerPoolSize", p);
+		setProperty(String.valueOf(config.getEntityManagerMaxUses()), "entityManagerMaxUses", p);
+		setProperty(config.getFetchAttributes(), "fetchAttributes", p);
+		setProperty(String.valueOf(config.getWriteBehindInterval()), "writeBehindInterval", p);
+		setProperty(String.valueOf(config.getWriteBehindThreshold()), "writeBehindThreshold", p);
+		setProperty(String.valueOf(config.getWriteBehindMaxQueueSize()), "writeBehindMaxQueueSize", p);
+		setProperty(String.valueOf(config.getWriteBehindMaxAttempts()), "writeBehindMaxAttempts", p);
+		setProperty(String.valueOf(config.isAsyncStart()), "asyncStart", p);
+		setProperty(String.valueOf(config.getStartupTimeout()), "startupTimeout", p);
+		setProperty(config.getShardPersistenceUnitNames(), "shardPersistenceUnitNames", p);
+		setProperty(config.getShardFunction(), "shardFunction", p);
+		setProperty(String.valueOf(config.getShardThreads()), "shardThreads", p);
+		setProperty(config.getReadPersistenceUnitName(), "readPersistenceUnitName", p);
+		setProperty(String.valueOf(config.getReadYourWritesWindow()), "readYourWritesWindow", p);
+		setProperty(String.valueOf(config.getAsyncThreads()), "asyncThreads", p);
+		setProperty(String.valueOf(config.getAsyncMaxInFlight()), "asyncMaxInFlight", p);
+		setProperty(String.valueOf(config.getAsyncSubmitTimeout()), "asyncSubmitTimeout", p);
 	}
 
 	public String getPersistenceUnitName() {
@@ -67,6 +132,214 @@ public class JpaCacheStoreConfig extends LockSupportCacheStoreConfig {
 		this.batchSize = batchSize;
 	}
 
+	public int getStreamCommitInterval() {
+		return streamCommitInterval;
+	}
+
+	public void setStreamCommitInterval(int streamCommitInterval) {
+		this.streamCommitInterval = streamCommitInterval;
+	}
+
+	public boolean isPersistStreamedEntities() {
+		return persistStreamedEntities;
+	}
+
+	public void setPersistStreamedEntities(boolean persistStreamedEntities) {
+		this.persistStreamedEntities = persistStreamedEntities;
+	}
+
+	public boolean isNativeUpsert() {
+		return nativeUpsert;
+	}
+
+	public void setNativeUpsert(boolean nativeUpsert) {
+		this.nativeUpsert = nativeUpsert;
+	}
+
+	public boolean isStoreMetadata() {
+		return storeMetadata;
+	}
+
+	public void setStoreMetadata(boolean storeMetadata) {
+		this.storeMetadata = storeMetadata;
+	}
+
+	public String getExpiryAttribute() {
+		return expiryAttribute;
+	}
+
+	public void setExpiryAttribute(String expiryAttribute) {
+		this.expiryAttribute = expiryAttribute;
+	}
+
+	public int getPurgeBatchSize() {
+		return purgeBatchSize;
+	}
+
+	public void setPurgeBatchSize(int purgeBatchSize) {
+		this.purgeBatchSize = purgeBatchSize;
+	}
+
+	public boolean isKeyFilter() {
+		return keyFilter;
+	}
+
+	public void setKeyFilter(boolean keyFilter) {
+		this.keyFilter = keyFilter;
+	}
+
+	public double getKeyFilterFalsePositiveRate() {
+		return keyFilterFalsePositiveRate;
+	}
+
+	public void setKeyFilterFalsePositiveRate(double keyFilterFalsePositiveRate) {
+		this.keyFilterFalsePositiveRate = keyFilterFalsePositiveRate;
+	}
+
+	public long getKeyFilterMaxMemory() {
+		return keyFilterMaxMemory;
+	}
+
+	public void setKeyFilterMaxMemory(long keyFilterMaxMemory) {
+		this.keyFilterMaxMemory = keyFilterMaxMemory;
+	}
+
+	public int getEntityManagerPoolSize() {
+		return entityManagerPoolSize;
+	}
+
+	public void setEntityManagerPoolSize(int entityManagerPoolSize) {
+		this.entityManagerPoolSize = entityManagerPoolSize;
+	}
+
+	public int getEntityManagerMaxUses() {
+		return entityManagerMaxUses;
+	}
+
+	public void setEntityManagerMaxUses(int entityManagerMaxUses) {
+		this.entityManagerMaxUses = entityManagerMaxUses;
+	}
+
+	public String getFetchAttributes() {
+		return fetchAttributes;
+	}
+
+	public void setFetchAttributes(String fetchAttributes) {
+		this.fetchAttributes = fetchAttributes;
+	}
+
+	public long getWriteBehindInterval() {
+		return writeBehindInterval;
+	}
+
+	public void setWriteBehindInterval(long writeBehindInterval) {
+		this.writeBehindInterval = writeBehindInterval;
+	}
+
+	public int getWriteBehindThreshold() {
+		return writeBehindThreshold;
+	}
+
+	public void setWriteBehindThreshold(int writeBehindThreshold) {
+		this.writeBehindThreshold = writeBehindThreshold;
+	}
+
+	public int getWriteBehindMaxQueueSize() {
+		return writeBehindMaxQueueSize;
+	}
+
+	public void setWriteBehindMaxQueueSize(int writeBehindMaxQueueSize) {
+		this.writeBehindMaxQueueSize = writeBehindMaxQueueSize;
+	}
+
+	public int getWriteBehindMaxAttempts() {
+		return writeBehindMaxAttempts;
+	}
+
+	public void setWriteBehindMaxAttempts(int writeBehindMaxAttempts) {
+		this.writeBehindMaxAttempts = writeBehindMaxAttempts;
+	}
+
+	public boolean isAsyncStart() {
+		return asyncStart;
+	}
+
+	public void setAsyncStart(boolean asyncStart) {
+		this.asyncStart = asyncStart;
+	}
+
+	public long getStartupTimeout() {
+		return startupTimeout;
+	}
+
+	public void setStartupTimeout(long startupTimeout) {
+		this.startupTimeout = startupTimeout;
+	}
+
+	public String getShardPersistenceUnitNames() {
+		return shardPersistenceUnitNames;
+	}
+
+	public void setShardPersistenceUnitNames(String shardPersistenceUnitNames) {
+		this.shardPersistenceUnitNames = shardPersistenceUnitNames;
+	}
+
+	public String getShardFunction() {
+		return shardFunction;
+	}
+
+	public void setShardFunction(String shardFunction) {
+		this.shardFunction = shardFunction;
+	}
+
+	public int getShardThreads() {
+		return shardThreads;
+	}
+
+	public void setShardThreads(int shardThreads) {
+		this.shardThreads = shardThreads;
+	}
+
+	public String getReadPersistenceUnitName() {
+		return readPersistenceUnitName;
+	}
+
+	public void setReadPersistenceUnitName(String readPersistenceUnitName) {
+		this.readPersistenceUnitName = readPersistenceUnitName;
+	}
+
+	public long getReadYourWritesWindow() {
+		return readYourWritesWindow;
+	}
+
+	public void setReadYourWritesWindow(long readYourWritesWindow) {
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	public int getAsyncMaxInFlight() {
+		return asyncMaxInFlight;
+	}
+
+	public void setAsyncMaxInFlight(int asyncMaxInFlight) {
+		this.asyncMaxInFlight = asyncMaxInFlight;
+	}
+
+	public long getAsyncSubmitTimeout() {
+		return asyncSubmitTimeout;
+	}
+
+	public void setAsyncSubmitTimeout(long asyncSubmitTimeout) {
+		this.asyncSubmitTimeout = asyncSubmitTimeout;
+	}
+
 	protected void setProperty(String properyValue, String propertyName,
 			Properties p) {
 		if (properyValue != null) {
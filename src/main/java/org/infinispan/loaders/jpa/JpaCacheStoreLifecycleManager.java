@@ -1,15 +1,48 @@
 package org.infinispan.loaders.jpa;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.global.GlobalConfiguration;
+import org.infinispan.factories.ComponentRegistry;
 import org.infinispan.factories.GlobalComponentRegistry;
 import org.infinispan.lifecycle.AbstractModuleLifecycle;
+import org.infinispan.util.logging.Log;
+import org.infinispan.util.logging.LogFactory;
 
 public class JpaCacheStoreLifecycleManager extends AbstractModuleLifecycle {
+   private static final Log log = LogFactory.getLog(JpaCacheStoreLifecycleManager.class);
+
+   /**
+    * The start time of the caches being started, so that their startup time, which includes
+    * the bootstrap of the entity manager factories of their stores, can be logged.
+    */
+   private final ConcurrentMap<String, Long> cachesStarting = new ConcurrentHashMap<String, Long>();
+
    @Override
    public void cacheManagerStarting(GlobalComponentRegistry gcr, GlobalConfiguration globalConfiguration) {
       gcr.registerComponent(new EntityManagerFactoryRegistry(), EntityManagerFactoryRegistry.class);
    }
-   
+
+   @Override
+   public void cacheStarting(ComponentRegistry cr, Configuration configuration, String cacheName) {
+      cachesStarting.put(cacheName, System.nanoTime());
+   }
+
+   @Override
+   public void cacheStarted(ComponentRegistry cr, String cacheName) {
+      Long start = cachesStarting.remove(cacheName);
+      if (start == null || !log.isDebugEnabled())
+         return;
+
+      EntityManagerFactoryRegistry registry = cr.getGlobalComponentRegistry().getComponent(EntityManagerFactoryRegistry.class);
+      log.debugf("Cache %s started in %d ms, %d entity manager factories bootstrapped in %d ms so far",
+            cacheName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+            registry.getBootstrapCount(), registry.getTotalBootstrapTime(TimeUnit.MILLISECONDS));
+   }
+
    @Override
    public void cacheManagerStopping(GlobalComponentRegistry gcr) {
       gcr.getComponent(EntityManagerFactoryRegistry.class).closeAll();
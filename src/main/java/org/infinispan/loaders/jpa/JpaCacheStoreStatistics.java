@@ -0,0 +1,274 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Operation counters and latency histograms of a {@link JpaCacheStore}, also exposed as an
+ * MBean when JMX statistics are enabled for the cache manager. Besides its own counters, the
+ * MBean exposes the lock, entity manager, load coalescing, write-behind, read replica and
+ * asynchronous operation counters of the store. Only completed operations are recorded.
+ * Latencies are reported in microseconds, and include the wait for the locks of the operation
+ * wherever the store observes it: single key operations are timed from the lock request, see
+ * {@link LockingKey}, and the bulk operations locking their keys from before the locks are
+ * acquired. Clear, LoadAll, LoadKeys, ToStream and FromStream are timed from the time the
+ * global lock is held, since it is acquired by the base class.
+ */
+public final class JpaCacheStoreStatistics implements DynamicMBean {
+
+	/**
+	 * The operations of the store. <code>LOAD_ALL</code> loads all the entries, or the first
+	 * ones, <code>LOAD_BATCH</code> the entries of the given keys and <code>LOAD_KEYS</code>
+	 * either loads or processes the stored keys. Write-behind flushes count as
+	 * <code>APPLY_MODIFICATIONS</code>.
+	 */
+	public enum Operation {
+		LOAD("Load", false),
+		LOAD_ALL("LoadAll", true),
+		LOAD_BATCH("LoadBatch", true),
+		LOAD_KEYS("LoadKeys", true),
+		STORE("Store", false),
+		REMOVE("Remove", false),
+		REMOVE_ALL("RemoveAll", true),
+		CLEAR("Clear", false),
+		APPLY_MODIFICATIONS("ApplyModifications", true),
+		PURGE("Purge", false),
+		TO_STREAM("ToStream", true),
+		FROM_STREAM("FromStream", true);
+
+		private final String attributePrefix;
+		private final boolean bulk;
+
+		private Operation(String attributePrefix, boolean bulk) {
+			this.attributePrefix = attributePrefix;
+			this.bulk = bulk;
+		}
+
+		/**
+		 * @return whether the operation reads or writes a variable number of rows
+		 */
+		public boolean isBulk() {
+			return bulk;
+		}
+	}
+
+	private final JpaCacheStore store;
+	private final LogHistogram[] latencies = new LogHistogram[Operation.values().length];
+	private final LogHistogram[] rows = new LogHistogram[Operation.values().length];
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final MBeanInfo info;
+
+	JpaCacheStoreStatistics(JpaCacheStore store) {
+		this.store = store;
+		for (Operation operation : Operation.values()) {
+			latencies[operation.ordinal()] = new LogHistogram();
+			if (operation.isBulk())
+				rows[operation.ordinal()] = new LogHistogram();
+		}
+		this.info = createMBeanInfo();
+	}
+
+	void record(Operation operation, long startNanos) {
+		latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+	}
+
+	void record(Operation operation, long startNanos, long rowCount) {
+		latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+		rows[operation.ordinal()].record(rowCount);
+	}
+
+	void recordLoad(long startNanos, boolean hit) {
+		latencies[Operation.LOAD.ordinal()].record(System.nanoTime() - startNanos);
+		if (hit)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+	}
+
+	/**
+	 * @return the latencies of the operation, in nanoseconds
+	 */
+	public LogHistogram getLatencies(Operation operation) {
+		return latencies[operation.ordinal()];
+	}
+
+	/**
+	 * @return the number of rows read or written by each execution of a bulk operation, or
+	 *         <code>null</code> if the operation is not a bulk operation
+	 */
+	public LogHistogram getRows(Operation operation) {
+		return rows[operation.ordinal()];
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void reset() {
+		for (Operation operation : Operation.values()) {
+			latencies[operation.ordinal()].reset();
+			if (operation.isBulk())
+				rows[operation.ordinal()].reset();
+		}
+		hits.set(0);
+		misses.set(0);
+		store.getLockStatistics().reset();
+	}
+
+	private MBeanInfo createMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Operation operation : Operation.values()) {
+			String name = operation.attributePrefix;
+			attributes.add(attribute(name + "Count", "Number of " + name + " operations"));
+			attributes.add(attribute(name + "LatencyP50", "Median " + name + " latency, in microseconds"));
+			attributes.add(attribute(name + "LatencyP99", "99th percentile " + name + " latency, in microseconds"));
+			attributes.add(attribute(name + "LatencyP999", "99.9th percentile " + name + " latency, in microseconds"));
+			if (operation.isBulk()) {
+				attributes.add(attribute(name + "RowsP50", "Median number of rows per " + name + " operation"));
+				attributes.add(attribute(name + "RowsP99", "99th percentile number of rows per " + name + " operation"));
+			}
+		}
+		attributes.add(attribute("Hits", "Number of loads which found an entry"));
+		attributes.add(attribute("Misses", "Number of loads which found no entry"));
+		attributes.add(attribute("LockAcquisitions", "Number of key locks acquired"));
+		attributes.add(attribute("LockWaitTime", "Time spent waiting for the locks of bulk operations, in milliseconds"));
+		attributes.add(attribute("MostContendedLockStripe", "Lock stripe with the largest wait time"));
+		attributes.add(attribute("EntityManagersCreated", "Number of entity managers created"));
+		attributes.add(attribute("EntityManagersReused", "Number of times a pooled entity manager was reused"));
+		attributes.add(attribute("CoalescedLoads", "Number of loads which waited for a concurrent load of the same key"));
+		attributes.add(attribute("WriteBehindPending", "Number of keys with a modification queued by write-behind"));
+		attributes.add(attribute("WriteBehindCoalesced", "Number of queued modifications replaced before being written"));
+		attributes.add(attribute("WriteBehindFlushes", "Number of write-behind flushes"));
+		attributes.add(attribute("WriteBehindOverflows", "Number of modifications written immediately because the write-behind queue was full"));
+		attributes.add(attribute("WriteBehindDropped", "Number of queued modifications dropped after repeatedly failing to be written"));
+		attributes.add(attribute("ReplicaReads", "Number of reads from the read replica"));
+		attributes.add(attribute("ReplicaFailures", "Number of reads from the read replica which failed over to the primary"));
+		attributes.add(attribute("AsyncInFlight", "Number of asynchronous operations submitted and not yet completed"));
+
+		MBeanOperationInfo reset = new MBeanOperationInfo("resetStatistics", "Resets the statistics",
+				new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+		return new MBeanInfo(getClass().getName(), "Statistics of a JPA cache store",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[] { reset }, null);
+	}
+
+	private static MBeanAttributeInfo attribute(String name, String description) {
+		return new MBeanAttributeInfo(name, "long", description, true, false, false);
+	}
+
+	@Override
+	public Object getAttribute(String name) throws AttributeNotFoundException {
+		if (name.equals("Hits"))
+			return hits.get();
+		if (name.equals("Misses"))
+			return misses.get();
+		if (name.equals("LockAcquisitions"))
+			return store.getLockStatistics().getTotalAcquisitions();
+		if (name.equals("LockWaitTime"))
+			return store.getLockStatistics().getTotalWaitTime(TimeUnit.MILLISECONDS);
+		if (name.equals("MostContendedLockStripe"))
+			return (long) store.getLockStatistics().getMostContendedStripe();
+		if (name.equals("EntityManagersCreated"))
+			return store.getEntityManagersCreated();
+		if (name.equals("EntityManagersReused"))
+			return store.getEntityManagersReused();
+		if (name.equals("CoalescedLoads"))
+			return store.getCoalescedLoadCount();
+		if (name.equals("ReplicaReads"))
+			return store.getReplicaReads();
+		if (name.equals("ReplicaFailures"))
+			return store.getReplicaFailures();
+		if (name.equals("AsyncInFlight"))
+			return (long) store.getAsyncInFlight();
+		if (name.startsWith("WriteBehind")) {
+			WriteBehindQueue queue = store.getWriteBehindQueue();
+			if (name.equals("WriteBehindPending"))
+				return queue == null ? 0L : (long) queue.getPendingCount();
+			if (name.equals("WriteBehindCoalesced"))
+				return queue == null ? 0L : queue.getCoalescedCount();
+			if (name.equals("WriteBehindFlushes"))
+				return queue == null ? 0L : queue.getFlushCount();
+			if (name.equals("WriteBehindOverflows"))
+				return queue == null ? 0L : queue.getOverflowCount();
+			if (name.equals("WriteBehindDropped"))
+				return queue == null ? 0L : queue.getDroppedCount();
+		}
+
+		for (Operation operation : Operation.values()) {
+			if (!name.startsWith(operation.attributePrefix))
+				continue;
+
+			String metric = name.substring(operation.attributePrefix.length());
+			LogHistogram latency = latencies[operation.ordinal()];
+			if (metric.equals("Count"))
+				return latency.getCount();
+			if (metric.equals("LatencyP50"))
+				return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.5));
+			if (metric.equals("LatencyP99"))
+				return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99));
+			if (metric.equals("LatencyP999"))
+				return TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.999));
+			if (operation.isBulk() && metric.equals("RowsP50"))
+				return rows[operation.ordinal()].getPercentile(0.5);
+			if (operation.isBulk() && metric.equals("RowsP99"))
+				return rows[operation.ordinal()].getPercentile(0.99);
+		}
+		throw new AttributeNotFoundException(name);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			try {
+				list.add(new Attribute(name, getAttribute(name)));
+			} catch (AttributeNotFoundException e) {
+				// skipped, as specified by DynamicMBean
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		if (actionName.equals("resetStatistics")) {
+			reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+}
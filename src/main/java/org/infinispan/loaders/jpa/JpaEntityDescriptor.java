@@ -0,0 +1,598 @@
+package org.infinispan.loaders.jpa;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.GeneratedValue;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import javax.persistence.metamodel.Type.PersistenceType;
+
+/**
+ * Immutable description of the entity stored by a {@link JpaCacheStore}, resolved once from
+ * the metamodel when the store starts, together with the JPQL statements the store issues.
+ */
+final class JpaEntityDescriptor {
+	static final String ALIAS = "e";
+
+	/**
+	 * The statements matching a number of identifiers, built once per number. The numbers are
+	 * bounded by the batch sizes of the store, and simple identifiers are matched by a single
+	 * statement for all the numbers above one.
+	 */
+	private abstract class QueriesByCount {
+		private final ConcurrentMap<Integer, String> queries = new ConcurrentHashMap<Integer, String>();
+
+		String get(int count) {
+			Integer key = idComponents == null ? Math.min(count, 2) : count;
+			String query = queries.get(key);
+			if (query == null) {
+				query = build(key);
+				String existing = queries.putIfAbsent(key, query);
+				if (existing != null)
+					query = existing;
+			}
+			return query;
+		}
+
+		abstract String build(int count);
+	}
+
+	private final Class<?> entityClass;
+	private final EntityType<?> entityType;
+	private final String entityName;
+	private final Class<?> idJavaType;
+	private final SingularAttribute<?, ?> idAttribute;
+	private final List<SingularAttribute<?, ?>> idComponents;
+	private final List<String> idPaths;
+	private final PersistenceUnitUtil util;
+	private final boolean bulkDeleteSupported;
+	private final SingularAttribute<?, ?> expiryAttribute;
+	private final List<String> fetchAttributes;
+
+	private final String from;
+	private final String orderBy;
+	private final String deleteAllQuery;
+	private final String countQuery;
+	private final String countByIdQuery;
+	private final String firstExpiredIdsQuery;
+	private final String nextExpiredIdsQuery;
+	private final String expiryBoundQuery;
+	private final String deleteExpiredQuery;
+	private final String deleteExpiredUpToQuery;
+	private final QueriesByCount deleteByIdsQueries;
+	private final QueriesByCount selectByIdsQueries;
+	private final QueriesByCount selectExpiredByIdsQueries;
+	private final QueriesByCount firstIdsPageQueries;
+	private final QueriesByCount nextIdsPageQueries;
+	private final QueriesByCount firstPageQueries;
+	private final QueriesByCount nextPageQueries;
+	private final Map<String, QueriesByCount> fetchQueries;
+
+	private JpaEntityDescriptor(EntityManagerFactory emf, EntityType<?> entityType,
+			SingularAttribute<?, ?> expiryAttribute, List<String> fetchAttributes) {
+		this.entityClass = entityType.getJavaType();
+		this.entityType = entityType;
+		this.entityName = entityType.getName();
+
+		Type<?> idType = entityType.getIdType();
+		this.idJavaType = box(idType.getJavaType());
+		this.idAttribute = entityType.getId(idType.getJavaType());
+		makeAccessible(idAttribute);
+		if (idType.getPersistenceType() == PersistenceType.EMBEDDABLE) {
+			List<SingularAttribute<?, ?>> components = new ArrayList<SingularAttribute<?, ?>>(
+					emf.getMetamodel().embeddable(idType.getJavaType()).getSingularAttributes());
+			for (SingularAttribute<?, ?> component : components)
+				makeAccessible(component);
+			this.idComponents = Collections.unmodifiableList(components);
+		} else {
+			this.idComponents = null;
+		}
+		this.util = emf.getPersistenceUnitUtil();
+		// bulk deletes bypass cascades, so only use them for entities without collections
+		this.bulkDeleteSupported = entityType.getPluralAttributes().isEmpty();
+		this.expiryAttribute = expiryAttribute;
+		this.fetchAttributes = fetchAttributes;
+
+		String path = ALIAS + "." + idAttribute.getName();
+		if (idComponents == null) {
+			this.idPaths = Collections.singletonList(path);
+		} else {
+			List<String> paths = new ArrayList<String>(idComponents.size());
+			for (SingularAttribute<?, ?> component : idComponents)
+				paths.add(path + "." + component.getName());
+			this.idPaths = Collections.unmodifiableList(paths);
+		}
+
+		StringBuilder sb = new StringBuilder(" ORDER BY ");
+		for (int i = 0; i < idPaths.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(idPaths.get(i));
+		}
+		this.orderBy = sb.toString();
+
+		this.from = " FROM " + entityName + " " + ALIAS;
+		final String selectIds = "SELECT " + ALIAS + "." + idAttribute.getName() + from;
+		final String keyset = keysetPredicate();
+		this.deleteAllQuery = "DELETE FROM " + entityName;
+		this.countQuery = "SELECT COUNT(" + ALIAS + ")" + from;
+		this.countByIdQuery = countQuery + " WHERE " + idPredicate(1);
+
+		if (expiryAttribute != null) {
+			String expiry = ALIAS + "." + expiryAttribute.getName();
+			final String expiryPredicate = expiry + " < :now";
+			this.firstExpiredIdsQuery = selectIds + " WHERE " + expiryPredicate + orderBy;
+			this.nextExpiredIdsQuery = selectIds + " WHERE " + expiryPredicate + " AND (" + keyset + ")" + orderBy;
+			this.expiryBoundQuery = "SELECT " + expiry + from + " WHERE " + expiryPredicate + " ORDER BY " + expiry;
+			this.deleteExpiredQuery = "DELETE" + from + " WHERE " + expiryPredicate;
+			this.deleteExpiredUpToQuery = "DELETE" + from + " WHERE " + expiry + " <= :bound";
+			this.selectExpiredByIdsQueries = new QueriesByCount() {
+				@Override
+				String build(int count) {
+					return "SELECT " + ALIAS + from + " WHERE (" + idPredicate(count) + ") AND " + expiryPredicate;
+				}
+			};
+		} else {
+			this.firstExpiredIdsQuery = null;
+			this.nextExpiredIdsQuery = null;
+			this.expiryBoundQuery = null;
+			this.deleteExpiredQuery = null;
+			this.deleteExpiredUpToQuery = null;
+			this.selectExpiredByIdsQueries = null;
+		}
+
+		this.deleteByIdsQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				return "DELETE" + from + " WHERE " + idPredicate(count);
+			}
+		};
+		this.selectByIdsQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				return "SELECT " + ALIAS + from + " WHERE " + idPredicate(count);
+			}
+		};
+		this.firstIdsPageQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				if (count == 0)
+					return selectIds + orderBy;
+				return selectIds + " WHERE NOT (" + idPredicate(count) + ")" + orderBy;
+			}
+		};
+		this.nextIdsPageQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				if (count == 0)
+					return selectIds + " WHERE (" + keyset + ")" + orderBy;
+				return selectIds + " WHERE (" + keyset + ") AND NOT (" + idPredicate(count) + ")" + orderBy;
+			}
+		};
+		this.firstPageQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				if (count == 0)
+					return "SELECT " + ALIAS + from + orderBy;
+				return "SELECT " + ALIAS + from + " WHERE NOT (" + idPredicate(count) + ")" + orderBy;
+			}
+		};
+		this.nextPageQueries = new QueriesByCount() {
+			@Override
+			String build(int count) {
+				if (count == 0)
+					return "SELECT " + ALIAS + from + " WHERE " + keyset + orderBy;
+				return "SELECT " + ALIAS + from + " WHERE (" + keyset + ") AND NOT (" + idPredicate(count) + ")" + orderBy;
+			}
+		};
+
+		Map<String, QueriesByCount> fetch = new HashMap<String, QueriesByCount>();
+		for (final String fetchAttribute : fetchAttributes) {
+			fetch.put(fetchAttribute, new QueriesByCount() {
+				@Override
+				String build(int count) {
+					return "SELECT DISTINCT " + ALIAS + from + " LEFT JOIN FETCH " + ALIAS + "." + fetchAttribute
+							+ " WHERE " + idPredicate(count);
+				}
+			});
+		}
+		this.fetchQueries = fetch;
+	}
+
+	/**
+	 * Resolves the descriptor of the entity class from the metamodel of the EntityManagerFactory.
+	 *
+	 * @throws JpaCacheLoaderException if the entity class cannot be stored by a JpaCacheStore
+	 */
+	static JpaEntityDescriptor create(EntityManagerFactory emf, JpaCacheStoreConfig config)
+			throws JpaCacheLoaderException {
+		EntityType<?> et;
+
+		try {
+			et = emf.getMetamodel()
+				.entity(config.getEntityClass());
+		} catch (IllegalArgumentException e) {
+			throw new JpaCacheLoaderException("Entity class [" + config.getEntityClassName() + " specified in configuration is not recognized by the EntityManagerFactory with Persistence Unit [" + config.getPersistenceUnitName() + "]", e);
+		}
+
+		if (!et.hasSingleIdAttribute()) {
+			throw new JpaCacheLoaderException(
+					"Entity class has more than one identifier.  It must have only one identifier.");
+		}
+
+		Class<?> idJavaType = et.getIdType().getJavaType();
+
+		if (idJavaType.isAnnotationPresent(GeneratedValue.class)) {
+			throw new JpaCacheLoaderException(
+					"Entity class has one identifier, but it must not have @GeneratedValue annotation");
+		}
+
+		SingularAttribute<?, ?> expiryAttribute = null;
+		if (config.getExpiryAttribute() != null) {
+			try {
+				expiryAttribute = et.getSingularAttribute(config.getExpiryAttribute());
+			} catch (IllegalArgumentException e) {
+				throw new JpaCacheLoaderException("Expiry attribute [" + config.getExpiryAttribute() + "] is not an attribute of entity class " + config.getEntityClassName(), e);
+			}
+
+			Class<?> type = box(expiryAttribute.getJavaType());
+			if (type != Long.class && !Date.class.isAssignableFrom(type) && !Calendar.class.isAssignableFrom(type)) {
+				throw new JpaCacheLoaderException("Expiry attribute [" + config.getExpiryAttribute() + "] must be a long, a Date or a Calendar, but is a " + type.getName());
+			}
+		}
+
+		List<String> fetchAttributes = new ArrayList<String>();
+		if (config.getFetchAttributes() != null) {
+			for (String name : config.getFetchAttributes().split(",")) {
+				name = name.trim();
+				if (name.length() == 0)
+					continue;
+
+				Attribute<?, ?> attribute;
+				try {
+					attribute = et.getAttribute(name);
+				} catch (IllegalArgumentException e) {
+					throw new JpaCacheLoaderException("Fetch attribute [" + name + "] is not an attribute of entity class " + config.getEntityClassName(), e);
+				}
+				switch (attribute.getPersistentAttributeType()) {
+				case BASIC:
+				case EMBEDDED:
+					throw new JpaCacheLoaderException("Fetch attribute [" + name + "] of entity class " + config.getEntityClassName() + " is not an association");
+				default:
+					fetchAttributes.add(name);
+				}
+			}
+		}
+
+		return new JpaEntityDescriptor(emf, et, expiryAttribute, Collections.unmodifiableList(fetchAttributes));
+	}
+
+	Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	EntityType<?> getEntityType() {
+		return entityType;
+	}
+
+	String getEntityName() {
+		return entityName;
+	}
+
+	SingularAttribute<?, ?> getIdAttribute() {
+		return idAttribute;
+	}
+
+	/**
+	 * @return the components of the embedded identifier, or <code>null</code> if the identifier
+	 *         is a basic attribute
+	 */
+	List<SingularAttribute<?, ?>> getIdComponents() {
+		return idComponents;
+	}
+
+	boolean isBulkDeleteSupported() {
+		return bulkDeleteSupported;
+	}
+
+	/**
+	 * @return the attribute holding the expiry time of the entity, or <code>null</code> if
+	 *         none is configured
+	 */
+	SingularAttribute<?, ?> getExpiryAttribute() {
+		return expiryAttribute;
+	}
+
+	/**
+	 * @return the query selecting, in identifier order, the identifiers of the entities expired
+	 *         before <code>:now</code>, optionally after the identifier bound with
+	 *         {@link #setKeysetParameters(Query, Object)}
+	 */
+	String getExpiredIdsQuery(boolean first) {
+		return first ? firstExpiredIdsQuery : nextExpiredIdsQuery;
+	}
+
+	/**
+	 * @return the query selecting, in expiry order, the expiry times of the entities expired
+	 *         before <code>:now</code>
+	 */
+	String getExpiryBoundQuery() {
+		return expiryBoundQuery;
+	}
+
+	/**
+	 * @return the bulk delete of the entities expired before <code>:now</code>
+	 */
+	String getDeleteExpiredQuery() {
+		return deleteExpiredQuery;
+	}
+
+	/**
+	 * @return the bulk delete of the entities expiring at or before <code>:bound</code>
+	 */
+	String getDeleteExpiredUpToQuery() {
+		return deleteExpiredUpToQuery;
+	}
+
+	/**
+	 * @return the query selecting the entities among <code>keyCount</code> identifiers that
+	 *         are still expired before <code>:now</code>
+	 */
+	String getSelectExpiredByIdsQuery(int keyCount) {
+		return selectExpiredByIdsQueries.get(keyCount);
+	}
+
+	/**
+	 * @return the given time converted to the type of the expiry attribute, to be bound to
+	 *         <code>:now</code>
+	 */
+	Object toExpiryValue(long time) {
+		Class<?> type = expiryAttribute.getJavaType();
+		if (Calendar.class.isAssignableFrom(type)) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(time);
+			return calendar;
+		}
+		if (Timestamp.class.isAssignableFrom(type))
+			return new Timestamp(time);
+		if (java.sql.Date.class.isAssignableFrom(type))
+			return new java.sql.Date(time);
+		if (Date.class.isAssignableFrom(type))
+			return new Date(time);
+		return Long.valueOf(time);
+	}
+
+	boolean isValidKey(Object key) {
+		return idJavaType.isInstance(key);
+	}
+
+	Object getIdentifier(Object entity) {
+		return util.getIdentifier(entity);
+	}
+
+	/**
+	 * @return the associations fetched along with loaded entities
+	 */
+	List<String> getFetchAttributes() {
+		return fetchAttributes;
+	}
+
+	/**
+	 * @return the query fetching the association of the entities with the given number of
+	 *         identifiers, bound with {@link #setIdParameters(Query, List)}
+	 */
+	String getFetchQuery(String fetchAttribute, int keyCount) {
+		return fetchQueries.get(fetchAttribute).get(keyCount);
+	}
+
+	String getDeleteAllQuery() {
+		return deleteAllQuery;
+	}
+
+	String getCountQuery() {
+		return countQuery;
+	}
+
+	/**
+	 * @return the query counting the entities of the identifier bound with
+	 *         {@link #setIdParameter(Query, Object)}, without loading them
+	 */
+	String getCountByIdQuery() {
+		return countByIdQuery;
+	}
+
+	/**
+	 * @return the query selecting a page of identifiers in identifier order, optionally after
+	 *         the identifier bound with {@link #setKeysetParameters(Query, Object)} and
+	 *         excluding <code>excludedCount</code> identifiers bound with
+	 *         {@link #setIdParameters(Query, List)}
+	 */
+	String getIdsPageQuery(boolean first, int excludedCount) {
+		return first ? firstIdsPageQueries.get(excludedCount) : nextIdsPageQueries.get(excludedCount);
+	}
+
+	/**
+	 * @return the query selecting the first page of entities in identifier order, excluding
+	 *         <code>excludedCount</code> identifiers bound with
+	 *         {@link #setIdParameters(Query, List)}
+	 */
+	String getFirstPageQuery(int excludedCount) {
+		return firstPageQueries.get(excludedCount);
+	}
+
+	/**
+	 * @return the query selecting the page following the identifier bound with
+	 *         {@link #setKeysetParameters(Query, Object)}, excluding
+	 *         <code>excludedCount</code> identifiers bound with
+	 *         {@link #setIdParameters(Query, List)}
+	 */
+	String getNextPageQuery(int excludedCount) {
+		return nextPageQueries.get(excludedCount);
+	}
+
+	/**
+	 * @return the bulk delete of <code>keyCount</code> identifiers bound with
+	 *         {@link #setIdParameters(Query, List)}
+	 */
+	String getDeleteByIdsQuery(int keyCount) {
+		return deleteByIdsQueries.get(keyCount);
+	}
+
+	/**
+	 * @return the query selecting the entities of <code>keyCount</code> identifiers bound with
+	 *         {@link #setIdParameters(Query, List)}
+	 */
+	String getSelectByIdsQuery(int keyCount) {
+		return selectByIdsQueries.get(keyCount);
+	}
+
+	/**
+	 * Builds a JPQL predicate matching the identifier of the entity against
+	 * <code>keyCount</code> keys. Simple identifiers are matched with <code>IN</code>,
+	 * embedded identifiers with one conjunction of their components per key.
+	 */
+	String idPredicate(int keyCount) {
+		if (idComponents == null) {
+			return keyCount == 1 ? idPaths.get(0) + " = :id" : idPaths.get(0) + " IN (:ids)";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < keyCount; i++) {
+			if (i > 0)
+				sb.append(" OR ");
+			sb.append('(');
+			for (int j = 0; j < idPaths.size(); j++) {
+				if (j > 0)
+					sb.append(" AND ");
+				sb.append(idPaths.get(j)).append(" = :id").append(i).append('_').append(j);
+			}
+			sb.append(')');
+		}
+		return sb.toString();
+	}
+
+	void setIdParameter(Query query, Object key) {
+		if (idComponents == null) {
+			query.setParameter("id", key);
+			return;
+		}
+
+		for (int j = 0; j < idComponents.size(); j++)
+			query.setParameter("id0_" + j, getAttributeValue(idComponents.get(j), key));
+	}
+
+	void setIdParameters(Query query, List<?> keys) {
+		if (keys.size() == 1) {
+			setIdParameter(query, keys.get(0));
+			return;
+		}
+
+		if (idComponents == null) {
+			query.setParameter("ids", keys);
+			return;
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			for (int j = 0; j < idComponents.size(); j++) {
+				query.setParameter("id" + i + "_" + j,
+						getAttributeValue(idComponents.get(j), keys.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * Binds the parameters of {@link #getNextPageQuery(int)} to the identifier of the last entity
+	 * of the previous page.
+	 */
+	void setKeysetParameters(Query query, Object lastId) {
+		if (idComponents == null) {
+			query.setParameter("k0", lastId);
+			return;
+		}
+
+		for (int i = 0; i < idComponents.size(); i++)
+			query.setParameter("k" + i, getAttributeValue(idComponents.get(i), lastId));
+	}
+
+	/**
+	 * Builds a predicate selecting the identifiers that sort after <code>:k0, :k1, ...</code>
+	 * in the lexicographic order of the identifier paths.
+	 */
+	private String keysetPredicate() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < idPaths.size(); i++) {
+			if (i > 0)
+				sb.append(" OR ");
+			sb.append('(');
+			for (int j = 0; j < i; j++)
+				sb.append(idPaths.get(j)).append(" = :k").append(j).append(" AND ");
+			sb.append(idPaths.get(i)).append(" > :k").append(i).append(')');
+		}
+		return sb.toString();
+	}
+
+	static void makeAccessible(Attribute<?, ?> attribute) {
+		Member member = attribute.getJavaMember();
+		if (member instanceof Field)
+			((Field) member).setAccessible(true);
+		else if (member instanceof Method)
+			((Method) member).setAccessible(true);
+	}
+
+	static Object getAttributeValue(Attribute<?, ?> attribute, Object o) {
+		Member member = attribute.getJavaMember();
+		try {
+			if (member instanceof Field) {
+				Field field = (Field) member;
+				if (!field.isAccessible())
+					field.setAccessible(true);
+				return field.get(o);
+			} else {
+				Method method = (Method) member;
+				if (!method.isAccessible())
+					method.setAccessible(true);
+				return method.invoke(o);
+			}
+		} catch (Exception e) {
+			throw new PersistenceException("Unable to read attribute [" + attribute.getName() + "] of " + o, e);
+		}
+	}
+
+	private static Class<?> box(Class<?> type) {
+		if (!type.isPrimitive())
+			return type;
+		if (type == int.class)
+			return Integer.class;
+		if (type == long.class)
+			return Long.class;
+		if (type == short.class)
+			return Short.class;
+		if (type == byte.class)
+			return Byte.class;
+		if (type == char.class)
+			return Character.class;
+		if (type == boolean.class)
+			return Boolean.class;
+		if (type == float.class)
+			return Float.class;
+		return Double.class;
+	}
+}
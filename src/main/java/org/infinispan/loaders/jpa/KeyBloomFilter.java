@@ -0,0 +1,91 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the keys stored by a {@link JpaCacheStore}, used to answer lookups of keys
+ * which are definitely not stored without querying the database. Keys can be added
+ * concurrently but not removed, so removed keys remain false positives until the filter is
+ * rebuilt. Keys are hashed from their 32 bit hash code, so keys with equal hash codes are
+ * indistinguishable whatever the size of the filter.
+ */
+final class KeyBloomFilter {
+	private static final double LN2 = Math.log(2);
+
+	private final AtomicLongArray words;
+	private final long bitCount;
+	private final int hashCount;
+
+	private KeyBloomFilter(int wordCount, int hashCount) {
+		this.words = new AtomicLongArray(wordCount);
+		this.bitCount = (long) wordCount * 64;
+		this.hashCount = hashCount;
+	}
+
+	/**
+	 * Creates a filter holding the expected number of keys at the false positive rate, or the
+	 * biggest filter fitting in <code>maxMemory</code> bytes if smaller.
+	 */
+	static KeyBloomFilter create(long expectedKeys, double falsePositiveRate, long maxMemory) {
+		long n = Math.max(expectedKeys, 1);
+		double bits = -n * Math.log(falsePositiveRate) / (LN2 * LN2);
+		long words = (long) Math.ceil(bits / 64);
+		words = Math.max(1, Math.min(words, Math.min(maxMemory / 8, Integer.MAX_VALUE)));
+		int hashCount = (int) Math.round((double) (words * 64) / n * LN2);
+		return new KeyBloomFilter((int) words, Math.max(1, Math.min(hashCount, 16)));
+	}
+
+	void add(Object key) {
+		long h1 = mix(key.hashCode());
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			while (((old = words.get(word)) & mask) == 0) {
+				if (words.compareAndSet(word, old, old | mask))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the key is definitely not stored
+	 */
+	boolean mightContain(Object key) {
+		long h1 = mix(key.hashCode());
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	void clear() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, 0);
+	}
+
+	long getBitCount() {
+		return bitCount;
+	}
+
+	int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * The 64 bit finalizer of MurmurHash3, see {@link LockStripeStatistics#mix(int)}.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,18 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.CacheLoaderException;
+
+/**
+ * Callback receiving the keys of a {@link JpaCacheStore} one at a time, see
+ * {@link JpaCacheStore#processKeys(java.util.Set, KeyProcessor)}.
+ */
+public interface KeyProcessor {
+
+	/**
+	 * Processes a stored key. The store is read locked while keys are processed, so the
+	 * processor must not modify the store.
+	 *
+	 * @return <code>true</code> to receive the next key, <code>false</code> to stop
+	 */
+	boolean processKey(Object key) throws CacheLoaderException;
+}
@@ -0,0 +1,140 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per stripe lock acquisition counters of a {@link JpaCacheStore}. The stripes group the
+ * locking keys of the store by their top bits, and their number is the lock concurrency level
+ * rounded up to the next power of two. They are not the segments of the
+ * {@link org.infinispan.util.concurrent.locks.StripedLock} of the store, whose hashing is
+ * private, so they tell which keys contend rather than which lock does.
+ * <p>
+ * Waits are only measured where the store takes the locks itself, which is when it locks
+ * several keys at once. The lock of a single key is taken by the
+ * {@link org.infinispan.loaders.LockSupportCacheStore} before the store is called, so only
+ * its acquisition is counted.
+ */
+public final class LockStripeStatistics {
+	private final int shift;
+	private final int mask;
+	private final AtomicLongArray acquisitions;
+	private final AtomicLongArray waitNanos;
+	private final AtomicLongArray maxWaitNanos;
+
+	LockStripeStatistics(int concurrencyLevel) {
+		int bits = 0;
+		int size = 1;
+		while (size < concurrencyLevel) {
+			bits++;
+			size <<= 1;
+		}
+		this.shift = 32 - bits;
+		this.mask = size - 1;
+		this.acquisitions = new AtomicLongArray(size);
+		this.waitNanos = new AtomicLongArray(size);
+		this.maxWaitNanos = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Spreads the bits of a key hash code so that keys with sequential hash codes, such as
+	 * small integers or strings differing in their last character, land on different stripes.
+	 * This is the finalizer of MurmurHash3.
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * @return the stripe of the locking key, which is already spread by {@link #mix(int)}
+	 */
+	int stripeOf(int lockingKey) {
+		return (lockingKey >>> shift) & mask;
+	}
+
+	/**
+	 * Counts the acquisition of a lock taken without measuring the wait.
+	 */
+	void recordAcquisition(int lockingKey) {
+		acquisitions.incrementAndGet(stripeOf(lockingKey));
+	}
+
+	/**
+	 * Counts the acquisition of a lock the store waited for the given time.
+	 */
+	void record(int lockingKey, long nanos) {
+		int stripe = stripeOf(lockingKey);
+		acquisitions.incrementAndGet(stripe);
+		waitNanos.addAndGet(stripe, nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get(stripe))) {
+			if (maxWaitNanos.compareAndSet(stripe, max, nanos))
+				break;
+		}
+	}
+
+	public int getStripeCount() {
+		return mask + 1;
+	}
+
+	public long getAcquisitions(int stripe) {
+		return acquisitions.get(stripe);
+	}
+
+	public long getWaitTime(int stripe, TimeUnit unit) {
+		return unit.convert(waitNanos.get(stripe), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(int stripe, TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(stripe), TimeUnit.NANOSECONDS);
+	}
+
+	public long getTotalAcquisitions() {
+		long total = 0;
+		for (int i = 0; i < acquisitions.length(); i++)
+			total += acquisitions.get(i);
+		return total;
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		long total = 0;
+		for (int i = 0; i < waitNanos.length(); i++)
+			total += waitNanos.get(i);
+		return unit.convert(total, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the stripe with the largest accumulated wait time
+	 */
+	public int getMostContendedStripe() {
+		int stripe = 0;
+		for (int i = 1; i < waitNanos.length(); i++) {
+			if (waitNanos.get(i) > waitNanos.get(stripe))
+				stripe = i;
+		}
+		return stripe;
+	}
+
+	public void reset() {
+		for (int i = 0; i < acquisitions.length(); i++) {
+			acquisitions.set(i, 0);
+			waitNanos.set(i, 0);
+			maxWaitNanos.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		int stripe = getMostContendedStripe();
+		return "LockStripeStatistics{stripes=" + getStripeCount()
+				+ ", acquisitions=" + getTotalAcquisitions()
+				+ ", waitMillis=" + getTotalWaitTime(TimeUnit.MILLISECONDS)
+				+ ", mostContendedStripe=" + stripe
+				+ ", mostContendedWaitMillis=" + getWaitTime(stripe, TimeUnit.MILLISECONDS) + "}";
+	}
+}
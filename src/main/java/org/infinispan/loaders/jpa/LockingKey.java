@@ -0,0 +1,50 @@
+package org.infinispan.loaders.jpa;
+
+/**
+ * The locking key of an entry of a {@link JpaCacheStore}, which selects the lock stripe from
+ * its hash, and remembers when its lock was requested. The locks of single key operations are
+ * acquired by {@link org.infinispan.loaders.LockSupportCacheStore} between the call to
+ * <code>getLockFromKey</code> and the call to the <code>*LockSafe</code> method, so the
+ * request time is the only way for the store to record latencies including the lock wait.
+ * Locking keys are equal and ordered by hash.
+ */
+public final class LockingKey implements Comparable<LockingKey> {
+	private final int hash;
+	private final long requestNanos;
+
+	LockingKey(int hash, long requestNanos) {
+		this.hash = hash;
+		this.requestNanos = requestNanos;
+	}
+
+	int getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which the lock was requested
+	 */
+	long getRequestNanos() {
+		return requestNanos;
+	}
+
+	@Override
+	public int compareTo(LockingKey other) {
+		return hash < other.hash ? -1 : hash == other.hash ? 0 : 1;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof LockingKey && ((LockingKey) obj).hash == hash;
+	}
+
+	@Override
+	public String toString() {
+		return "LockingKey{" + hash + "}";
+	}
+}
@@ -0,0 +1,136 @@
+package org.infinispan.loaders.jpa;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+/**
+ * Expiration metadata of an entry stored by a {@link JpaCacheStore} configured to store
+ * metadata. Only entries that can expire have a row; it is keyed by a digest of the entity name
+ * and the marshalled key, so that it can be shared by stores of different entity classes
+ * and does not depend on the type of the entity identifier.
+ */
+@Entity
+public class MetadataEntity implements Serializable {
+	private static final long serialVersionUID = -5327425484231856394L;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	@Id
+	@Column(length = 40)
+	private String id;
+
+	@Column(nullable = false)
+	private String entityName;
+
+	@Lob
+	@Basic(fetch = FetchType.EAGER)
+	@Column(nullable = false)
+	private byte[] keyBytes;
+
+	private long created;
+
+	private long lastUsed;
+
+	private long lifespan;
+
+	private long maxIdle;
+
+	/**
+	 * The time after which the entry is expired, in milliseconds since the epoch.
+	 */
+	private long expiration;
+
+	public MetadataEntity() {
+	}
+
+	public MetadataEntity(String entityName, byte[] keyBytes, long created,
+			long lastUsed, long lifespan, long maxIdle, long expiration) {
+		this.id = id(entityName, keyBytes);
+		this.entityName = entityName;
+		this.keyBytes = keyBytes;
+		this.created = created;
+		this.lastUsed = lastUsed;
+		this.lifespan = lifespan;
+		this.maxIdle = maxIdle;
+		this.expiration = expiration;
+	}
+
+	/**
+	 * @return the hex encoded SHA-1 digest of the entity name and the marshalled key
+	 */
+	public static String id(String entityName, byte[] keyBytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			digest.update(entityName.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update((byte) 0);
+		byte[] hash = digest.digest(keyBytes);
+
+		char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	public boolean isExpired(long now) {
+		return expiration >= 0 && expiration <= now;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public byte[] getKeyBytes() {
+		return keyBytes;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public long getLifespan() {
+		return lifespan;
+	}
+
+	public long getMaxIdle() {
+		return maxIdle;
+	}
+
+	public long getExpiration() {
+		return expiration;
+	}
+
+	@Override
+	public String toString() {
+		return "MetadataEntity{id=" + id + ", entityName=" + entityName
+				+ ", created=" + created + ", lastUsed=" + lastUsed
+				+ ", lifespan=" + lifespan + ", maxIdle=" + maxIdle
+				+ ", expiration=" + expiration + "}";
+	}
+}
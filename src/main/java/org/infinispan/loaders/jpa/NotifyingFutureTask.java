@@ -0,0 +1,57 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.util.logging.Log;
+import org.infinispan.util.logging.LogFactory;
+
+/**
+ * An asynchronous operation of a {@link JpaCacheStore}, notifying its listeners once it
+ * completes, fails or is cancelled. Listeners attached after completion are notified in the
+ * attaching thread, the others in the thread which completed the operation.
+ */
+class NotifyingFutureTask<T> extends FutureTask<T> implements NotifyingFuture<T> {
+	private static final Log log = LogFactory.getLog(NotifyingFutureTask.class);
+
+	private List<FutureListener<T>> listeners = new ArrayList<FutureListener<T>>(1);
+
+	NotifyingFutureTask(Callable<T> callable) {
+		super(callable);
+	}
+
+	@Override
+	public NotifyingFuture<T> attachListener(FutureListener<T> listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notifyListener(listener);
+		return this;
+	}
+
+	@Override
+	protected void done() {
+		List<FutureListener<T>> toNotify;
+		synchronized (this) {
+			toNotify = listeners;
+			listeners = null;
+		}
+		for (FutureListener<T> listener : toNotify)
+			notifyListener(listener);
+	}
+
+	private void notifyListener(FutureListener<T> listener) {
+		try {
+			listener.futureDone(this);
+		} catch (RuntimeException e) {
+			log.warn("Future listener failed", e);
+		}
+	}
+}
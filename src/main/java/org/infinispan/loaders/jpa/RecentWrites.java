@@ -0,0 +1,89 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.util.TimeService;
+
+/**
+ * The keys written by a {@link JpaCacheStore} within the read-your-writes window, which are
+ * loaded from the primary persistence unit until the read replica has caught up with them.
+ * A clear, or any other write of unknown keys, makes every key recent. Keys older than the
+ * window are expunged every 1024 writes and whenever the recent keys are listed. Only the
+ * writes of this store are known, not those of the other nodes sharing the database.
+ */
+final class RecentWrites {
+	private static final int EXPUNGE_INTERVAL = 1024;
+
+	private final TimeService timeService;
+	private final long windowNanos;
+	private final ConcurrentMap<Object, Long> writes = new ConcurrentHashMap<Object, Long>();
+	private final AtomicInteger writesSinceExpunge = new AtomicInteger();
+	private volatile long lastWriteAll;
+	private volatile boolean writtenAll;
+
+	RecentWrites(TimeService timeService, long window, TimeUnit unit) {
+		this.timeService = timeService;
+		this.windowNanos = unit.toNanos(window);
+	}
+
+	void record(Object key) {
+		writes.put(key, timeService.time());
+		if (writesSinceExpunge.incrementAndGet() >= EXPUNGE_INTERVAL)
+			expunge();
+	}
+
+	/**
+	 * Records a write of all the keys, such as a clear.
+	 */
+	void recordAll() {
+		lastWriteAll = timeService.time();
+		writtenAll = true;
+	}
+
+	/**
+	 * @return whether the key was written within the window
+	 */
+	boolean isRecent(Object key) {
+		if (isAllRecent())
+			return true;
+		Long written = writes.get(key);
+		return written != null && timeService.time() - written < windowNanos;
+	}
+
+	/**
+	 * @return whether all the keys were written within the window
+	 */
+	boolean isAllRecent() {
+		if (!writtenAll)
+			return false;
+		if (timeService.time() - lastWriteAll < windowNanos)
+			return true;
+		writtenAll = false;
+		return false;
+	}
+
+	/**
+	 * @return the keys written within the window
+	 */
+	Set<Object> getKeys() {
+		expunge();
+		return new HashSet<Object>(writes.keySet());
+	}
+
+	private void expunge() {
+		writesSinceExpunge.set(0);
+		long now = timeService.time();
+		for (Iterator<Map.Entry<Object, Long>> it = writes.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Object, Long> write = it.next();
+			if (now - write.getValue() >= windowNanos)
+				writes.remove(write.getKey(), write.getValue());
+		}
+	}
+}
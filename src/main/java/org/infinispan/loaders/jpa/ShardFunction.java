@@ -0,0 +1,15 @@
+package org.infinispan.loaders.jpa;
+
+/**
+ * Chooses the shard storing each key of a {@link ShardedJpaCacheStore}, among its several
+ * persistence units. The shard of a key must never change, neither across restarts nor
+ * across the nodes sharing the shards.
+ */
+public interface ShardFunction {
+
+	/**
+	 * @param shardCount the number of shards, in the order of the configured persistence units
+	 * @return the index of the shard of the key, from 0 to <code>shardCount - 1</code>
+	 */
+	int getShard(Object key, int shardCount);
+}
@@ -0,0 +1,529 @@
+package org.infinispan.loaders.jpa;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.commons.util.Util;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.AbstractCacheStore;
+import org.infinispan.loaders.CacheLoaderConfig;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderMetadata;
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Remove;
+import org.infinispan.loaders.modifications.Store;
+
+/**
+ * A store spreading the entities over several persistence units, with one
+ * {@link JpaCacheStore} per shard started with the configuration of this store. Each key is
+ * stored in the shard chosen by the {@link ShardFunction}. Operations on a single shard run on
+ * the calling thread, holding the locks of that shard only. Operations spanning several shards
+ * run in parallel on a pool of <code>shardThreads</code> threads, the calling thread running
+ * the last shard itself, and the shards commit independently of each other.
+ */
+@CacheLoaderMetadata(configurationClass = ShardedJpaCacheStoreConfig.class)
+public class ShardedJpaCacheStore extends AbstractCacheStore {
+	private JpaCacheStoreConfig config;
+	private List<JpaCacheStore> shards;
+	private ShardFunction shardFunction;
+	private ExecutorService shardExecutor;
+
+	@Override
+	public void init(CacheLoaderConfig config, Cache<?, ?> cache,
+			StreamingMarshaller m) throws CacheLoaderException {
+		super.init(config, cache, m);
+		this.config = (JpaCacheStoreConfig) config;
+	}
+
+	/**
+	 * Starts one store per shard, in parallel, so that their persistence units bootstrap in
+	 * parallel. The shards are stopped if one of them fails to start.
+	 */
+	@Override
+	public void start() throws CacheLoaderException {
+		super.start();
+		if (config.getShardPersistenceUnitNames() == null)
+			throw new JpaCacheLoaderException("No shard persistence units configured");
+		if (config.getEntityClass() == null)
+			throw new JpaCacheLoaderException("No entity class configured");
+		if (config.getShardThreads() < 1)
+			throw new JpaCacheLoaderException("shardThreads must be at least 1, was " + config.getShardThreads());
+
+		this.shardFunction = config.getShardFunction() == null ? new HashShardFunction()
+				: Util.<ShardFunction>getInstance(config.getShardFunction(), config.getEntityClass().getClassLoader());
+
+		List<JpaCacheStore> stores = new ArrayList<JpaCacheStore>();
+		for (String persistenceUnitName : config.getShardPersistenceUnitNames().split(",")) {
+			JpaCacheStoreConfig shardConfig = (JpaCacheStoreConfig) config.clone();
+			shardConfig.setCacheLoaderClassName(JpaCacheStore.class.getName());
+			shardConfig.setPersistenceUnitName(persistenceUnitName.trim());
+			shardConfig.setShardPersistenceUnitNames(null);
+			// a replica replicates a single persistence unit
+			shardConfig.setReadPersistenceUnitName(null);
+
+			JpaCacheStore shard = new JpaCacheStore();
+			shard.init(shardConfig, cache, marshaller);
+			shard.setShardName(persistenceUnitName.trim());
+			stores.add(shard);
+		}
+		this.shards = Collections.unmodifiableList(stores);
+
+		final String threadName = "JpaCacheStore-Shard-" + config.getEntityClass().getSimpleName() + "-";
+		this.shardExecutor = Executors.newFixedThreadPool(config.getShardThreads(), new ThreadFactory() {
+			private final AtomicLong threads = new AtomicLong();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName + threads.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			forShards(shards, new ShardTask<Void>() {
+				@Override
+				public Void run(JpaCacheStore shard) throws CacheLoaderException {
+					shard.start();
+					return null;
+				}
+			});
+		} catch (CacheLoaderException e) {
+			stopShards();
+			throw e;
+		}
+	}
+
+	@Override
+	public void stop() throws CacheLoaderException {
+		try {
+			if (shards != null)
+				stopShards();
+		} finally {
+			super.stop();
+		}
+	}
+
+	private void stopShards() throws CacheLoaderException {
+		try {
+			forShards(shards, new ShardTask<Void>() {
+				@Override
+				public Void run(JpaCacheStore shard) throws CacheLoaderException {
+					shard.stop();
+					return null;
+				}
+			});
+		} finally {
+			shardExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the stores of the shards, in the order of the configured persistence units
+	 */
+	public List<JpaCacheStore> getShards() {
+		return shards;
+	}
+
+	private JpaCacheStore shardOf(Object key) {
+		return shards.get(shardFunction.getShard(key, shards.size()));
+	}
+
+	/**
+	 * @return the keys of each shard, in the order of the shards, for the shards of the keys only
+	 */
+	private Map<JpaCacheStore, List<Object>> keysByShard(Collection<?> keys) {
+		Map<JpaCacheStore, List<Object>> keysByShard = new LinkedHashMap<JpaCacheStore, List<Object>>();
+		for (Object key : keys) {
+			JpaCacheStore shard = shardOf(key);
+			List<Object> shardKeys = keysByShard.get(shard);
+			if (shardKeys == null) {
+				shardKeys = new ArrayList<Object>();
+				keysByShard.put(shard, shardKeys);
+			}
+			shardKeys.add(key);
+		}
+		return keysByShard;
+	}
+
+	/**
+	 * An operation run on some shards by {@link ShardedJpaCacheStore#forShards(Collection, ShardTask)}.
+	 */
+	private interface ShardTask<T> {
+		T run(JpaCacheStore shard) throws CacheLoaderException;
+	}
+
+	/**
+	 * Runs the task on the given shards and waits for all of them to complete, so that no task
+	 * is still running if one fails. The task of a single shard runs on the calling thread.
+	 * Otherwise the tasks run in parallel on the shard executor, except for the last one which
+	 * runs on the calling thread while it would wait anyway.
+	 *
+	 * @return the results of the shards, in the order of the given shards
+	 */
+	private <T> List<T> forShards(Collection<JpaCacheStore> targets, final ShardTask<T> task)
+			throws CacheLoaderException {
+		List<T> results = new ArrayList<T>(targets.size());
+		if (targets.size() == 1) {
+			results.add(task.run(targets.iterator().next()));
+			return results;
+		}
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(targets.size() - 1);
+		JpaCacheStore last = null;
+		for (final JpaCacheStore shard : targets) {
+			if (last != null) {
+				final JpaCacheStore submitted = last;
+				futures.add(shardExecutor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return task.run(submitted);
+					}
+				}));
+			}
+			last = shard;
+		}
+
+		T lastResult = null;
+		CacheLoaderException failure = null;
+		try {
+			lastResult = task.run(last);
+		} catch (CacheLoaderException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new CacheLoaderException("Exception caught in a shard", e);
+		}
+
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CacheLoaderException("Interrupted while waiting for the shards", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof CacheLoaderException
+							? (CacheLoaderException) e.getCause()
+							: new CacheLoaderException("Exception caught in a shard", e.getCause());
+				}
+			}
+		}
+		if (failure != null)
+			throw failure;
+		results.add(lastResult);
+		return results;
+	}
+
+	@Override
+	public InternalCacheEntry load(Object key) throws CacheLoaderException {
+		return shardOf(key).load(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) throws CacheLoaderException {
+		return shardOf(key).containsKey(key);
+	}
+
+	@Override
+	public void store(InternalCacheEntry entry) throws CacheLoaderException {
+		shardOf(entry.getKey()).store(entry);
+	}
+
+	@Override
+	public boolean remove(Object key) throws CacheLoaderException {
+		return shardOf(key).remove(key);
+	}
+
+	/**
+	 * Loads the entries of the keys from their shards.
+	 *
+	 * @see JpaCacheStore#loadAll(Collection)
+	 */
+	public Map<Object, InternalCacheEntry> loadAll(Collection<?> keys) throws CacheLoaderException {
+		Map<Object, InternalCacheEntry> result = new HashMap<Object, InternalCacheEntry>();
+		if (keys == null || keys.isEmpty())
+			return result;
+
+		final Map<JpaCacheStore, List<Object>> keysByShard = keysByShard(keys);
+		for (Map<Object, InternalCacheEntry> entries : forShards(keysByShard.keySet(), new ShardTask<Map<Object, InternalCacheEntry>>() {
+			@Override
+			public Map<Object, InternalCacheEntry> run(JpaCacheStore shard) throws CacheLoaderException {
+				return shard.loadAll(keysByShard.get(shard));
+			}
+		})) {
+			result.putAll(entries);
+		}
+		return result;
+	}
+
+	@Override
+	public Set<InternalCacheEntry> loadAll() throws CacheLoaderException {
+		return loadFromShards(-1);
+	}
+
+	@Override
+	public Set<InternalCacheEntry> load(int maxEntries) throws CacheLoaderException {
+		if (maxEntries == 0)
+			return Collections.emptySet();
+		return loadFromShards(maxEntries);
+	}
+
+	/**
+	 * @return the entries of all the shards, or <code>maxEntries</code> of them if positive
+	 */
+	private Set<InternalCacheEntry> loadFromShards(final int maxEntries) throws CacheLoaderException {
+		Set<InternalCacheEntry> result = new HashSet<InternalCacheEntry>();
+		for (Set<InternalCacheEntry> entries : forShards(shards, new ShardTask<Set<InternalCacheEntry>>() {
+			@Override
+			public Set<InternalCacheEntry> run(JpaCacheStore shard) throws CacheLoaderException {
+				return maxEntries < 0 ? shard.loadAll() : shard.load(maxEntries);
+			}
+		})) {
+			result.addAll(entries);
+		}
+		JpaCacheStore.truncate(result, maxEntries);
+		return result;
+	}
+
+	@Override
+	public Set<Object> loadAllKeys(final Set<Object> keysToExclude) throws CacheLoaderException {
+		Set<Object> keys = new HashSet<Object>();
+		for (Set<Object> shardKeys : forShards(shards, new ShardTask<Set<Object>>() {
+			@Override
+			public Set<Object> run(JpaCacheStore shard) throws CacheLoaderException {
+				return shard.loadAllKeys(keysToExclude);
+			}
+		})) {
+			keys.addAll(shardKeys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Passes the keys of each shard to the processor, one shard after the other since the
+	 * processor may not be thread safe.
+	 *
+	 * @see JpaCacheStore#processKeys(Set, KeyProcessor)
+	 */
+	public void processKeys(Set<Object> keysToExclude, final KeyProcessor processor)
+			throws CacheLoaderException {
+		final boolean[] stopped = new boolean[1];
+		for (JpaCacheStore shard : shards) {
+			shard.processKeys(keysToExclude, new KeyProcessor() {
+				@Override
+				public boolean processKey(Object key) throws CacheLoaderException {
+					stopped[0] = !processor.processKey(key);
+					return !stopped[0];
+				}
+			});
+			if (stopped[0])
+				return;
+		}
+	}
+
+	@Override
+	public void removeAll(Set<Object> keys) throws CacheLoaderException {
+		if (keys == null || keys.isEmpty())
+			return;
+
+		final Map<JpaCacheStore, List<Object>> keysByShard = keysByShard(keys);
+		forShards(keysByShard.keySet(), new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.removeAll(new HashSet<Object>(keysByShard.get(shard)));
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void clear() throws CacheLoaderException {
+		forShards(shards, new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.clear();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Applies the modifications of each shard to the shard. A clear applies to all the shards.
+	 */
+	@Override
+	protected void applyModifications(List<? extends Modification> mods)
+			throws CacheLoaderException {
+		if (mods == null || mods.isEmpty())
+			return;
+
+		final Map<JpaCacheStore, List<Modification>> modsByShard = new LinkedHashMap<JpaCacheStore, List<Modification>>();
+		for (Modification m : mods) {
+			switch (m.getType()) {
+			case STORE:
+				shardModifications(modsByShard, shardOf(((Store) m).getStoredEntry().getKey())).add(m);
+				break;
+			case REMOVE:
+				shardModifications(modsByShard, shardOf(((Remove) m).getKey())).add(m);
+				break;
+			case CLEAR:
+				for (JpaCacheStore shard : shards)
+					shardModifications(modsByShard, shard).add(m);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown modification type " + m.getType());
+			}
+		}
+
+		forShards(modsByShard.keySet(), new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.applyModifications(modsByShard.get(shard));
+				return null;
+			}
+		});
+	}
+
+	private static List<Modification> shardModifications(Map<JpaCacheStore, List<Modification>> modsByShard,
+			JpaCacheStore shard) {
+		List<Modification> shardMods = modsByShard.get(shard);
+		if (shardMods == null) {
+			shardMods = new ArrayList<Modification>();
+			modsByShard.put(shard, shardMods);
+		}
+		return shardMods;
+	}
+
+	@Override
+	protected void purgeInternal() throws CacheLoaderException {
+		forShards(shards, new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.purgeInternal();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes the entities of the shards one after the other, as a single stream, holding the
+	 * global lock of one shard at a time.
+	 */
+	@Override
+	public void toStream(ObjectOutput oos) throws CacheLoaderException {
+		for (JpaCacheStore shard : shards) {
+			shard.acquireShardLock(false);
+			try {
+				shard.writeEntities(oos);
+			} finally {
+				shard.releaseShardLock(false);
+			}
+		}
+
+		try {
+			marshaller.objectToObjectStream(JpaCacheStore.BINARY_STREAM_DELIMITER, oos);
+		} catch (IOException e) {
+			throw new CacheLoaderException("IO Exception in toStream", e);
+		}
+	}
+
+	/**
+	 * Applies every entity read from the stream to its shard, with one transaction per shard,
+	 * holding the global locks of all the shards.
+	 */
+	@Override
+	public void fromStream(ObjectInput ois) throws CacheLoaderException {
+		List<JpaCacheStore> locked = new ArrayList<JpaCacheStore>(shards.size());
+		try {
+			for (JpaCacheStore shard : shards) {
+				shard.acquireShardLock(true);
+				locked.add(shard);
+			}
+			shards.get(0).readEntities(ois, shards, shardFunction);
+		} finally {
+			for (JpaCacheStore shard : locked)
+				shard.releaseShardLock(true);
+		}
+	}
+
+	/**
+	 * Writes the modifications queued by write-behind in every shard to the database.
+	 *
+	 * @see JpaCacheStore#flushWriteBehind()
+	 */
+	public void flushWriteBehind() throws CacheLoaderException {
+		forShards(shards, new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.flushWriteBehind();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the key filter of every shard.
+	 *
+	 * @see JpaCacheStore#rebuildKeyFilter()
+	 */
+	public void rebuildKeyFilter() throws CacheLoaderException {
+		forShards(shards, new ShardTask<Void>() {
+			@Override
+			public Void run(JpaCacheStore shard) throws CacheLoaderException {
+				shard.rebuildKeyFilter();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Loads the entry of the key on the executor of the asynchronous operations of its shard.
+	 *
+	 * @see JpaCacheStore#loadAsync(Object)
+	 */
+	public NotifyingFuture<InternalCacheEntry> loadAsync(Object key) throws CacheLoaderException {
+		return shardOf(key).loadAsync(key);
+	}
+
+	/**
+	 * Stores the entry on the executor of the asynchronous operations of its shard.
+	 *
+	 * @see JpaCacheStore#storeAsync(InternalCacheEntry)
+	 */
+	public NotifyingFuture<Void> storeAsync(InternalCacheEntry entry) throws CacheLoaderException {
+		return shardOf(entry.getKey()).storeAsync(entry);
+	}
+
+	/**
+	 * Removes the entry of the key on the executor of the asynchronous operations of its shard.
+	 *
+	 * @see JpaCacheStore#removeAsync(Object)
+	 */
+	public NotifyingFuture<Boolean> removeAsync(Object key) throws CacheLoaderException {
+		return shardOf(key).removeAsync(key);
+	}
+
+	@Override
+	public Class<? extends CacheLoaderConfig> getConfigurationClass() {
+		return ShardedJpaCacheStoreConfig.class;
+	}
+}
@@ -0,0 +1,13 @@
+package org.infinispan.loaders.jpa;
+
+/**
+ * The configuration of a {@link ShardedJpaCacheStore}, which is the configuration of each of
+ * its shards, except for the persistence unit of the shard.
+ */
+public class ShardedJpaCacheStoreConfig extends JpaCacheStoreConfig {
+	private static final long serialVersionUID = 3412597628915627291L;
+
+	public ShardedJpaCacheStoreConfig() {
+		cacheLoaderClassName = ShardedJpaCacheStore.class.getName();
+	}
+}
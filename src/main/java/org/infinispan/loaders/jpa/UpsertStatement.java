@@ -0,0 +1,421 @@
+package org.infinispan.loaders.jpa;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Enumerated;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.Temporal;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.infinispan.util.logging.Log;
+import org.infinispan.util.logging.LogFactory;
+
+/**
+ * A single statement insert-or-update of a flat entity, generated from the JPA metamodel
+ * for the SQL dialect of the persistence unit. Entities are only supported if they are
+ * mapped to a single table with basic attributes and an optional embedded identifier.
+ * Table and column names are read from the mapping of the persistence provider, which is
+ * only possible with Hibernate; entities of other providers are stored with merge().
+ */
+final class UpsertStatement {
+	private static final Log log = LogFactory.getLog(UpsertStatement.class);
+
+	enum Dialect {
+		H2, MYSQL, POSTGRESQL, STANDARD;
+
+		private static final String[] DIALECT_PROPERTIES = { "hibernate.dialect",
+				"eclipselink.target-database", "openjpa.jdbc.DBDictionary" };
+		private static final String[] URL_PROPERTIES = { "javax.persistence.jdbc.url",
+				"hibernate.connection.url" };
+
+		/**
+		 * @param providerDialect the class name of the dialect resolved by the provider, or
+		 *        <code>null</code> if unknown
+		 */
+		static Dialect detect(String providerDialect, Map<String, Object> properties) {
+			if (providerDialect != null)
+				return forDialectName(providerDialect);
+
+			for (String name : DIALECT_PROPERTIES) {
+				Object value = properties.get(name);
+				if (value != null && forDialectName(value.toString()) != STANDARD)
+					return forDialectName(value.toString());
+			}
+			for (String name : URL_PROPERTIES) {
+				Object value = properties.get(name);
+				if (value != null)
+					return forUrl(value.toString());
+			}
+			return STANDARD;
+		}
+
+		private static Dialect forDialectName(String name) {
+			String s = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+			if (s.startsWith("h2"))
+				return H2;
+			if (s.startsWith("mysql") || s.startsWith("mariadb"))
+				return MYSQL;
+			if (s.startsWith("postgres"))
+				return POSTGRESQL;
+			return STANDARD;
+		}
+
+		private static Dialect forUrl(String url) {
+			String s = url.toLowerCase(Locale.ENGLISH);
+			if (s.startsWith("jdbc:h2:"))
+				return H2;
+			if (s.startsWith("jdbc:mysql:") || s.startsWith("jdbc:mariadb:"))
+				return MYSQL;
+			if (s.startsWith("jdbc:postgresql:"))
+				return POSTGRESQL;
+			return STANDARD;
+		}
+	}
+
+	/**
+	 * The table and column names and the column types of an entity as mapped by the
+	 * persistence provider, read reflectively from the Hibernate entity persister since JPA
+	 * does not expose them.
+	 */
+	private static final class Mapping {
+		private final Object persister;
+		private final String dialect;
+
+		private Mapping(Object persister, String dialect) {
+			this.persister = persister;
+			this.dialect = dialect;
+		}
+
+		/**
+		 * @return the mapping of the entity, or <code>null</code> if the provider is not
+		 *         Hibernate
+		 */
+		static Mapping create(EntityManagerFactory emf, Class<?> entityClass) {
+			try {
+				Object sessionFactory = invoke(emf, "getSessionFactory");
+				Object persister = sessionFactory.getClass().getMethod("getClassMetadata", Class.class)
+						.invoke(sessionFactory, entityClass);
+				if (persister == null)
+					return null;
+				Object dialect = invoke(sessionFactory, "getDialect");
+				return new Mapping(persister, dialect == null ? null : dialect.getClass().getName());
+			} catch (Exception e) {
+				log.debugf(e, "Unable to read the mapping of entity %s from the persistence provider", entityClass.getName());
+				return null;
+			}
+		}
+
+		String getTableName() throws Exception {
+			return (String) invoke(persister, "getTableName");
+		}
+
+		/**
+		 * @return the single column of the attribute path, or <code>null</code> if it is
+		 *         mapped to several columns
+		 */
+		String getColumnName(String path) throws Exception {
+			String[] columns = (String[]) persister.getClass().getMethod("getPropertyColumnNames", String.class)
+					.invoke(persister, path);
+			return columns.length == 1 ? columns[0] : null;
+		}
+
+		/**
+		 * @return the Hibernate type of the attribute path
+		 */
+		Object getPropertyType(String path) throws Exception {
+			return persister.getClass().getMethod("getPropertyType", String.class).invoke(persister, path);
+		}
+
+		/**
+		 * @return <code>org.hibernate.Query.setParameter(int, Object, Type)</code>, which binds
+		 *         a parameter numbered from 0 with an explicit type
+		 */
+		Method getTypedSetParameter() throws Exception {
+			ClassLoader loader = persister.getClass().getClassLoader();
+			Class<?> query = Class.forName("org.hibernate.Query", false, loader);
+			Class<?> type = Class.forName("org.hibernate.type.Type", false, loader);
+			return query.getMethod("setParameter", int.class, Object.class, type);
+		}
+
+		private static Object invoke(Object target, String method) throws Exception {
+			return target.getClass().getMethod(method).invoke(target);
+		}
+	}
+
+	private final Class<?> entityClass;
+	private final List<SingularAttribute<?, ?>> attributes;
+	private final List<SingularAttribute<?, ?>> idComponents;
+	/**
+	 * The Hibernate types of the attributes, by index in <code>attributes</code>, used to bind
+	 * their null values
+	 */
+	private final List<Object> types;
+	private final Method typedSetParameter;
+	private final String sql;
+
+	private UpsertStatement(Class<?> entityClass,
+			List<SingularAttribute<?, ?>> attributes,
+			List<SingularAttribute<?, ?>> idComponents, List<Object> types,
+			Method typedSetParameter, String sql) {
+		this.entityClass = entityClass;
+		this.attributes = attributes;
+		this.idComponents = idComponents;
+		this.types = types;
+		this.typedSetParameter = typedSetParameter;
+		this.sql = sql;
+	}
+
+	/**
+	 * @return the upsert statement for the entity, or <code>null</code> if the mapping of the
+	 *         entity is not supported
+	 */
+	static UpsertStatement create(EntityManagerFactory emf, JpaEntityDescriptor descriptor) {
+		EntityType<?> entityType = descriptor.getEntityType();
+		SingularAttribute<?, ?> idAttribute = descriptor.getIdAttribute();
+		List<SingularAttribute<?, ?>> idComponents = descriptor.getIdComponents();
+		Class<?> entityClass = descriptor.getEntityClass();
+		if (entityType.getSupertype() instanceof EntityType || !entityType.getPluralAttributes().isEmpty()) {
+			log.warnf("Entity %s is not mapped to a single flat table, falling back to merge()", entityType.getName());
+			return null;
+		}
+
+		Mapping mapping = Mapping.create(emf, entityClass);
+		if (mapping == null) {
+			log.warnf("Table and column names of entity %s cannot be resolved from the persistence provider, falling back to merge()", entityType.getName());
+			return null;
+		}
+
+		List<SingularAttribute<?, ?>> attributes = new ArrayList<SingularAttribute<?, ?>>();
+		List<String> idColumns = new ArrayList<String>();
+		List<String> columns = new ArrayList<String>();
+		// the identifier is never null, so it is bound without a type
+		List<Object> types = new ArrayList<Object>();
+		types.add(null);
+		String table;
+		Method typedSetParameter;
+		try {
+			if (idComponents != null) {
+				for (SingularAttribute<?, ?> component : idComponents) {
+					String column = mapping.getColumnName(idAttribute.getName() + "." + component.getName());
+					if (!isSupported(component) || column == null) {
+						log.warnf("Id attribute %s of entity %s is not supported, falling back to merge()", component.getName(), entityType.getName());
+						return null;
+					}
+					idColumns.add(column);
+				}
+			} else {
+				String column = mapping.getColumnName(idAttribute.getName());
+				if (column == null) {
+					log.warnf("Id attribute %s of entity %s is not supported, falling back to merge()", idAttribute.getName(), entityType.getName());
+					return null;
+				}
+				idColumns.add(column);
+			}
+
+			for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+				if (attribute.isId())
+					continue;
+				String column = attribute.isVersion() || !isSupported(attribute) ? null
+						: mapping.getColumnName(attribute.getName());
+				if (column == null) {
+					log.warnf("Attribute %s of entity %s is not supported, falling back to merge()", attribute.getName(), entityType.getName());
+					return null;
+				}
+				JpaEntityDescriptor.makeAccessible(attribute);
+				attributes.add(attribute);
+				columns.add(column);
+				types.add(mapping.getPropertyType(attribute.getName()));
+			}
+
+			table = mapping.getTableName();
+			typedSetParameter = mapping.getTypedSetParameter();
+		} catch (Exception e) {
+			log.warnf(e, "Unable to resolve the table and column names of entity %s, falling back to merge()", entityType.getName());
+			return null;
+		}
+
+		Dialect dialect = Dialect.detect(mapping.dialect, emf.getProperties());
+		log.debugf("Using %s upsert statements for entity %s", dialect, entityType.getName());
+
+		List<SingularAttribute<?, ?>> bound = new ArrayList<SingularAttribute<?, ?>>(attributes);
+		bound.add(0, idAttribute);
+		return new UpsertStatement(entityClass, bound, idComponents, types, typedSetParameter,
+				createSql(dialect, table, idColumns, columns));
+	}
+
+	private static String createSql(Dialect dialect, String table, List<String> idColumns, List<String> columns) {
+		List<String> allColumns = new ArrayList<String>(idColumns);
+		allColumns.addAll(columns);
+		String columnList = join(allColumns, "");
+		String parameters = placeholders(allColumns.size());
+
+		StringBuilder sb = new StringBuilder();
+		switch (dialect) {
+		case H2:
+			sb.append("MERGE INTO ").append(table).append(" (").append(columnList)
+					.append(") KEY (").append(join(idColumns, "")).append(") VALUES (")
+					.append(parameters).append(')');
+			break;
+		case MYSQL:
+			sb.append("INSERT INTO ").append(table).append(" (").append(columnList)
+					.append(") VALUES (").append(parameters).append(") ON DUPLICATE KEY UPDATE ");
+			if (columns.isEmpty()) {
+				sb.append(idColumns.get(0)).append(" = ").append(idColumns.get(0));
+			} else {
+				for (int i = 0; i < columns.size(); i++) {
+					if (i > 0)
+						sb.append(", ");
+					sb.append(columns.get(i)).append(" = VALUES(").append(columns.get(i)).append(')');
+				}
+			}
+			break;
+		case POSTGRESQL:
+			sb.append("INSERT INTO ").append(table).append(" (").append(columnList)
+					.append(") VALUES (").append(parameters).append(") ON CONFLICT (")
+					.append(join(idColumns, "")).append(") DO ");
+			if (columns.isEmpty()) {
+				sb.append("NOTHING");
+			} else {
+				sb.append("UPDATE SET ");
+				for (int i = 0; i < columns.size(); i++) {
+					if (i > 0)
+						sb.append(", ");
+					sb.append(columns.get(i)).append(" = EXCLUDED.").append(columns.get(i));
+				}
+			}
+			break;
+		default:
+			sb.append("MERGE INTO ").append(table).append(" USING (VALUES (").append(parameters)
+					.append(")) s (").append(columnList).append(") ON (");
+			for (int i = 0; i < idColumns.size(); i++) {
+				if (i > 0)
+					sb.append(" AND ");
+				sb.append(table).append('.').append(idColumns.get(i)).append(" = s.").append(idColumns.get(i));
+			}
+			sb.append(')');
+			if (!columns.isEmpty()) {
+				sb.append(" WHEN MATCHED THEN UPDATE SET ");
+				for (int i = 0; i < columns.size(); i++) {
+					if (i > 0)
+						sb.append(", ");
+					sb.append(columns.get(i)).append(" = s.").append(columns.get(i));
+				}
+			}
+			sb.append(" WHEN NOT MATCHED THEN INSERT (").append(columnList).append(") VALUES (")
+					.append(join(allColumns, "s.")).append(')');
+			break;
+		}
+		return sb.toString();
+	}
+
+	private static String join(List<String> columns, String prefix) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(prefix).append(columns.get(i));
+		}
+		return sb.toString();
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
+	private static boolean isSupported(SingularAttribute<?, ?> attribute) {
+		if (attribute.getPersistentAttributeType() != PersistentAttributeType.BASIC)
+			return false;
+
+		Class<?> type = attribute.getJavaType();
+		if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type))
+			return false;
+
+		return !isAnnotationPresent(attribute, Enumerated.class)
+				&& !isAnnotationPresent(attribute, Temporal.class);
+	}
+
+	private static boolean isAnnotationPresent(SingularAttribute<?, ?> attribute,
+			Class<? extends java.lang.annotation.Annotation> annotation) {
+		return ((AnnotatedElement) attribute.getJavaMember()).isAnnotationPresent(annotation);
+	}
+
+	/**
+	 * @return whether the statement can be used to store the given entity, which is not the
+	 *         case for instances of subclasses of the entity class
+	 */
+	boolean supports(Object entity) {
+		return entity.getClass() == entityClass;
+	}
+
+	/**
+	 * Executes the statement within the current transaction of the EntityManager, and evicts
+	 * the entity from the second level cache.
+	 */
+	int execute(EntityManager em, Object entity) {
+		Query query = em.createNativeQuery(sql);
+		int position = 1;
+		Object id = JpaEntityDescriptor.getAttributeValue(attributes.get(0), entity);
+		if (idComponents == null) {
+			query.setParameter(position++, id);
+		} else {
+			for (SingularAttribute<?, ?> component : idComponents)
+				query.setParameter(position++, JpaEntityDescriptor.getAttributeValue(component, id));
+		}
+		for (int i = 1; i < attributes.size(); i++)
+			setParameter(query, position++, i, JpaEntityDescriptor.getAttributeValue(attributes.get(i), entity));
+
+		int updated = query.executeUpdate();
+		Cache cache = em.getEntityManagerFactory().getCache();
+		if (cache != null)
+			cache.evict(entityClass, id);
+		return updated;
+	}
+
+	/**
+	 * Binds the value of an attribute. Nulls are bound with the mapped type of the attribute,
+	 * since untyped nulls are bound as binary values, which databases like PostgreSQL refuse
+	 * for columns of other types.
+	 */
+	private void setParameter(Query query, int position, int attribute, Object value) {
+		if (value != null) {
+			query.setParameter(position, value);
+			return;
+		}
+
+		try {
+			typedSetParameter.invoke(query.unwrap(typedSetParameter.getDeclaringClass()), position - 1,
+					null, types.get(attribute));
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException("Unable to bind null to parameter " + position + " of " + sql, e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException("Unable to bind null to parameter " + position + " of " + sql, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return sql;
+	}
+}
@@ -0,0 +1,191 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.loaders.modifications.Modification;
+
+/**
+ * The modifications queued by a {@link JpaCacheStore} configured with a write-behind interval,
+ * at most one per key and at most <code>maxSize</code> keys, together with the failed attempts
+ * of each queued modification and the coalescing and flush counters.
+ */
+public final class WriteBehindQueue {
+	private final int maxSize;
+	private final ConcurrentMap<Object, Modification> pending = new ConcurrentHashMap<Object, Modification>();
+	private final ConcurrentMap<Object, Integer> failedAttempts = new ConcurrentHashMap<Object, Integer>();
+	private final AtomicLong modifications = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	WriteBehindQueue(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	Modification get(Object key) {
+		return pending.get(key);
+	}
+
+	/**
+	 * Queues the modification of the key, replacing the one already queued, if any.
+	 */
+	void put(Object key, Modification modification) {
+		modifications.incrementAndGet();
+		failedAttempts.remove(key);
+		if (pending.put(key, modification) != null)
+			coalesced.incrementAndGet();
+	}
+
+	/**
+	 * @return whether a modification of the key can be queued, i.e. one is queued already or
+	 *         the queue is not full. The bound is not strict, since concurrent writers of other
+	 *         keys may queue theirs in between.
+	 */
+	boolean canQueue(Object key) {
+		return pending.size() < maxSize || pending.containsKey(key);
+	}
+
+	/**
+	 * Records a modification written immediately because the queue was full.
+	 */
+	void recordOverflow() {
+		overflows.incrementAndGet();
+	}
+
+	void remove(Object key) {
+		pending.remove(key);
+		failedAttempts.remove(key);
+	}
+
+	void remove(Object key, Modification modification) {
+		if (pending.remove(key, modification))
+			failedAttempts.remove(key);
+	}
+
+	/**
+	 * Records a failed attempt to write the queued modification of the key.
+	 *
+	 * @return the number of failed attempts of the modification, or 0 if it is no longer
+	 *         queued
+	 */
+	int recordFailure(Object key, Modification modification) {
+		if (pending.get(key) != modification)
+			return 0;
+		Integer attempts = failedAttempts.get(key);
+		int n = attempts == null ? 1 : attempts + 1;
+		failedAttempts.put(key, n);
+		return n;
+	}
+
+	/**
+	 * Drops the queued modification of the key without writing it.
+	 */
+	void drop(Object key, Modification modification) {
+		if (pending.remove(key, modification)) {
+			failedAttempts.remove(key);
+			dropped.incrementAndGet();
+		}
+	}
+
+	void clear() {
+		pending.clear();
+		failedAttempts.clear();
+	}
+
+	/**
+	 * @return a snapshot of the keys with a queued modification
+	 */
+	List<Object> keys() {
+		return new ArrayList<Object>(pending.keySet());
+	}
+
+	void recordFlush(int count, long nanos) {
+		flushes.incrementAndGet();
+		flushed.addAndGet(count);
+		flushNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxFlushNanos.get())) {
+			if (maxFlushNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * @return the number of keys with a queued modification
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of modifications queued
+	 */
+	public long getModificationCount() {
+		return modifications.get();
+	}
+
+	/**
+	 * @return the number of modifications which replaced a queued modification of the same
+	 *         key, and thus were never written to the database
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return the number of modifications written to the database
+	 */
+	public long getFlushedCount() {
+		return flushed.get();
+	}
+
+	/**
+	 * @return the number of modifications written immediately by the writer because the queue
+	 *         was full
+	 */
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+
+	/**
+	 * @return the number of modifications dropped after <code>writeBehindMaxAttempts</code>
+	 *         failed attempts, which were never written to the database
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getTotalFlushTime(TimeUnit unit) {
+		return unit.convert(flushNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxFlushTime(TimeUnit unit) {
+		return unit.convert(maxFlushNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBehindQueue{pending=" + getPendingCount()
+				+ ", modifications=" + getModificationCount()
+				+ ", coalesced=" + getCoalescedCount()
+				+ ", flushes=" + getFlushCount()
+				+ ", flushed=" + getFlushedCount()
+				+ ", overflows=" + getOverflowCount()
+				+ ", dropped=" + getDroppedCount()
+				+ ", flushMillis=" + getTotalFlushTime(TimeUnit.MILLISECONDS)
+				+ ", maxFlushMillis=" + getMaxFlushTime(TimeUnit.MILLISECONDS) + "}";
+	}
+}
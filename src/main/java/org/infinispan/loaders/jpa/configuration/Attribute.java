@@ -14,7 +14,33 @@ public enum Attribute {
 
    PERSISTENCE_UNIT_NAME("persistenceUnitName"),
    ENTITY_CLASS_NAME("entityClassName"),
-   BATCH_SIZE("batchSize")
+   BATCH_SIZE("batchSize"),
+   STREAM_COMMIT_INTERVAL("streamCommitInterval"),
+   PERSIST_STREAMED_ENTITIES("persistStreamedEntities"),
+   NATIVE_UPSERT("nativeUpsert"),
+   STORE_METADATA("storeMetadata"),
+   EXPIRY_ATTRIBUTE("expiryAttribute"),
+   PURGE_BATCH_SIZE("purgeBatchSize"),
+   KEY_FILTER("keyFilter"),
+   KEY_FILTER_FALSE_POSITIVE_RATE("keyFilterFalsePositiveRate"),
+   KEY_FILTER_MAX_MEMORY("keyFilterMaxMemory"),
+   ENTITY_MANAGER_POOL_SIZE("entityManagerPoolSize"),
+   ENTITY_MANAGER_MAX_USES("entityManagerMaxUses"),
+   FETCH_ATTRIBUTES("fetchAttributes"),
+   WRITE_BEHIND_INTERVAL("writeBehindInterval"),
+   WRITE_BEHIND_THRESHOLD("writeBehindThreshold"),
+   WRITE_BEHIND_MAX_QUEUE_SIZE("writeBehindMaxQueueSize"),
+   WRITE_BEHIND_MAX_ATTEMPTS("writeBehindMaxAttempts"),
+   ASYNC_START("asyncStart"),
+   STARTUP_TIMEOUT("startupTimeout"),
+   SHARD_PERSISTENCE_UNIT_NAMES("shardPersistenceUnitNames"),
+   SHARD_FUNCTION("shardFunction"),
+   SHARD_THREADS("shardThreads"),
+   READ_PERSISTENCE_UNIT_NAME("readPersistenceUnitName"),
+   READ_YOUR_WRITES_WINDOW("readYourWritesWindow"),
+   ASYNC_THREADS("asyncThreads"),
+   ASYNC_MAX_IN_FLIGHT("asyncMaxInFlight"),
+   ASYNC_SUBMIT_TIMEOUT("asyncSubmitTimeout")
    ;
 
    private final String name;
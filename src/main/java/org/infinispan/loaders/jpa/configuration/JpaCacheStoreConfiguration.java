@@ -6,6 +6,7 @@ import org.infinispan.configuration.cache.LegacyConfigurationAdaptor;
 import org.infinispan.configuration.cache.LegacyLoaderAdapter;
 import org.infinispan.configuration.cache.SingletonStoreConfiguration;
 import org.infinispan.loaders.jpa.JpaCacheStoreConfig;
+import org.infinispan.loaders.jpa.ShardedJpaCacheStoreConfig;
 import org.infinispan.commons.configuration.BuiltBy;
 import org.infinispan.commons.util.TypedProperties;
 
@@ -19,11 +20,63 @@ public class JpaCacheStoreConfiguration extends AbstractLockSupportStoreConfigur
 	final private String persistenceUnitName;
 	final private Class<?> entityClass;
 	final private long batchSize;
+	final private int streamCommitInterval;
+	final private boolean persistStreamedEntities;
+	final private boolean nativeUpsert;
+	final private boolean storeMetadata;
+	final private String expiryAttribute;
+	final private int purgeBatchSize;
+	final private boolean keyFilter;
+	final private double keyFilterFalsePositiveRate;
+	final private long keyFilterMaxMemory;
+	final private int entityManagerPoolSize;
+	final private int entityManagerMaxUses;
+	final private String fetchAttributes;
+	final private long writeBehindInterval;
+	final private int writeBehindThreshold;
+	final private int writeBehindMaxQueueSize;
+	final private int writeBehindMaxAttempts;
+	final private boolean asyncStart;
+	final private long startupTimeout;
+	final private String shardPersistenceUnitNames;
+	final private String shardFunction;
+	final private int shardThreads;
+	final private String readPersistenceUnitName;
+	final private long readYourWritesWindow;
+	final private int asyncThreads;
+	final private int asyncMaxInFlight;
+	final private long asyncSubmitTimeout;
 
 	protected JpaCacheStoreConfiguration(
 			String persistenceUnitName,
 			Class<?> entityClass,
 			long batchSize,
+			int streamCommitInterval,
+			boolean persistStreamedEntities,
+			boolean nativeUpsert,
+			boolean storeMetadata,
+			String expiryAttribute,
+			int purgeBatchSize,
+			boolean keyFilter,
+			double keyFilterFalsePositiveRate,
+			long keyFilterMaxMemory,
+			int entityManagerPoolSize,
+			int entityManagerMaxUses,
+			String fetchAttributes,
+			long writeBehindInterval,
+			int writeBehindThreshold,
+			int writeBehindMaxQueueSize,
+			int writeBehindMaxAttempts,
+			boolean asyncStart,
+			long startupTimeout,
+			String shardPersistenceUnitNames,
+			String shardFunction,
+			int shardThreads,
+			String readPersistenceUnitName,
+			long readYourWritesWindow,
+			int asyncThreads,
+			int asyncMaxInFlight,
+			long asyncSubmitTimeout,
 			long lockAcquistionTimeout,
 			int lockConcurrencyLevel, boolean purgeOnStartup,
 			boolean purgeSynchronously, int purgerThreads,
@@ -37,6 +90,32 @@ public class JpaCacheStoreConfiguration extends AbstractLockSupportStoreConfigur
 		this.persistenceUnitName = persistenceUnitName;
 		this.entityClass = entityClass;
 		this.batchSize = batchSize;
+		this.streamCommitInterval = streamCommitInterval;
+		this.persistStreamedEntities = persistStreamedEntities;
+		this.nativeUpsert = nativeUpsert;
+		this.storeMetadata = storeMetadata;
+		this.expiryAttribute = expiryAttribute;
+		this.purgeBatchSize = purgeBatchSize;
+		this.keyFilter = keyFilter;
+		this.keyFilterFalsePositiveRate = keyFilterFalsePositiveRate;
+		this.keyFilterMaxMemory = keyFilterMaxMemory;
+		this.entityManagerPoolSize = entityManagerPoolSize;
+		this.entityManagerMaxUses = entityManagerMaxUses;
+		this.fetchAttributes = fetchAttributes;
+		this.writeBehindInterval = writeBehindInterval;
+		this.writeBehindThreshold = writeBehindThreshold;
+		this.writeBehindMaxQueueSize = writeBehindMaxQueueSize;
+		this.writeBehindMaxAttempts = writeBehindMaxAttempts;
+		this.asyncStart = asyncStart;
+		this.startupTimeout = startupTimeout;
+		this.shardPersistenceUnitNames = shardPersistenceUnitNames;
+		this.shardFunction = shardFunction;
+		this.shardThreads = shardThreads;
+		this.readPersistenceUnitName = readPersistenceUnitName;
+		this.readYourWritesWindow = readYourWritesWindow;
+		this.asyncThreads = asyncThreads;
+		this.asyncMaxInFlight = asyncMaxInFlight;
+		this.asyncSubmitTimeout = asyncSubmitTimeout;
 	}
 
 	public String persistenceUnitName() {
@@ -51,13 +130,146 @@ public class JpaCacheStoreConfiguration extends AbstractLockSupportStoreConfigur
 	   return batchSize;
 	}
 
+	public int streamCommitInterval() {
+	   return streamCommitInterval;
+	}
+
+	public boolean persistStreamedEntities() {
+	   return persistStreamedEntities;
+	}
+
+	public boolean nativeUpsert() {
+	   return nativeUpsert;
+	}
+
+	public boolean storeMetadata() {
+	   return storeMetadata;
+	}
+
+	public String expiryAttribute() {
+	   return expiryAttribute;
+	}
+
+	public int purgeBatchSize() {
+	   return purgeBatchSize;
+	}
+
+	public boolean keyFilter() {
+	   return keyFilter;
+	}
+
+	public double keyFilterFalsePositiveRate() {
+	   return keyFilterFalsePositiveRate;
+	}
+
+	public long keyFilterMaxMemory() {
+	   return keyFilterMaxMemory;
+	}
+
+	public int entityManagerPoolSize() {
+	   return entityManagerPoolSize;
+	}
+
+	public int entityManagerMaxUses() {
+	   return entityManagerMaxUses;
+	}
+
+	public String fetchAttributes() {
+	   return fetchAttributes;
+	}
+
+	public long writeBehindInterval() {
+	   return writeBehindInterval;
+	}
+
+	public int writeBehindThreshold() {
+	   return writeBehindThreshold;
+	}
+
+	public int writeBehindMaxQueueSize() {
+	   return writeBehindMaxQueueSize;
+	}
+
+	public int writeBehindMaxAttempts() {
+	   return writeBehindMaxAttempts;
+	}
+
+	public boolean asyncStart() {
+	   return asyncStart;
+	}
+
+	public long startupTimeout() {
+	   return startupTimeout;
+	}
+
+	public String shardPersistenceUnitNames() {
+	   return shardPersistenceUnitNames;
+	}
+
+	public String shardFunction() {
+	   return shardFunction;
+	}
+
+	public int shardThreads() {
+	   return shardThreads;
+	}
+
+	public String readPersistenceUnitName() {
+	   return readPersistenceUnitName;
+	}
+
+	public long readYourWritesWindow() {
+	   return readYourWritesWindow;
+	}
+
+	public int asyncThreads() {
+	   return asyncThreads;
+	}
+
+	public int asyncMaxInFlight() {
+	   return asyncMaxInFlight;
+	}
+
+	public long asyncSubmitTimeout() {
+	   return asyncSubmitTimeout;
+	}
+
 	@Override
 	public JpaCacheStoreConfig adapt() {
-		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+		// the shards are routed to by a store of their own
+		JpaCacheStoreConfig config = shardPersistenceUnitNames == null ? new JpaCacheStoreConfig()
+				: new ShardedJpaCacheStoreConfig();
 
 		LegacyConfigurationAdaptor.adapt(this, config);
 		config.setPersistenceUnitName(persistenceUnitName);
 		config.setEntityClass(entityClass);
+		config.setBatchSize(batchSize);
+		config.setStreamCommitInterval(streamCommitInterval);
+		config.setPersistStreamedEntities(persistStreamedEntities);
+		config.setNativeUpsert(nativeUpsert);
+		config.setStoreMetadata(storeMetadata);
+		config.setExpiryAttribute(expiryAttribute);
+		config.setPurgeBatchSize(purgeBatchSize);
+		config.setKeyFilter(keyFilter);
+		config.setKeyFilterFalsePositiveRate(keyFilterFalsePositiveRate);
+		config.setKeyFilterMaxMemory(keyFilterMaxMemory);
+		config.setEntityManagerPoolSize(entityManagerPoolSize);
+		config.setEntityManagerMaxUses(entityManagerMaxUses);
+		config.setFetchAttributes(fetchAttributes);
+		config.setWriteBehindInterval(writeBehindInterval);
+		config.setWriteBehindThreshold(writeBehindThreshold);
+		config.setWriteBehindMaxQueueSize(writeBehindMaxQueueSize);
+		config.setWriteBehindMaxAttempts(writeBehindMaxAttempts);
+		config.setAsyncStart(asyncStart);
+		config.setStartupTimeout(startupTimeout);
+		config.setShardPersistenceUnitNames(shardPersistenceUnitNames);
+		config.setShardFunction(shardFunction);
+		config.setShardThreads(shardThreads);
+		config.setReadPersistenceUnitName(readPersistenceUnitName);
+		config.setReadYourWritesWindow(readYourWritesWindow);
+		config.setAsyncThreads(asyncThreads);
+		config.setAsyncMaxInFlight(asyncMaxInFlight);
+		config.setAsyncSubmitTimeout(asyncSubmitTimeout);
 
 		return config;
 	}
@@ -3,6 +3,7 @@ package org.infinispan.loaders.jpa.configuration;
 import org.infinispan.configuration.cache.AbstractLockSupportStoreConfigurationBuilder;
 import org.infinispan.configuration.cache.LoadersConfigurationBuilder;
 import org.infinispan.loaders.jpa.JpaCacheStoreConfig;
+import org.infinispan.commons.CacheConfigurationException;
 import org.infinispan.commons.configuration.Builder;
 import org.infinispan.commons.util.TypedProperties;
 
@@ -18,6 +19,32 @@ public class JpaCacheStoreConfigurationBuilder
 	private String persistenceUnitName;
 	private Class<?> entityClass;
 	private long batchSize = JpaCacheStoreConfig.DEFAULT_BATCH_SIZE;
+	private int streamCommitInterval = JpaCacheStoreConfig.DEFAULT_STREAM_COMMIT_INTERVAL;
+	private boolean persistStreamedEntities;
+	private boolean nativeUpsert;
+	private boolean storeMetadata;
+	private String expiryAttribute;
+	private int purgeBatchSize = JpaCacheStoreConfig.DEFAULT_PURGE_BATCH_SIZE;
+	private boolean keyFilter;
+	private double keyFilterFalsePositiveRate = JpaCacheStoreConfig.DEFAULT_KEY_FILTER_FALSE_POSITIVE_RATE;
+	private long keyFilterMaxMemory = JpaCacheStoreConfig.DEFAULT_KEY_FILTER_MAX_MEMORY;
+	private int entityManagerPoolSize;
+	private int entityManagerMaxUses;
+	private String fetchAttributes;
+	private long writeBehindInterval;
+	private int writeBehindThreshold = JpaCacheStoreConfig.DEFAULT_WRITE_BEHIND_THRESHOLD;
+	private int writeBehindMaxQueueSize = JpaCacheStoreConfig.DEFAULT_WRITE_BEHIND_MAX_QUEUE_SIZE;
+	private int writeBehindMaxAttempts = JpaCacheStoreConfig.DEFAULT_WRITE_BEHIND_MAX_ATTEMPTS;
+	private boolean asyncStart;
+	private long startupTimeout = JpaCacheStoreConfig.DEFAULT_STARTUP_TIMEOUT;
+	private String shardPersistenceUnitNames;
+	private String shardFunction;
+	private int shardThreads = JpaCacheStoreConfig.DEFAULT_SHARD_THREADS;
+	private String readPersistenceUnitName;
+	private long readYourWritesWindow = JpaCacheStoreConfig.DEFAULT_READ_YOUR_WRITES_WINDOW;
+	private int asyncThreads = JpaCacheStoreConfig.DEFAULT_ASYNC_THREADS;
+	private int asyncMaxInFlight = JpaCacheStoreConfig.DEFAULT_ASYNC_MAX_IN_FLIGHT;
+	private long asyncSubmitTimeout = JpaCacheStoreConfig.DEFAULT_ASYNC_SUBMIT_TIMEOUT;
 
 	public JpaCacheStoreConfigurationBuilder(LoadersConfigurationBuilder builder) {
 		super(builder);
@@ -38,15 +65,296 @@ public class JpaCacheStoreConfigurationBuilder
 	   return self();
 	}
 
+	/**
+	 * Number of batches after which the transaction receiving state is committed. If 0
+	 * (the default), the whole incoming stream is applied in a single transaction.
+	 */
+	public JpaCacheStoreConfigurationBuilder streamCommitInterval(int streamCommitInterval) {
+	   this.streamCommitInterval = streamCommitInterval;
+	   return self();
+	}
+
+	/**
+	 * If true, entities received from a stream are inserted with persist() rather than
+	 * merge(), avoiding a select per entity. The store is always cleared before state is
+	 * received, so this is only unsafe if the stream contains the same key twice.
+	 */
+	public JpaCacheStoreConfigurationBuilder persistStreamedEntities(boolean persistStreamedEntities) {
+	   this.persistStreamedEntities = persistStreamedEntities;
+	   return self();
+	}
+
+	/**
+	 * If true, flat entities are stored with a single native insert-or-update statement
+	 * instead of merge(), which selects the entity before inserting or updating it. Entities
+	 * with associations, collections, versions or temporal and enumerated attributes, and
+	 * entities of persistence providers other than Hibernate, are still stored with merge().
+	 */
+	public JpaCacheStoreConfigurationBuilder nativeUpsert(boolean nativeUpsert) {
+	   this.nativeUpsert = nativeUpsert;
+	   return self();
+	}
+
+	/**
+	 * If true, the creation time, last use time, lifespan and max idle time of entries are
+	 * stored in the {@link org.infinispan.loaders.jpa.MetadataEntity} table, so that expired
+	 * entries are filtered when loading and removed when purging. The persistence unit must list
+	 * <code>org.infinispan.loaders.jpa.MetadataEntity</code>. The metadata is streamed along
+	 * with the entities, and dropped by receiving stores which do not store metadata.
+	 */
+	public JpaCacheStoreConfigurationBuilder storeMetadata(boolean storeMetadata) {
+	   this.storeMetadata = storeMetadata;
+	   return self();
+	}
+
+	/**
+	 * Name of an attribute of the entity holding its expiry time, either as milliseconds since the
+	 * epoch or as a <code>Date</code> or <code>Calendar</code>. If set, purging deletes the entities
+	 * whose expiry time has passed, with bulk deletes of about <code>purgeBatchSize</code> rows
+	 * per transaction bounded by expiry time. The column should be indexed.
+	 */
+	public JpaCacheStoreConfigurationBuilder expiryAttribute(String expiryAttribute) {
+	   this.expiryAttribute = expiryAttribute;
+	   return self();
+	}
+
+	/**
+	 * Number of expired entities deleted per transaction when purging by
+	 * <code>expiryAttribute</code>, plus the ones expiring at the same time as the last one.
+	 * Defaults to 1000.
+	 */
+	public JpaCacheStoreConfigurationBuilder purgeBatchSize(int purgeBatchSize) {
+	   this.purgeBatchSize = purgeBatchSize;
+	   return self();
+	}
+
+	/**
+	 * If true, keeps an in-memory Bloom filter of the stored keys, so that loading a key which
+	 * is not stored does not query the database. The filter is built when the store starts, so the
+	 * table must not be modified by other applications, and a shared store fails to start.
+	 */
+	public JpaCacheStoreConfigurationBuilder keyFilter(boolean keyFilter) {
+	   this.keyFilter = keyFilter;
+	   return self();
+	}
+
+	/**
+	 * The rate of lookups of absent keys which the key filter lets through to the database,
+	 * as long as the filter fits in keyFilterMaxMemory. The filter hashes the 32 bit
+	 * <code>hashCode</code> of keys, so the rate cannot drop below the rate of hash code
+	 * collisions between absent and stored keys.
+	 */
+	public JpaCacheStoreConfigurationBuilder keyFilterFalsePositiveRate(double keyFilterFalsePositiveRate) {
+	   this.keyFilterFalsePositiveRate = keyFilterFalsePositiveRate;
+	   return self();
+	}
+
+	/**
+	 * The maximum size of the key filter, in bytes. A bigger table than the filter can hold at
+	 * the configured false positive rate only raises the false positive rate.
+	 */
+	public JpaCacheStoreConfigurationBuilder keyFilterMaxMemory(long keyFilterMaxMemory) {
+	   this.keyFilterMaxMemory = keyFilterMaxMemory;
+	   return self();
+	}
+
+	/**
+	 * The number of idle entity managers kept for reuse across operations. Reused entity
+	 * managers are cleared when released. 0, the default, creates and closes an entity manager
+	 * per operation.
+	 */
+	public JpaCacheStoreConfigurationBuilder entityManagerPoolSize(int entityManagerPoolSize) {
+	   this.entityManagerPoolSize = entityManagerPoolSize;
+	   return self();
+	}
+
+	/**
+	 * The number of operations after which a pooled entity manager is closed instead of being
+	 * returned to the pool. 0, the default, reuses entity managers indefinitely.
+	 */
+	public JpaCacheStoreConfigurationBuilder entityManagerMaxUses(int entityManagerMaxUses) {
+	   this.entityManagerMaxUses = entityManagerMaxUses;
+	   return self();
+	}
+
+	/**
+	 * Comma separated names of the associations of the entity to fetch along with the entities
+	 * it loads, e.g. lazy collections which must be initialized before the entities are marshalled.
+	 * Each association is fetched with one join fetch query per batch of loaded entities.
+	 */
+	public JpaCacheStoreConfigurationBuilder fetchAttributes(String fetchAttributes) {
+	   this.fetchAttributes = fetchAttributes;
+	   return self();
+	}
+
+	/**
+	 * The interval, in milliseconds, at which modifications are written to the database. If
+	 * positive, stores and removes are queued in memory, where repeated modifications of a key
+	 * replace each other, and written in one transaction per interval, or as soon as
+	 * writeBehindThreshold keys are queued. 0, the default, writes every modification immediately.
+	 */
+	public JpaCacheStoreConfigurationBuilder writeBehindInterval(long writeBehindInterval) {
+	   this.writeBehindInterval = writeBehindInterval;
+	   return self();
+	}
+
+	/**
+	 * The number of keys with queued modifications which triggers a flush before the end of
+	 * the writeBehindInterval. Also the maximum number of keys written in one transaction.
+	 * Must be at least 1.
+	 */
+	public JpaCacheStoreConfigurationBuilder writeBehindThreshold(int writeBehindThreshold) {
+	   this.writeBehindThreshold = writeBehindThreshold;
+	   return self();
+	}
+
+	/**
+	 * The maximum number of keys with modifications queued by write-behind. Once reached, the
+	 * modifications of other keys are written immediately by the calling thread, pushing back on
+	 * writers until the queue drains.
+	 */
+	public JpaCacheStoreConfigurationBuilder writeBehindMaxQueueSize(int writeBehindMaxQueueSize) {
+	   this.writeBehindMaxQueueSize = writeBehindMaxQueueSize;
+	   return self();
+	}
+
+	/**
+	 * The number of failed attempts to write a queued modification after which it is dropped
+	 * and logged as an error. A failing flush retries its modifications one by one, so that a
+	 * modification which cannot be written does not hold back the others.
+	 */
+	public JpaCacheStoreConfigurationBuilder writeBehindMaxAttempts(int writeBehindMaxAttempts) {
+	   this.writeBehindMaxAttempts = writeBehindMaxAttempts;
+	   return self();
+	}
+
+	/**
+	 * If true, the store only validates its configuration when started, and bootstraps and warms up the entity manager factory in the background
+	 */
+	public JpaCacheStoreConfigurationBuilder asyncStart(boolean asyncStart) {
+	   this.asyncStart = asyncStart;
+	   return self();
+	}
+
+	/**
+	 * The maximum time, in milliseconds, operations wait for a store started in the background to be ready
+	 */
+	public JpaCacheStoreConfigurationBuilder startupTimeout(long startupTimeout) {
+	   this.startupTimeout = startupTimeout;
+	   return self();
+	}
+
+	/**
+	 * Comma separated names of the persistence units of the shards of the store, instead of a single persistence unit. Each key is stored in the shard chosen by the shard function,
+	 * by a {@link org.infinispan.loaders.jpa.ShardedJpaCacheStore} which delegates to one store per shard
+	 */
+	public JpaCacheStoreConfigurationBuilder shardPersistenceUnitNames(String shardPersistenceUnitNames) {
+	   this.shardPersistenceUnitNames = shardPersistenceUnitNames;
+	   return self();
+	}
+
+	/**
+	 * Class name of the {@link org.infinispan.loaders.jpa.ShardFunction} choosing the shard of each key, by default a hash of the key
+	 */
+	public JpaCacheStoreConfigurationBuilder shardFunction(String shardFunction) {
+	   this.shardFunction = shardFunction;
+	   return self();
+	}
+
+	/**
+	 * Number of threads running, in parallel, the operations of a sharded store which span several
+	 * shards. The calling thread runs the last shard of such operations itself, and operations
+	 * touching a single shard run on the calling thread only
+	 */
+	public JpaCacheStoreConfigurationBuilder shardThreads(int shardThreads) {
+	   this.shardThreads = shardThreads;
+	   return self();
+	}
+
+	/**
+	 * Name of the persistence unit of a read replica, to which the loads of keys not written within the read-your-writes window and the bulk loads are routed
+	 */
+	public JpaCacheStoreConfigurationBuilder readPersistenceUnitName(String readPersistenceUnitName) {
+	   this.readPersistenceUnitName = readPersistenceUnitName;
+	   return self();
+	}
+
+	/**
+	 * Time, in milliseconds, during which written keys are loaded from the primary persistence unit rather than from the read replica.
+	 * Only the writes of this node are tracked, so read-your-writes does not hold on a store shared by several nodes: a node may
+	 * load from the replica a key another node has just written
+	 */
+	public JpaCacheStoreConfigurationBuilder readYourWritesWindow(long readYourWritesWindow) {
+	   this.readYourWritesWindow = readYourWritesWindow;
+	   return self();
+	}
+
+	/**
+	 * Number of threads running the asynchronous operations of the store, started on the first asynchronous operation
+	 */
+	public JpaCacheStoreConfigurationBuilder asyncThreads(int asyncThreads) {
+	   this.asyncThreads = asyncThreads;
+	   return self();
+	}
+
+	/**
+	 * Maximum number of asynchronous operations submitted and not yet completed; further submissions wait up to asyncSubmitTimeout for one to complete, then fail
+	 */
+	public JpaCacheStoreConfigurationBuilder asyncMaxInFlight(int asyncMaxInFlight) {
+	   this.asyncMaxInFlight = asyncMaxInFlight;
+	   return self();
+	}
+
+	/**
+	 * The maximum time, in milliseconds, a submission of an asynchronous operation waits for one of the
+	 * asyncMaxInFlight operations in flight to complete, before failing
+	 */
+	public JpaCacheStoreConfigurationBuilder asyncSubmitTimeout(long asyncSubmitTimeout) {
+	   this.asyncSubmitTimeout = asyncSubmitTimeout;
+	   return self();
+	}
+
 	@Override
 	public void validate() {
 		// how do you validate required attributes?
 		super.validate();
+		if (writeBehindThreshold < 1)
+			throw new CacheConfigurationException("writeBehindThreshold must be at least 1, was " + writeBehindThreshold);
+		if (writeBehindMaxQueueSize < 1)
+			throw new CacheConfigurationException("writeBehindMaxQueueSize must be at least 1, was " + writeBehindMaxQueueSize);
+		if (writeBehindMaxAttempts < 1)
+			throw new CacheConfigurationException("writeBehindMaxAttempts must be at least 1, was " + writeBehindMaxAttempts);
+		if (shardThreads < 1)
+			throw new CacheConfigurationException("shardThreads must be at least 1, was " + shardThreads);
 	}
 
 	@Override
 	public JpaCacheStoreConfiguration create() {
 		return new JpaCacheStoreConfiguration(persistenceUnitName, entityClass, batchSize,
+				streamCommitInterval, persistStreamedEntities, nativeUpsert,
+				storeMetadata,
+				expiryAttribute,
+				purgeBatchSize,
+				keyFilter,
+				keyFilterFalsePositiveRate,
+				keyFilterMaxMemory,
+				entityManagerPoolSize,
+				entityManagerMaxUses,
+				fetchAttributes,
+				writeBehindInterval,
+				writeBehindThreshold,
+				writeBehindMaxQueueSize,
+				writeBehindMaxAttempts,
+				asyncStart,
+				startupTimeout,
+				shardPersistenceUnitNames,
+				shardFunction,
+				shardThreads,
+				readPersistenceUnitName,
+				readYourWritesWindow,
+				asyncThreads,
+				asyncMaxInFlight,
+				asyncSubmitTimeout,
 				lockAcquistionTimeout, lockConcurrencyLevel, purgeOnStartup,
 				purgeSynchronously, purgerThreads, fetchPersistentState,
 				ignoreModifications,
@@ -59,6 +367,32 @@ public class JpaCacheStoreConfigurationBuilder
 		persistenceUnitName = template.persistenceUnitName();
 		entityClass = template.entityClass();
 		batchSize = template.batchSize();
+		streamCommitInterval = template.streamCommitInterval();
+		persistStreamedEntities = template.persistStreamedEntities();
+		nativeUpsert = template.nativeUpsert();
+		storeMetadata = template.storeMetadata();
+		expiryAttribute = template.expiryAttribute();
+		purgeBatchSize = template.purgeBatchSize();
+		keyFilter = template.keyFilter();
+		keyFilterFalsePositiveRate = template.keyFilterFalsePositiveRate();
+		keyFilterMaxMemory = template.keyFilterMaxMemory();
+		entityManagerPoolSize = template.entityManagerPoolSize();
+		entityManagerMaxUses = template.entityManagerMaxUses();
+		fetchAttributes = template.fetchAttributes();
+		writeBehindInterval = template.writeBehindInterval();
+		writeBehindThreshold = template.writeBehindThreshold();
+		writeBehindMaxQueueSize = template.writeBehindMaxQueueSize();
+		writeBehindMaxAttempts = template.writeBehindMaxAttempts();
+		asyncStart = template.asyncStart();
+		startupTimeout = template.startupTimeout();
+		shardPersistenceUnitNames = template.shardPersistenceUnitNames();
+		shardFunction = template.shardFunction();
+		shardThreads = template.shardThreads();
+		readPersistenceUnitName = template.readPersistenceUnitName();
+		readYourWritesWindow = template.readYourWritesWindow();
+		asyncThreads = template.asyncThreads();
+		asyncMaxInFlight = template.asyncMaxInFlight();
+		asyncSubmitTimeout = template.asyncSubmitTimeout();
 
 		// LockSupportStore-specific configuration
 		lockAcquistionTimeout = template.lockAcquistionTimeout();
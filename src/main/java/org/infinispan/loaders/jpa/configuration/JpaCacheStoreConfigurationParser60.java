@@ -73,6 +73,110 @@ public class JpaCacheStoreConfigurationParser60 implements
 			   builder.batchSize(Long.valueOf(value));
 			   break;
 			}
+			case STREAM_COMMIT_INTERVAL: {
+			   builder.streamCommitInterval(Integer.valueOf(value));
+			   break;
+			}
+			case PERSIST_STREAMED_ENTITIES: {
+			   builder.persistStreamedEntities(Boolean.valueOf(value));
+			   break;
+			}
+			case NATIVE_UPSERT: {
+			   builder.nativeUpsert(Boolean.valueOf(value));
+			   break;
+			}
+			case STORE_METADATA: {
+			   builder.storeMetadata(Boolean.valueOf(value));
+			   break;
+			}
+			case EXPIRY_ATTRIBUTE: {
+			   builder.expiryAttribute(value);
+			   break;
+			}
+			case PURGE_BATCH_SIZE: {
+			   builder.purgeBatchSize(Integer.valueOf(value));
+			   break;
+			}
+			case KEY_FILTER: {
+			   builder.keyFilter(Boolean.valueOf(value));
+			   break;
+			}
+			case KEY_FILTER_FALSE_POSITIVE_RATE: {
+			   builder.keyFilterFalsePositiveRate(Double.valueOf(value));
+			   break;
+			}
+			case KEY_FILTER_MAX_MEMORY: {
+			   builder.keyFilterMaxMemory(Long.valueOf(value));
+			   break;
+			}
+			case ENTITY_MANAGER_POOL_SIZE: {
+			   builder.entityManagerPoolSize(Integer.valueOf(value));
+			   break;
+			}
+			case ENTITY_MANAGER_MAX_USES: {
+			   builder.entityManagerMaxUses(Integer.valueOf(value));
+			   break;
+			}
+			case FETCH_ATTRIBUTES: {
+			   builder.fetchAttributes(value);
+			   break;
+			}
+			case WRITE_BEHIND_INTERVAL: {
+			   builder.writeBehindInterval(Long.valueOf(value));
+			   break;
+			}
+			case WRITE_BEHIND_THRESHOLD: {
+			   builder.writeBehindThreshold(Integer.valueOf(value));
+			   break;
+			}
+			case WRITE_BEHIND_MAX_QUEUE_SIZE: {
+			   builder.writeBehindMaxQueueSize(Integer.valueOf(value));
+			   break;
+			}
+			case WRITE_BEHIND_MAX_ATTEMPTS: {
+			   builder.writeBehindMaxAttempts(Integer.valueOf(value));
+			   break;
+			}
+			case ASYNC_START: {
+			   builder.asyncStart(Boolean.valueOf(value));
+			   break;
+			}
+			case STARTUP_TIMEOUT: {
+			   builder.startupTimeout(Long.valueOf(value));
+			   break;
+			}
+			case SHARD_PERSISTENCE_UNIT_NAMES: {
+			   builder.shardPersistenceUnitNames(value);
+			   break;
+			}
+			case SHARD_FUNCTION: {
+			   builder.shardFunction(value);
+			   break;
+			}
+			case SHARD_THREADS: {
+			   builder.shardThreads(Integer.valueOf(value));
+			   break;
+			}
+			case READ_PERSISTENCE_UNIT_NAME: {
+			   builder.readPersistenceUnitName(value);
+			   break;
+			}
+			case READ_YOUR_WRITES_WINDOW: {
+			   builder.readYourWritesWindow(Long.valueOf(value));
+			   break;
+			}
+			case ASYNC_THREADS: {
+			   builder.asyncThreads(Integer.valueOf(value));
+			   break;
+			}
+			case ASYNC_MAX_IN_FLIGHT: {
+			   builder.asyncMaxInFlight(Integer.valueOf(value));
+			   break;
+			}
+			case ASYNC_SUBMIT_TIMEOUT: {
+			   builder.asyncSubmitTimeout(Long.valueOf(value));
+			   break;
+			}
 			case PERSISTENCE_UNIT_NAME: {
 				builder.persistenceUnitName(value);
 				break;
@@ -10,12 +10,19 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.infinispan.Cache;
 import org.infinispan.container.entries.InternalCacheEntry;
@@ -317,6 +324,41 @@ public abstract class BaseJpaCacheStoreTest extends AbstractInfinispanTest {
 		assert expected.isEmpty();
 	}
 
+	public void testStreamingAPIMultiplePages() throws IOException, CacheLoaderException {
+		int count = (int) JpaCacheStoreConfig.DEFAULT_BATCH_SIZE * 2 + 1;
+		List<Modification> mods = new ArrayList<Modification>();
+		for (int i = 0; i < count; i++) {
+			TestObject obj = createTestObject("testStreamingAPIMultiplePages" + i);
+			mods.add(new Store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue())));
+		}
+		cs.prepare(mods, gtf.newGlobalTransaction(null, false), true);
+
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutput oo = marshaller.startObjectOutput(out, false, 12);
+		try {
+			cs.toStream(new UnclosableObjectOutputStream(oo));
+		} finally {
+			marshaller.finishObjectOutput(oo);
+			out.close();
+			cs.clear();
+		}
+
+		assert cs.loadAll().isEmpty();
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		ObjectInput oi = marshaller.startObjectInput(in, false);
+		try {
+			cs.fromStream(new UnclosableObjectInputStream(oi));
+		} finally {
+			marshaller.finishObjectInput(oi);
+			in.close();
+		}
+
+		assert cs.loadAll().size() == count;
+		assert cs.load(count - 1).size() == count - 1;
+	}
+
 	public void testStreamingAPIReusingStreams() throws IOException,
 			CacheLoaderException {
 
@@ -487,6 +529,48 @@ public abstract class BaseJpaCacheStoreTest extends AbstractInfinispanTest {
 		assert cs.containsKey(old.getKey());
 	}
 
+	public void testCommitIsAtomic() throws CacheLoaderException {
+		TestObject old = createTestObject("testCommitIsAtomicOld");
+		TestObject obj1 = createTestObject("testCommitIsAtomic1");
+		TestObject obj2 = createTestObject("testCommitIsAtomic2");
+
+		cs.store(TestInternalCacheEntryFactory.create(old.getKey(), old.getValue()));
+
+		List<Modification> mods = new ArrayList<Modification>();
+		mods.add(new Store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue())));
+		mods.add(new Remove(old.getKey()));
+		// id of the entity does not match the key
+		mods.add(new Store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj2.getValue())));
+		GlobalTransaction tx = gtf.newGlobalTransaction(null, false);
+		cs.prepare(mods, tx, false);
+
+		boolean expectedExceptionCaught = false;
+		try {
+			cs.commit(tx);
+		} catch (JpaCacheLoaderException e) {
+			expectedExceptionCaught = true;
+		}
+
+		assert expectedExceptionCaught;
+		assert !cs.containsKey(obj1.getKey());
+		assert cs.containsKey(old.getKey());
+	}
+
+	public void testCommitLargerThanBatchSize() throws CacheLoaderException {
+		List<Modification> mods = new ArrayList<Modification>();
+		List<Object> keys = new ArrayList<Object>();
+		for (int i = 0; i < JpaCacheStoreConfig.DEFAULT_BATCH_SIZE * 2 + 1; i++) {
+			TestObject obj = createTestObject("testCommitLargerThanBatchSize" + i);
+			mods.add(new Store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue())));
+			keys.add(obj.getKey());
+		}
+		GlobalTransaction tx = gtf.newGlobalTransaction(null, false);
+		cs.prepare(mods, tx, true);
+
+		for (Object key : keys)
+			assert cs.containsKey(key);
+	}
+
 	public void testRollbackFromADifferentThreadReusingTransactionKey()
 			throws CacheLoaderException, InterruptedException {
 		TestObject old = createTestObject("testRollbackOld");
@@ -589,6 +673,108 @@ public abstract class BaseJpaCacheStoreTest extends AbstractInfinispanTest {
 		assert expected.isEmpty();
 	}
 
+	public void testRemove() throws CacheLoaderException {
+		TestObject obj = createTestObject("testRemove");
+
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		assert cs.containsKey(obj.getKey());
+
+		assert cs.remove(obj.getKey());
+		assert !cs.containsKey(obj.getKey());
+		assert !cs.remove(obj.getKey());
+	}
+
+	public void testBulkLoad() throws CacheLoaderException {
+		List<TestObject> objs = new ArrayList<TestObject>();
+		List<Object> keys = new ArrayList<Object>();
+		for (int i = 0; i < 5; i++) {
+			TestObject obj = createTestObject("testBulkLoad" + i);
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			objs.add(obj);
+			keys.add(obj.getKey());
+		}
+		keys.remove(4);
+		keys.add(createTestObject("testBulkLoadMissing").getKey());
+		// none of the tested entities has an Integer identifier
+		keys.add(Integer.valueOf(42));
+
+		Map<Object, InternalCacheEntry> entries = loadAll(keys);
+
+		assert entries.size() == 4 : "Expected 4 entries but got " + entries.size();
+		for (TestObject obj : objs.subList(0, 4))
+			assert entries.get(obj.getKey()).getValue().equals(obj.getValue());
+		assert loadAll(Collections.emptySet()).isEmpty();
+	}
+
+	public void testConcurrentLoads() throws Exception {
+		final TestObject obj = createTestObject("testConcurrentLoads");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		int threads = 8;
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<InternalCacheEntry>> loads = new ArrayList<Future<InternalCacheEntry>>();
+			for (int i = 0; i < threads; i++) {
+				loads.add(executor.submit(new Callable<InternalCacheEntry>() {
+					@Override
+					public InternalCacheEntry call() throws Exception {
+						barrier.await();
+						return cs.load(obj.getKey());
+					}
+				}));
+			}
+			for (Future<InternalCacheEntry> load : loads)
+				assert load.get().getValue().equals(obj.getValue());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testProcessKeys() throws CacheLoaderException {
+		Set<Object> keys = new HashSet<Object>();
+		for (int i = 0; i < 5; i++) {
+			TestObject obj = createTestObject("testProcessKeys" + i);
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			keys.add(obj.getKey());
+		}
+		Object excluded = keys.iterator().next();
+
+		final Set<Object> processed = new HashSet<Object>();
+		processKeys(Collections.singleton(excluded), new KeyProcessor() {
+			@Override
+			public boolean processKey(Object key) {
+				processed.add(key);
+				return true;
+			}
+		});
+		keys.remove(excluded);
+		assert processed.equals(keys) : processed;
+
+		processed.clear();
+		processKeys(null, new KeyProcessor() {
+			@Override
+			public boolean processKey(Object key) {
+				processed.add(key);
+				return processed.size() < 2;
+			}
+		});
+		assert processed.size() == 2 : processed;
+	}
+
+	private Map<Object, InternalCacheEntry> loadAll(Collection<?> keys) throws CacheLoaderException {
+		if (cs instanceof ShardedJpaCacheStore)
+			return ((ShardedJpaCacheStore) cs).loadAll(keys);
+		return ((JpaCacheStore) cs).loadAll(keys);
+	}
+
+	private void processKeys(Set<Object> keysToExclude, KeyProcessor processor) throws CacheLoaderException {
+		if (cs instanceof ShardedJpaCacheStore)
+			((ShardedJpaCacheStore) cs).processKeys(keysToExclude, processor);
+		else
+			((JpaCacheStore) cs).processKeys(keysToExclude, processor);
+	}
+
 	public void testConcurrency() throws Exception {
 		int numThreads = 3;
 		final int loops = 500;
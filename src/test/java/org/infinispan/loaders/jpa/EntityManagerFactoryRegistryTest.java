@@ -0,0 +1,86 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.infinispan.test.AbstractInfinispanTest;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.EntityManagerFactoryRegistryTest")
+public class EntityManagerFactoryRegistryTest extends AbstractInfinispanTest {
+	private static final String PERSISTENCE_UNIT_NAME = "org.infinispan.loaders.jpa";
+	private static final String OTHER_PERSISTENCE_UNIT_NAME = "org.infinispan.loaders.jpa.configurationTest";
+
+	public void testUsageCounting() {
+		EntityManagerFactoryRegistry registry = new EntityManagerFactoryRegistry();
+		EntityManagerFactory emf = registry.getEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		assert registry.getEntityManagerFactory(PERSISTENCE_UNIT_NAME) == emf;
+		assert registry.getUsage(PERSISTENCE_UNIT_NAME) == 2;
+		assert registry.getBootstrapCount() == 1;
+		assert registry.getBootstrapTime(PERSISTENCE_UNIT_NAME, TimeUnit.NANOSECONDS) > 0;
+
+		registry.closeEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		assert emf.isOpen();
+		registry.closeEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		assert !emf.isOpen();
+		assert registry.getUsage(PERSISTENCE_UNIT_NAME) == 0;
+
+		EntityManagerFactory reopened = registry.getEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		assert reopened != emf && reopened.isOpen();
+		registry.closeAll();
+		assert !reopened.isOpen();
+	}
+
+	public void testFailedBootstrapIsNotRegistered() {
+		EntityManagerFactoryRegistry registry = new EntityManagerFactoryRegistry();
+		for (int i = 0; i < 2; i++) {
+			try {
+				registry.getEntityManagerFactory("org.infinispan.loaders.jpa.missing");
+				assert false : "Bootstrapped a missing persistence unit";
+			} catch (PersistenceException e) {
+				// expected
+			}
+			assert registry.getUsage("org.infinispan.loaders.jpa.missing") == 0;
+		}
+	}
+
+	public void testConcurrentBootstrap() throws Exception {
+		final EntityManagerFactoryRegistry registry = new EntityManagerFactoryRegistry();
+		final int threads = 8;
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<EntityManagerFactory>> futures = new ArrayList<Future<EntityManagerFactory>>();
+			for (int i = 0; i < threads; i++) {
+				final String persistenceUnitName = i % 2 == 0 ? PERSISTENCE_UNIT_NAME : OTHER_PERSISTENCE_UNIT_NAME;
+				futures.add(executor.submit(new Callable<EntityManagerFactory>() {
+					@Override
+					public EntityManagerFactory call() throws Exception {
+						barrier.await();
+						return registry.getEntityManagerFactory(persistenceUnitName);
+					}
+				}));
+			}
+
+			for (int i = 0; i < threads; i++)
+				assert futures.get(i).get() == futures.get(i % 2).get();
+			assert futures.get(0).get() != futures.get(1).get();
+			// one bootstrap per persistence unit
+			assert registry.getBootstrapCount() == 2;
+			assert registry.getUsage(PERSISTENCE_UNIT_NAME) == threads / 2;
+			assert registry.getUsage(OTHER_PERSISTENCE_UNIT_NAME) == threads / 2;
+		} finally {
+			executor.shutdownNow();
+			registry.closeAll();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreAsyncStartTest")
+public class JpaCacheStoreAsyncStartTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setAsyncStart(true);
+		config.setStartupTimeout(30000);
+	}
+
+	private JpaCacheStore createCacheStore(String persistenceUnitName, Class<?> entityClass) throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setPersistenceUnitName(persistenceUnitName);
+		config.setEntityClass(entityClass);
+
+		return createCacheStore(config);
+	}
+
+	public void testOperationsWaitForStartup() throws Exception {
+		cs.stop();
+		cs = createCacheStore();
+
+		TestObject obj = createTestObject("testOperationsWaitForStartup");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		assert ((JpaCacheStore) cs).getEntityManagerFactory() != null;
+		assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+	}
+
+	public void testFailedStartupFailsOperations() throws Exception {
+		JpaCacheStore store = createCacheStore("org.infinispan.loaders.jpa.missing", User.class);
+		try {
+			for (int i = 0; i < 2; i++) {
+				try {
+					store.load("u_testFailedStartupFailsOperations");
+					assert false : "Loaded from a store which failed to start";
+				} catch (JpaCacheLoaderException e) {
+					// expected
+				}
+			}
+		} finally {
+			store.stop();
+		}
+	}
+
+	@Test(expectedExceptions = CacheLoaderException.class)
+	public void testInvalidEntityClassFailsStart() throws Exception {
+		createCacheStore("org.infinispan.loaders.jpa", String.class);
+	}
+
+	public void testStopDuringStartupReleasesTheStore() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		// operations give up long before the startup completes
+		config.setStartupTimeout(1);
+		config.setWriteBehindInterval(600000);
+
+		for (int i = 0; i < 10; i++) {
+			JpaCacheStore store = createCacheStore(config);
+			store.stop();
+
+			Thread startup = findThread("JpaCacheStore-Startup-User");
+			if (startup != null)
+				startup.join(30000);
+			assert findThread("JpaCacheStore-WriteBehind-User") == null : "The write-behind thread was leaked";
+		}
+	}
+
+	private static Thread findThread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name) && thread.isAlive())
+				return thread;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,123 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreAsyncTest")
+public class JpaCacheStoreAsyncTest extends JpaCacheStoreUserEntityTest {
+
+	public void testAsyncOperations() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj1 = createTestObject("testAsyncOperations1");
+		TestObject obj2 = createTestObject("testAsyncOperations2");
+
+		store.storeAsync(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue())).get();
+		store.storeAsync(TestInternalCacheEntryFactory.create(obj2.getKey(), obj2.getValue())).get();
+
+		assert store.loadAsync(obj1.getKey()).get().getValue().equals(obj1.getValue());
+		Map<Object, InternalCacheEntry> entries = store.loadAllAsync(Arrays.asList(obj1.getKey(), obj2.getKey())).get();
+		assert entries.size() == 2;
+		assert store.loadAllAsync().get().size() == 2;
+
+		assert store.removeAsync(obj1.getKey()).get();
+		assert store.loadAsync(obj1.getKey()).get() == null;
+		assert store.getAsyncInFlight() == 0;
+	}
+
+	public void testListenersAreNotified() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testListenersAreNotified");
+		final CountDownLatch notified = new CountDownLatch(2);
+		FutureListener<Void> listener = new FutureListener<Void>() {
+			@Override
+			public void futureDone(Future<Void> future) {
+				notified.countDown();
+			}
+		};
+
+		NotifyingFuture<Void> future = store.storeAsync(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		future.attachListener(listener);
+		future.get();
+		// notified right away once done
+		future.attachListener(listener);
+		assert notified.await(10, TimeUnit.SECONDS);
+	}
+
+	public void testInFlightLimitAppliesBackPressure() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setAsyncMaxInFlight(1);
+		config.setAsyncSubmitTimeout(200);
+		JpaCacheStore store = createCacheStore(config);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			store.setAsyncExecutor(executor);
+			// keeps the only thread busy, so that the first operation stays in flight
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+
+			Future<InternalCacheEntry> first = store.loadAsync("u_testInFlightLimitAppliesBackPressure");
+			assert store.getAsyncInFlight() == 1;
+			try {
+				store.loadAsync("u_testInFlightLimitAppliesBackPressure");
+				assert false : "Submitted more operations than the in-flight limit";
+			} catch (JpaCacheLoaderException e) {
+				// expected
+			}
+
+			blocked.countDown();
+			assert first.get() == null;
+			store.loadAsync("u_testInFlightLimitAppliesBackPressure").get();
+		} finally {
+			blocked.countDown();
+			store.stop();
+			executor.shutdown();
+		}
+	}
+
+	public void testCancelledOperationReleasesItsPermit() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			store.setAsyncExecutor(executor);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+
+			Future<InternalCacheEntry> load = store.loadAsync("u_testCancelledOperationReleasesItsPermit");
+			assert store.getAsyncInFlight() == 1;
+			assert load.cancel(false);
+			assert store.getAsyncInFlight() == 0;
+		} finally {
+			blocked.countDown();
+			executor.shutdown();
+		}
+	}
+}
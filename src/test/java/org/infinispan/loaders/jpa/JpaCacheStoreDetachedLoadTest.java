@@ -0,0 +1,78 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Loaded entities are detached from the entity manager which loaded them, so that changes
+ * to them are never flushed by a later operation reusing the same entity manager.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreDetachedLoadTest")
+public class JpaCacheStoreDetachedLoadTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		// a single pooled entity manager serves every operation
+		config.setEntityManagerPoolSize(1);
+		config.setEntityManagerMaxUses(0);
+	}
+
+	public void testLoadedEntityIsDetached() throws Exception {
+		TestObject obj = createTestObject("testLoadedEntityIsDetached");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		assertChangesAreNotFlushed((User) cs.load(obj.getKey()).getValue(), obj);
+	}
+
+	public void testBulkLoadedEntitiesAreDetached() throws Exception {
+		TestObject obj = createTestObject("testBulkLoadedEntitiesAreDetached");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		Set<InternalCacheEntry> entries = cs.loadAll();
+		assert entries.size() == 1;
+		assertChangesAreNotFlushed((User) entries.iterator().next().getValue(), obj);
+	}
+
+	public void testOnlyHintsOfTheProviderInUseAreSet() throws Exception {
+		Map<String, Object> hints = JpaCacheStore.readOnlyHints(((JpaCacheStore) cs).getEntityManagerFactory());
+		assert hints.keySet().equals(new HashSet<String>(Arrays.asList("org.hibernate.readOnly", "org.hibernate.flushMode"))) : hints;
+	}
+
+	private void assertChangesAreNotFlushed(User loaded, TestObject obj) throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		EntityManager em = store.acquireEntityManager();
+		try {
+			assert !em.contains(loaded);
+		} finally {
+			store.releaseEntityManager(em);
+		}
+
+		Statistics statistics = ((HibernateEntityManagerFactory) store.getEntityManagerFactory())
+				.getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			statistics.clear();
+			loaded.setNote("changed after loading");
+
+			// commits a transaction with the entity manager which loaded the user
+			TestObject other = createTestObject("other");
+			cs.store(TestInternalCacheEntryFactory.create(other.getKey(), other.getValue()));
+
+			assert statistics.getEntityUpdateCount() == 0 : statistics.getEntityUpdateCount() + " updates";
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+		assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+	}
+}
@@ -0,0 +1,53 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.CacheStore;
+import org.infinispan.loaders.jpa.entity.Document;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreDocumentUpsertTest")
+public class JpaCacheStoreDocumentUpsertTest extends BaseJpaCacheStoreTest {
+
+	@Override
+	protected CacheStore createCacheStore() throws Exception {
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
+		config.setEntityClass(Document.class);
+		config.setPurgeSynchronously(true);
+		config.setNativeUpsert(true);
+
+		JpaCacheStore store = new JpaCacheStore();
+		store.init(config, cm.getCache(), getMarshaller());
+		store.start();
+
+		return store;
+	}
+
+	@Override
+	protected TestObject createTestObject(String suffix) {
+		Document doc = new Document();
+		doc.setName("d_" + suffix);
+		doc.setTitle("t_" + suffix);
+		doc.setArticle("Some article " + suffix);
+
+		return new TestObject(doc.getName(), doc);
+	}
+
+	public void testUpsertStatementIsUsed() {
+		UpsertStatement upsert = ((JpaCacheStore) cs).getUpsertStatement();
+		assert upsert != null;
+		assert upsert.toString().startsWith("MERGE INTO Document (name, ") : upsert;
+	}
+
+	public void testUpdate() throws Exception {
+		TestObject obj = createTestObject("testUpdate");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		Document doc = (Document) obj.getValue();
+		doc.setArticle("updated");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), doc));
+
+		assert "updated".equals(((Document) cs.load(obj.getKey()).getValue()).getArticle());
+	}
+}
@@ -0,0 +1,65 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreEntityManagerPoolTest")
+public class JpaCacheStoreEntityManagerPoolTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setEntityManagerPoolSize(4);
+		config.setEntityManagerMaxUses(10);
+	}
+
+	public void testEntityManagersAreReused() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		long created = store.getEntityManagersCreated();
+
+		for (int i = 0; i < 20; i++) {
+			TestObject obj = createTestObject("testEntityManagersAreReused" + i);
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+		}
+
+		// one entity manager serves 10 operations before it is replaced
+		assert store.getEntityManagersCreated() - created == 4 : store.getEntityManagersCreated() - created;
+		assert store.getEntityManagersReused() > 30;
+	}
+
+	public void testReusedEntityManagerDoesNotReturnStaleEntities() throws Exception {
+		TestObject obj = createTestObject("testReusedEntityManagerDoesNotReturnStaleEntities");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		cs.load(obj.getKey());
+
+		User updated = (User) createTestObject("testReusedEntityManagerDoesNotReturnStaleEntities").getValue();
+		updated.setNote("updated");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), updated));
+
+		assert ((User) cs.load(obj.getKey()).getValue()).getNote().equals("updated");
+	}
+
+	public void testFailedEntityManagerIsNotReused() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testFailedEntityManagerIsNotReused");
+		// warm the pool with an entity manager which is not yet due for replacement
+		cs.load(obj.getKey());
+
+		User invalid = (User) obj.getValue();
+		invalid.setFirstName(null);
+		try {
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), invalid));
+			assert false : "a user without first name must not be stored";
+		} catch (CacheLoaderException e) {
+			// expected
+		}
+
+		long created = store.getEntityManagersCreated();
+		long reused = store.getEntityManagersReused();
+		assert cs.load(obj.getKey()) == null;
+		assert store.getEntityManagersCreated() == created + 1;
+		assert store.getEntityManagersReused() == reused;
+	}
+}
@@ -0,0 +1,93 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.marshall.TestObjectStreamMarshaller;
+import org.infinispan.test.AbstractInfinispanTest;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestCacheManagerFactory;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.infinispan.loaders.jpa.entity.Customer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Stores an entity with a lazy collection and reads the collection after the entity left the
+ * store, which fails unless the collection was fetched.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreFetchAttributesTest")
+public class JpaCacheStoreFetchAttributesTest extends AbstractInfinispanTest {
+	private EmbeddedCacheManager cm;
+	private JpaCacheStore cs;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		cm = TestCacheManagerFactory.createCacheManager(false);
+		cm.start();
+		cs = createCacheStore("phoneNumbers");
+		cs.clear();
+		for (int i = 0; i < 5; i++)
+			cs.store(TestInternalCacheEntryFactory.create("c_" + i, createCustomer("c_" + i)));
+	}
+
+	@AfterMethod(alwaysRun = true)
+	public void tearDown() throws Exception {
+		try {
+			if (cs != null) {
+				cs.clear();
+				cs.stop();
+			}
+		} finally {
+			TestingUtil.killCacheManagers(cm);
+		}
+	}
+
+	private JpaCacheStore createCacheStore(String fetchAttributes) throws Exception {
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
+		config.setEntityClass(Customer.class);
+		config.setPurgeSynchronously(true);
+		config.setBatchSize(2);
+		config.setFetchAttributes(fetchAttributes);
+
+		JpaCacheStore store = new JpaCacheStore();
+		store.init(config, cm.getCache(), new TestObjectStreamMarshaller(false));
+		store.start();
+
+		return store;
+	}
+
+	private Customer createCustomer(String id) {
+		Customer customer = new Customer();
+		customer.setId(id);
+		customer.setName("n_" + id);
+		customer.getPhoneNumbers().add("1-" + id);
+		customer.getPhoneNumbers().add("2-" + id);
+		return customer;
+	}
+
+	public void testLoad() throws Exception {
+		Customer customer = (Customer) cs.load("c_1").getValue();
+		assert customer.equals(createCustomer("c_1"));
+	}
+
+	public void testLoadAll() throws Exception {
+		List<InternalCacheEntry> entries = new ArrayList<InternalCacheEntry>(cs.loadAll());
+		entries.addAll(cs.load(3));
+		entries.addAll(cs.loadAll(cs.loadAllKeys(null)).values());
+
+		assert entries.size() == 13 : entries.size();
+		for (InternalCacheEntry ice : entries)
+			assert ice.getValue().equals(createCustomer((String) ice.getKey()));
+	}
+
+	@Test (expectedExceptions = JpaCacheLoaderException.class)
+	public void testFetchAttributeMustBeAnAssociation() throws Exception {
+		createCacheStore("name");
+	}
+}
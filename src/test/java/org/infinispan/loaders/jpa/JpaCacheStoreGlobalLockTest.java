@@ -0,0 +1,115 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.loaders.modifications.Clear;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.marshall.TestObjectStreamMarshaller;
+import org.infinispan.test.AbstractInfinispanTest;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestCacheManagerFactory;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * A clear applied with other modifications needs the exclusive global lock, which another
+ * thread holds shared.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreGlobalLockTest")
+public class JpaCacheStoreGlobalLockTest extends AbstractInfinispanTest {
+
+	/**
+	 * Exposes the global lock of the store.
+	 */
+	static class GlobalLockStore extends JpaCacheStore {
+		boolean lockShared() {
+			return acquireGlobalLock(false);
+		}
+
+		void unlockShared() {
+			releaseGlobalLock(false);
+		}
+	}
+
+	private EmbeddedCacheManager cm;
+	private GlobalLockStore cs;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		cm = TestCacheManagerFactory.createCacheManager(false);
+		cm.start();
+		executor = Executors.newSingleThreadExecutor();
+
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
+		config.setEntityClass(User.class);
+		config.setPurgeSynchronously(true);
+		config.setLockAcquistionTimeout(100);
+
+		cs = new GlobalLockStore();
+		cs.init(config, cm.getCache(), new TestObjectStreamMarshaller(false));
+		cs.start();
+	}
+
+	@AfterMethod(alwaysRun = true)
+	public void tearDown() throws Exception {
+		try {
+			executor.shutdownNow();
+			if (cs != null) {
+				cs.clear();
+				cs.stop();
+			}
+		} finally {
+			TestingUtil.killCacheManagers(cm);
+		}
+	}
+
+	public void testClearFailsWithoutGlobalLock() throws Exception {
+		User user = new User();
+		user.setUsername("u_testClearFailsWithoutGlobalLock");
+		user.setFirstName("fn_testClearFailsWithoutGlobalLock");
+		user.setLastName("ln_testClearFailsWithoutGlobalLock");
+		cs.store(TestInternalCacheEntryFactory.create(user.getUsername(), user));
+
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<Void> holder = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				assert cs.lockShared();
+				try {
+					locked.countDown();
+					release.await();
+				} finally {
+					cs.unlockShared();
+				}
+				return null;
+			}
+		});
+
+		try {
+			assert locked.await(10, TimeUnit.SECONDS);
+			try {
+				cs.applyModifications(Collections.singletonList(new Clear()));
+				assert false : "Cleared without the global lock";
+			} catch (JpaCacheLoaderException e) {
+				// expected
+			}
+		} finally {
+			release.countDown();
+		}
+		holder.get(10, TimeUnit.SECONDS);
+
+		assert cs.load(user.getUsername()) != null;
+	}
+}
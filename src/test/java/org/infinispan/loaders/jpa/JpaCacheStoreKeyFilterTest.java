@@ -0,0 +1,95 @@
+package org.infinispan.loaders.jpa;
+
+import javax.persistence.EntityManager;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestCacheManagerFactory;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreKeyFilterTest")
+public class JpaCacheStoreKeyFilterTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setKeyFilter(true);
+	}
+
+	public void testAbsentKeysSkipDatabase() throws Exception {
+		TestObject obj = createTestObject("testAbsentKeysSkipDatabase");
+		persistBypassingStore(obj);
+
+		// the filter does not know about the entity, so the database is not queried
+		assert cs.load(obj.getKey()) == null;
+		assert !cs.containsKey(obj.getKey());
+
+		((JpaCacheStore) cs).rebuildKeyFilter();
+		assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+	}
+
+	public void testClearKeepsKeysStoredAfterIt() throws Exception {
+		TestObject obj1 = createTestObject("testClearKeepsKeysStoredAfterIt1");
+		TestObject obj2 = createTestObject("testClearKeepsKeysStoredAfterIt2");
+		cs.store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue()));
+
+		cs.clear();
+		cs.store(TestInternalCacheEntryFactory.create(obj2.getKey(), obj2.getValue()));
+
+		assert !cs.containsKey(obj1.getKey());
+		assert cs.containsKey(obj2.getKey());
+	}
+
+	public void testFalsePositiveRate() {
+		KeyBloomFilter filter = KeyBloomFilter.create(10000, 0.01, 1 << 20);
+		for (int i = 0; i < 10000; i++)
+			filter.add("key" + i);
+
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assert filter.mightContain("key" + i);
+			if (filter.mightContain("absent" + i))
+				falsePositives++;
+		}
+		assert falsePositives < 200 : falsePositives + " false positives";
+
+		// a filter capped by its memory budget still has no false negatives
+		KeyBloomFilter small = KeyBloomFilter.create(10000, 0.01, 64);
+		assert small.getBitCount() == 512;
+		for (int i = 0; i < 1000; i++)
+			small.add(i);
+		for (int i = 0; i < 1000; i++)
+			assert small.mightContain(i);
+	}
+
+	public void testSharedStoreIsRefused() throws Exception {
+		ConfigurationBuilder builder = TestCacheManagerFactory.getDefaultCacheConfiguration(false);
+		builder.loaders().shared(true);
+		EmbeddedCacheManager sharedCm = TestCacheManagerFactory.createCacheManager(builder);
+		try {
+			JpaCacheStore store = new JpaCacheStore();
+			store.init(createConfig(), sharedCm.getCache(), getMarshaller());
+			try {
+				store.start();
+				store.stop();
+				assert false : "A shared store with a key filter should not start";
+			} catch (JpaCacheLoaderException e) {
+				// expected
+			}
+		} finally {
+			TestingUtil.killCacheManagers(sharedCm);
+		}
+	}
+
+	private void persistBypassingStore(TestObject obj) {
+		EntityManager em = ((JpaCacheStore) cs).getEntityManagerFactory().createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.persist(obj.getValue());
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+	}
+}
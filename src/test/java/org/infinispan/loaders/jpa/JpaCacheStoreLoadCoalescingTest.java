@@ -0,0 +1,122 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.marshall.TestObjectStreamMarshaller;
+import org.infinispan.test.AbstractInfinispanTest;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestCacheManagerFactory;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Concurrent loads of the same key share the query of the first one, and every thread
+ * receives its own copy of the loaded entity.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreLoadCoalescingTest")
+public class JpaCacheStoreLoadCoalescingTest extends AbstractInfinispanTest {
+	private static final int THREADS = 8;
+	private static final int MAX_ROUNDS = 100;
+
+	private EmbeddedCacheManager cm;
+	private JpaCacheStore cs;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		cm = TestCacheManagerFactory.createCacheManager(false);
+		cm.start();
+		executor = Executors.newFixedThreadPool(THREADS);
+
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
+		config.setEntityClass(User.class);
+		config.setPurgeSynchronously(true);
+
+		cs = new JpaCacheStore();
+		cs.init(config, cm.getCache(), new TestObjectStreamMarshaller(false));
+		cs.start();
+	}
+
+	@AfterMethod(alwaysRun = true)
+	public void tearDown() throws Exception {
+		try {
+			executor.shutdownNow();
+			if (cs != null) {
+				cs.clear();
+				cs.stop();
+			}
+		} finally {
+			TestingUtil.killCacheManagers(cm);
+		}
+	}
+
+	public void testConcurrentLoadsAreCoalesced() throws Exception {
+		User user = new User();
+		user.setUsername("u_testConcurrentLoadsAreCoalesced");
+		user.setFirstName("fn_testConcurrentLoadsAreCoalesced");
+		user.setLastName("ln_testConcurrentLoadsAreCoalesced");
+		cs.store(TestInternalCacheEntryFactory.create(user.getUsername(), user));
+
+		Statistics statistics = ((HibernateEntityManagerFactory) cs.getEntityManagerFactory())
+				.getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			// whether loads overlap depends on scheduling, so retry until some do
+			for (int round = 0; round < MAX_ROUNDS && cs.getCoalescedLoadCount() == 0; round++) {
+				statistics.clear();
+				List<InternalCacheEntry> entries = loadConcurrently(user.getUsername());
+
+				// only the loads which were not coalesced queried the database
+				assert statistics.getEntityLoadCount() == THREADS - cs.getCoalescedLoadCount() :
+						statistics.getEntityLoadCount() + " queries for " + cs.getCoalescedLoadCount() + " coalesced loads";
+
+				Set<Object> values = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+				for (InternalCacheEntry entry : entries) {
+					assert entry.getValue().equals(user);
+					values.add(entry.getValue());
+				}
+				assert values.size() == THREADS : "Loads shared " + (THREADS - values.size()) + " entities";
+			}
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+
+		assert cs.getCoalescedLoadCount() > 0 : "No load was coalesced in " + MAX_ROUNDS + " rounds";
+	}
+
+	private List<InternalCacheEntry> loadConcurrently(final Object key) throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		List<Future<InternalCacheEntry>> loads = new ArrayList<Future<InternalCacheEntry>>();
+		for (int i = 0; i < THREADS; i++) {
+			loads.add(executor.submit(new Callable<InternalCacheEntry>() {
+				@Override
+				public InternalCacheEntry call() throws Exception {
+					barrier.await();
+					return cs.load(key);
+				}
+			}));
+		}
+
+		List<InternalCacheEntry> entries = new ArrayList<InternalCacheEntry>();
+		for (Future<InternalCacheEntry> load : loads)
+			entries.add(load.get());
+		return entries;
+	}
+}
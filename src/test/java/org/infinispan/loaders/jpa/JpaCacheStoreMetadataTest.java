@@ -0,0 +1,240 @@
+package org.infinispan.loaders.jpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.io.UnclosableObjectInputStream;
+import org.infinispan.io.UnclosableObjectOutputStream;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Store;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.infinispan.util.DefaultTimeService;
+import org.infinispan.util.TimeService;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreMetadataTest")
+public class JpaCacheStoreMetadataTest extends JpaCacheStoreUserEntityTest {
+
+	/**
+	 * The wall clock of the store, moved forward by the tests instead of sleeping until
+	 * entries expire.
+	 */
+	static class ControlledTimeService extends DefaultTimeService {
+		private volatile long offset;
+
+		@Override
+		public long wallClockTime() {
+			return super.wallClockTime() + offset;
+		}
+
+		@Override
+		public long time() {
+			return super.time() + TimeUnit.MILLISECONDS.toNanos(offset);
+		}
+
+		void advance(long millis) {
+			offset += millis;
+		}
+	}
+
+	private ControlledTimeService timeService;
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setStoreMetadata(true);
+		config.setBatchSize(2);
+	}
+
+	@Override
+	protected JpaCacheStore createCacheStore(JpaCacheStoreConfig config) throws Exception {
+		timeService = new ControlledTimeService();
+		TestingUtil.replaceComponent(cm, TimeService.class, timeService, true);
+
+		return super.createCacheStore(config);
+	}
+
+	public void testLoadAndStoreWithLifespan() throws Exception {
+		TestObject obj = createTestObject("testLoadAndStoreWithLifespan");
+		long lifespan = 120000;
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), lifespan));
+
+		InternalCacheEntry ice = cs.load(obj.getKey());
+		assertCorrectExpiry(ice, lifespan, -1);
+		ice = cs.loadAll().iterator().next();
+		assertCorrectExpiry(ice, lifespan, -1);
+
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), 60000));
+		timeService.advance(120000);
+		assert cs.load(obj.getKey()) == null;
+		assert !cs.containsKey(obj.getKey());
+		assert cs.loadAll().isEmpty();
+		assert cs.loadAllKeys(null).isEmpty();
+	}
+
+	public void testLoadAndStoreWithLifespanAndIdle() throws Exception {
+		TestObject obj = createTestObject("testLoadAndStoreWithLifespanAndIdle");
+		long lifespan = 200000;
+		long idle = 120000;
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), lifespan, idle));
+
+		assertCorrectExpiry(cs.load(obj.getKey()), lifespan, idle);
+		assertCorrectExpiry(cs.load(1).iterator().next(), lifespan, idle);
+
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), -1, idle));
+		assertCorrectExpiry(cs.load(obj.getKey()), -1, idle);
+
+		// storing the entry as immortal drops its metadata
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		assertCorrectExpiry(cs.load(obj.getKey()), -1, -1);
+	}
+
+	public void testPreloadSkipsExpired() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			TestObject obj = createTestObject("testPreloadSkipsExpired" + i);
+			long lifespan = i % 2 == 0 ? 60000 : -1;
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), lifespan));
+		}
+		timeService.advance(120000);
+
+		Set<InternalCacheEntry> set = cs.loadAll();
+		assert set.size() == 2 : "Expected 2 entries but got " + set.size();
+		for (InternalCacheEntry ice : set)
+			assert !ice.canExpire();
+
+		assert cs.load(1).size() == 1;
+	}
+
+	public void testPurgeExpired() throws Exception {
+		TestObject obj1 = createTestObject("testPurgeExpired1");
+		TestObject obj2 = createTestObject("testPurgeExpired2");
+		TestObject obj3 = createTestObject("testPurgeExpired3");
+		TestObject obj4 = createTestObject("testPurgeExpired4");
+		TestObject obj5 = createTestObject("testPurgeExpired5");
+
+		cs.store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue(), 60000));
+		cs.store(TestInternalCacheEntryFactory.create(obj2.getKey(), obj2.getValue(), -1, 60000));
+		cs.store(TestInternalCacheEntryFactory.create(obj3.getKey(), obj3.getValue(), 60000, 60000));
+		cs.store(TestInternalCacheEntryFactory.create(obj4.getKey(), obj4.getValue()));
+		cs.store(TestInternalCacheEntryFactory.create(obj5.getKey(), obj5.getValue(), 600000, 600000));
+		timeService.advance(120000);
+
+		cs.purgeExpired();
+
+		assert countRows("User") == 2 : "Expected 2 rows but got " + countRows("User");
+		assert !cs.containsKey(obj1.getKey());
+		assert !cs.containsKey(obj2.getKey());
+		assert !cs.containsKey(obj3.getKey());
+		assert cs.containsKey(obj4.getKey());
+		assert cs.containsKey(obj5.getKey());
+	}
+
+	public void testCommitRemovesEntriesExpiredByTheStoreClock() throws Exception {
+		TestObject obj = createTestObject("testCommitRemovesEntriesExpiredByTheStoreClock");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		timeService.advance(120000);
+
+		// only expired according to the clock of the store
+		List<Modification> mods = new ArrayList<Modification>();
+		mods.add(new Store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), 60000)));
+		cs.prepare(mods, gtf.newGlobalTransaction(null, false), true);
+
+		assert !cs.containsKey(obj.getKey());
+		assert countRows("User") == 0 : "Expected no row but got " + countRows("User");
+	}
+
+	public void testStreamingKeepsMetadata() throws Exception {
+		TestObject obj1 = createTestObject("testStreamingKeepsMetadata1");
+		TestObject obj2 = createTestObject("testStreamingKeepsMetadata2");
+		cs.store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue(), 120000));
+		cs.store(TestInternalCacheEntryFactory.create(obj2.getKey(), obj2.getValue()));
+
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutput oo = marshaller.startObjectOutput(out, false, 12);
+		try {
+			cs.toStream(new UnclosableObjectOutputStream(oo));
+		} finally {
+			marshaller.finishObjectOutput(oo);
+			out.close();
+		}
+
+		cs.clear();
+
+		ObjectInput oi = marshaller.startObjectInput(new ByteArrayInputStream(out.toByteArray()), false);
+		try {
+			cs.fromStream(new UnclosableObjectInputStream(oi));
+		} finally {
+			marshaller.finishObjectInput(oi);
+		}
+
+		assertCorrectExpiry(cs.load(obj1.getKey()), 120000, -1);
+		assertCorrectExpiry(cs.load(obj2.getKey()), -1, -1);
+	}
+
+	public void testStreamingToStoreWithoutMetadata() throws Exception {
+		TestObject obj = createTestObject("testStreamingToStoreWithoutMetadata");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue(), 120000));
+
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutput oo = marshaller.startObjectOutput(out, false, 12);
+		try {
+			cs.toStream(new UnclosableObjectOutputStream(oo));
+		} finally {
+			marshaller.finishObjectOutput(oo);
+			out.close();
+		}
+
+		// the persistence unit of the receiver does not list MetadataEntity
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa.configurationTest");
+		config.setEntityClass(User.class);
+		JpaCacheStore receiver = new JpaCacheStore();
+		receiver.init(config, cm.getCache(), marshaller);
+		receiver.start();
+		try {
+			ObjectInput oi = marshaller.startObjectInput(new ByteArrayInputStream(out.toByteArray()), false);
+			try {
+				receiver.fromStream(new UnclosableObjectInputStream(oi));
+			} finally {
+				marshaller.finishObjectInput(oi);
+			}
+
+			assertCorrectExpiry(receiver.load(obj.getKey()), -1, -1);
+			assert receiver.loadAllKeys(null).size() == 1;
+		} finally {
+			receiver.clear();
+			receiver.stop();
+		}
+	}
+
+	private void assertCorrectExpiry(InternalCacheEntry ice, long lifespan, long maxIdle) {
+		assert ice != null : "Cache entry is null";
+		assert ice.getLifespan() == lifespan : ice.getLifespan() + " was not " + lifespan;
+		assert ice.getMaxIdle() == maxIdle : ice.getMaxIdle() + " was not " + maxIdle;
+		if (lifespan > -1) assert ice.getCreated() > -1 : "Created is -1 when lifespan is set";
+		if (maxIdle > -1) assert ice.getLastUsed() > -1 : "LastUsed is -1 when maxIdle is set";
+		assert !ice.isExpired(timeService.wallClockTime());
+	}
+
+	private long countRows(String entityName) {
+		EntityManager em = ((JpaCacheStore) cs).getEntityManagerFactory().createEntityManager();
+		try {
+			return (Long) em.createQuery("SELECT COUNT(e) FROM " + entityName + " e").getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+
+import org.infinispan.loaders.CacheStore;
+import org.infinispan.loaders.jpa.entity.Coupon;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStorePurgeTest")
+public class JpaCacheStorePurgeTest extends BaseJpaCacheStoreTest {
+
+	@Override
+	protected CacheStore createCacheStore() throws Exception {
+		return createCacheStore(true);
+	}
+
+	private JpaCacheStore createCacheStore(boolean purgeSynchronously) throws Exception {
+		return createCacheStore(purgeSynchronously, 3);
+	}
+
+	private JpaCacheStore createCacheStore(boolean purgeSynchronously, int purgerThreads) throws Exception {
+		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
+
+		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
+		config.setEntityClass(Coupon.class);
+		config.setPurgeSynchronously(purgeSynchronously);
+		config.setPurgerThreads(purgerThreads);
+		config.setExpiryAttribute("validUntil");
+		config.setPurgeBatchSize(2);
+
+		JpaCacheStore store = new JpaCacheStore();
+		store.init(config, cm.getCache(), getMarshaller());
+		store.start();
+
+		return store;
+	}
+
+	@Override
+	protected TestObject createTestObject(String key) {
+		return createTestObject(key, System.currentTimeMillis() + 600000);
+	}
+
+	private TestObject createTestObject(String key, long validUntil) {
+		Coupon coupon = new Coupon();
+		coupon.setCode("c_" + key);
+		coupon.setDescription("d_" + key);
+		coupon.setValidUntil(new Date(validUntil));
+
+		return new TestObject(coupon.getCode(), coupon);
+	}
+
+	private void storeCoupons(CacheStore store, String prefix, int count) throws Exception {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			// every other coupon is expired
+			TestObject obj = createTestObject(prefix + i, i % 2 == 0 ? now - 1000 : now + 600000);
+			store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		}
+	}
+
+	private long countCoupons(JpaCacheStore store) {
+		EntityManager em = store.getEntityManagerFactory().createEntityManager();
+		try {
+			return (Long) em.createQuery("SELECT COUNT(c) FROM Coupon c").getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	private void awaitCoupons(JpaCacheStore store, long count) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 10000;
+		while (countCoupons(store) > count && System.currentTimeMillis() < timeout)
+			Thread.sleep(50);
+		assert countCoupons(store) == count;
+	}
+
+	public void testPurgeByExpiryAttribute() throws Exception {
+		storeCoupons(cs, "testPurgeByExpiryAttribute", 7);
+
+		cs.purgeExpired();
+
+		assert countCoupons((JpaCacheStore) cs) == 3;
+		for (int i = 0; i < 7; i++) {
+			Object key = createTestObject("testPurgeByExpiryAttribute" + i).getKey();
+			assert cs.containsKey(key) == (i % 2 == 1) : key;
+		}
+	}
+
+	public void testMultiThreadedPurge() throws Exception {
+		JpaCacheStore store = createCacheStore(false);
+		try {
+			storeCoupons(store, "testMultiThreadedPurge", 11);
+
+			store.purgeExpired();
+
+			awaitCoupons(store, 5);
+		} finally {
+			store.stop();
+		}
+	}
+
+	public void testOverlappingPurgesWithSinglePurgerThread() throws Exception {
+		JpaCacheStore store = createCacheStore(false, 1);
+		try {
+			storeCoupons(store, "testOverlappingPurges", 11);
+
+			store.purgeExpired();
+			store.purgeExpired();
+
+			awaitCoupons(store, 5);
+		} finally {
+			store.stop();
+		}
+	}
+
+	public void testEntitiesExpiringTogetherArePurged() throws Exception {
+		long expired = System.currentTimeMillis() - 1000;
+		for (int i = 0; i < 5; i++) {
+			TestObject obj = createTestObject("testEntitiesExpiringTogether" + i, expired);
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		}
+
+		cs.purgeExpired();
+
+		assert countCoupons((JpaCacheStore) cs) == 0;
+	}
+}
@@ -0,0 +1,123 @@
+package org.infinispan.loaders.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.infinispan.loaders.jpa.JpaCacheStoreMetadataTest.ControlledTimeService;
+import org.infinispan.test.TestingUtil;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.infinispan.util.TimeService;
+import org.testng.annotations.Test;
+
+/**
+ * The replica is a separate database, which never catches up with the primary one, so that
+ * the loads outside of the read-your-writes window do not find the written entries.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreReadReplicaTest")
+public class JpaCacheStoreReadReplicaTest extends JpaCacheStoreUserEntityTest {
+	private static final String READ_REPLICA = "org.infinispan.loaders.jpa.readReplica";
+	private static final long WINDOW = 60000;
+
+	/**
+	 * The clock of the store, moved past the read-your-writes window by the tests instead of
+	 * sleeping.
+	 */
+	private ControlledTimeService timeService;
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setReadPersistenceUnitName(READ_REPLICA);
+		config.setReadYourWritesWindow(WINDOW);
+	}
+
+	@Override
+	protected JpaCacheStore createCacheStore(JpaCacheStoreConfig config) throws Exception {
+		timeService = new ControlledTimeService();
+		TestingUtil.replaceComponent(cm, TimeService.class, timeService, true);
+
+		return super.createCacheStore(config);
+	}
+
+	public void testRecentWritesAreReadFromPrimary() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testRecentWritesAreReadFromPrimary");
+		store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		timeService.advance(WINDOW - 1000);
+		assert store.load(obj.getKey()).getValue().equals(obj.getValue());
+		assert store.loadAllKeys(null).contains(obj.getKey());
+		assert store.loadAll().size() == 1;
+		assert store.getReplicaReads() > 0;
+	}
+
+	public void testOldWritesAreReadFromReplica() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testOldWritesAreReadFromReplica");
+		store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		assert store.load(obj.getKey()) != null;
+
+		timeService.advance(WINDOW);
+		assert store.load(obj.getKey()) == null;
+		assert store.loadAllKeys(null).isEmpty();
+		assert store.getReplicaFailures() == 0;
+	}
+
+	public void testMissingReplicaFallsBackToPrimary() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setReadPersistenceUnitName("org.infinispan.loaders.jpa.missing");
+		JpaCacheStore store = createCacheStore(config);
+		try {
+			TestObject obj = createTestObject("testMissingReplicaFallsBackToPrimary");
+			store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+			timeService.advance(WINDOW);
+			assert store.load(obj.getKey()).getValue().equals(obj.getValue());
+			assert store.getReplicaReads() == 0;
+		} finally {
+			store.clear();
+			store.stop();
+		}
+	}
+
+	public void testFailingReplicaFallsBackToPrimary() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testFailingReplicaFallsBackToPrimary");
+		store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		timeService.advance(WINDOW);
+
+		EntityManagerFactoryRegistry registry = cm.getGlobalComponentRegistry().getComponent(EntityManagerFactoryRegistry.class);
+		EntityManagerFactory replica = registry.getEntityManagerFactory(READ_REPLICA);
+		try {
+			// the queries of the replica fail until the table is back
+			execute(replica, "ALTER TABLE User RENAME TO User_moved");
+			try {
+				assert store.load(obj.getKey()).getValue().equals(obj.getValue());
+				assert store.getReplicaFailures() == 1;
+
+				long replicaReads = store.getReplicaReads();
+				assert store.loadAllKeys(null).contains(obj.getKey());
+				assert store.getReplicaReads() == replicaReads;
+			} finally {
+				execute(replica, "ALTER TABLE User_moved RENAME TO User");
+			}
+
+			// the replica is tried again once the retry interval has elapsed
+			timeService.advance(30000);
+			assert store.load(obj.getKey()) == null;
+			assert store.getReplicaFailures() == 1;
+		} finally {
+			registry.closeEntityManagerFactory(READ_REPLICA);
+		}
+	}
+
+	private static void execute(EntityManagerFactory emf, String sql) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.createNativeQuery(sql).executeUpdate();
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+	}
+}
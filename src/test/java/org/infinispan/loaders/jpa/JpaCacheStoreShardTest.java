@@ -0,0 +1,161 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.infinispan.container.entries.ImmortalCacheEntry;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheStore;
+import org.infinispan.loaders.modifications.Modification;
+import org.infinispan.loaders.modifications.Remove;
+import org.infinispan.loaders.modifications.Store;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.infinispan.transaction.xa.GlobalTransaction;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreShardTest")
+public class JpaCacheStoreShardTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected CacheStore createCacheStore() throws Exception {
+		ShardedJpaCacheStore store = new ShardedJpaCacheStore();
+		store.init(createConfig(), cm.getCache(), getMarshaller());
+		store.start();
+
+		return store;
+	}
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setShardPersistenceUnitNames("org.infinispan.loaders.jpa, org.infinispan.loaders.jpa.configurationTest");
+	}
+
+	public void testEntriesAreSpreadOverShards() throws Exception {
+		ShardedJpaCacheStore store = (ShardedJpaCacheStore) cs;
+		assert store.getShards().size() == 2;
+
+		for (int i = 0; i < 20; i++) {
+			TestObject obj = createTestObject("testEntriesAreSpreadOverShards" + i);
+			store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		}
+
+		int total = 0;
+		for (JpaCacheStore shard : store.getShards()) {
+			int size = shard.loadAllKeys(null).size();
+			assert size > 0 : "No entry in a shard";
+			total += size;
+		}
+		assert total == 20;
+		assert store.loadAllKeys(null).size() == 20;
+	}
+
+	/**
+	 * The shards commit independently of each other, so a commit is only atomic within a shard.
+	 */
+	@Override
+	public void testCommitIsAtomic() throws CacheLoaderException {
+		List<TestObject> objs = createTestObjects("testCommitIsAtomic", 0, 2);
+		TestObject old = objs.get(0);
+		TestObject obj1 = objs.get(1);
+
+		cs.store(TestInternalCacheEntryFactory.create(old.getKey(), old.getValue()));
+
+		List<Modification> mods = new ArrayList<Modification>();
+		mods.add(new Store(TestInternalCacheEntryFactory.create(obj1.getKey(), obj1.getValue())));
+		mods.add(new Remove(old.getKey()));
+		// id of the entity does not match the key
+		mods.add(new Store(TestInternalCacheEntryFactory.create(obj1.getKey(), old.getValue())));
+		GlobalTransaction tx = gtf.newGlobalTransaction(null, false);
+		cs.prepare(mods, tx, false);
+
+		try {
+			cs.commit(tx);
+			assert false : "The commit of an entity with a mismatching key succeeded";
+		} catch (JpaCacheLoaderException e) {
+			// expected
+		}
+
+		assert !cs.containsKey(obj1.getKey());
+		assert cs.containsKey(old.getKey());
+	}
+
+	public void testSingleShardOperationsRunOnCallingThread() throws Exception {
+		Set<Thread> threads = new HashSet<Thread>();
+		List<Modification> mods = new ArrayList<Modification>();
+		for (TestObject obj : createTestObjects("testSingleShardOperationsRunOnCallingThread", 0, 5))
+			mods.add(new Store(recordingEntry(obj, threads)));
+		cs.prepare(mods, gtf.newGlobalTransaction(null, false), true);
+		cs.store(recordingEntry(createTestObjects("testSingleShardOperationsRunOnCallingThread", 0, 6).get(5), threads));
+
+		assert threads.equals(new HashSet<Thread>(Arrays.asList(Thread.currentThread()))) : threads;
+		assert cs.loadAllKeys(null).size() == 6;
+	}
+
+	public void testOperationsSpanningShardsRunInParallel() throws Exception {
+		Set<Thread> threads = new HashSet<Thread>();
+		List<Modification> mods = new ArrayList<Modification>();
+		for (TestObject obj : createTestObjects("testOperationsSpanningShardsRunInParallel", 0, 2))
+			mods.add(new Store(recordingEntry(obj, threads)));
+		for (TestObject obj : createTestObjects("testOperationsSpanningShardsRunInParallel", 1, 2))
+			mods.add(new Store(recordingEntry(obj, threads)));
+		cs.prepare(mods, gtf.newGlobalTransaction(null, false), true);
+
+		assert threads.size() == 2 : threads;
+		assert threads.contains(Thread.currentThread());
+		assert cs.loadAllKeys(null).size() == 4;
+	}
+
+	public void testShardFunctionRoutesKeys() throws Exception {
+		ShardFunction function = new HashShardFunction();
+		for (int i = 0; i < 100; i++) {
+			int shard = function.getShard("key" + i, 3);
+			assert shard >= 0 && shard < 3;
+			assert shard == function.getShard("key" + i, 3);
+		}
+	}
+
+	public void testKeysOfAShardSpreadOverAllStripes() throws Exception {
+		ShardFunction function = new HashShardFunction();
+		LockStripeStatistics stats = new LockStripeStatistics(64);
+		Set<Integer> stripes = new HashSet<Integer>();
+		for (int i = 0; i < 10000; i++) {
+			String key = "key" + i;
+			if (function.getShard(key, 4) == 0)
+				stripes.add(stats.stripeOf(LockStripeStatistics.mix(key.hashCode())));
+		}
+		assert stripes.size() == stats.getStripeCount() : "The keys of a shard only use " + stripes.size() + " stripes";
+	}
+
+	/**
+	 * @return <code>count</code> users whose keys are all routed to the given shard
+	 */
+	private List<TestObject> createTestObjects(String prefix, int shard, int count) {
+		ShardFunction function = new HashShardFunction();
+		List<TestObject> objs = new ArrayList<TestObject>(count);
+		for (int i = 0; objs.size() < count; i++) {
+			TestObject obj = createTestObject(prefix + i);
+			if (function.getShard(obj.getKey(), 2) == shard)
+				objs.add(obj);
+		}
+		return objs;
+	}
+
+	/**
+	 * @return an entry recording the threads reading its value, i.e. the threads storing it
+	 */
+	private static InternalCacheEntry recordingEntry(TestObject obj, final Set<Thread> threads) {
+		return new ImmortalCacheEntry(obj.getKey(), obj.getValue()) {
+			@Override
+			public Object getValue() {
+				synchronized (threads) {
+					threads.add(Thread.currentThread());
+				}
+				return super.getValue();
+			}
+		};
+	}
+}
@@ -0,0 +1,134 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.infinispan.jmx.JmxUtil;
+import org.infinispan.loaders.jpa.JpaCacheStoreStatistics.Operation;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.test.fwk.TestCacheManagerFactory;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreStatisticsTest")
+public class JpaCacheStoreStatisticsTest extends JpaCacheStoreUserEntityTest {
+	private static final String JMX_DOMAIN = JpaCacheStoreStatisticsTest.class.getSimpleName();
+	private static final long LOCK_HELD_MILLIS = 200;
+
+	/**
+	 * A store whose locks can be held by the test.
+	 */
+	private static class LockableStore extends JpaCacheStore {
+		LockingKey lock(Object key) throws Exception {
+			LockingKey lockingKey = getLockFromKey(key);
+			lockForWriting(lockingKey);
+			return lockingKey;
+		}
+
+		void release(LockingKey lockingKey) {
+			unlock(lockingKey);
+		}
+	}
+
+	@Override
+	protected EmbeddedCacheManager createCacheManager() {
+		return TestCacheManagerFactory.createCacheManagerEnforceJmxDomain(JMX_DOMAIN);
+	}
+
+	public void testOperationsAreRecorded() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		JpaCacheStoreStatistics statistics = store.getStatistics();
+		statistics.reset();
+
+		TestObject first = createTestObject("testOperationsAreRecorded1");
+		TestObject second = createTestObject("testOperationsAreRecorded2");
+		cs.store(TestInternalCacheEntryFactory.create(first.getKey(), first.getValue()));
+		cs.store(TestInternalCacheEntryFactory.create(second.getKey(), second.getValue()));
+		cs.load(first.getKey());
+		cs.load("u_testOperationsAreRecorded3");
+		store.loadAll(Arrays.asList(first.getKey(), second.getKey()));
+		cs.remove(second.getKey());
+
+		assert statistics.getLatencies(Operation.STORE).getCount() == 2;
+		assert statistics.getLatencies(Operation.LOAD).getCount() == 2;
+		assert statistics.getHits() == 1;
+		assert statistics.getMisses() == 1;
+		assert statistics.getLatencies(Operation.LOAD_BATCH).getCount() == 1;
+		assert statistics.getRows(Operation.LOAD_BATCH).getMax() == 2;
+		assert statistics.getLatencies(Operation.REMOVE).getCount() == 1;
+		assert statistics.getLatencies(Operation.STORE).getPercentile(0.99) > 0;
+		assert statistics.getRows(Operation.STORE) == null;
+	}
+
+	public void testMBean() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testMBean");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		cs.load(obj.getKey());
+		cs.loadAll();
+
+		MBeanServer server = JmxUtil.lookupMBeanServer(cm.getCacheManagerConfiguration());
+		ObjectName name = new ObjectName(JMX_DOMAIN + ":type=JpaCacheStore,name="
+				+ ObjectName.quote(cm.getCache().getName()) + ",entity=" + ObjectName.quote("User"));
+		assert server.isRegistered(name);
+
+		assert (Long) server.getAttribute(name, "StoreCount") >= 1;
+		assert (Long) server.getAttribute(name, "LoadLatencyP99") >= 0;
+		assert (Long) server.getAttribute(name, "LoadAllRowsP50") >= 1;
+		assert (Long) server.getAttribute(name, "Hits") >= 1;
+		assert (Long) server.getAttribute(name, "EntityManagersCreated") == store.getEntityManagersCreated();
+		assert (Long) server.getAttribute(name, "LockAcquisitions") > 0;
+
+		server.invoke(name, "resetStatistics", new Object[0], new String[0]);
+		assert (Long) server.getAttribute(name, "StoreCount") == 0;
+
+		cs.stop();
+		assert !server.isRegistered(name);
+		cs = createCacheStore();
+	}
+
+	public void testLatencyIncludesLockWait() throws Exception {
+		final LockableStore store = new LockableStore();
+		store.init(createConfig(), cm.getCache(), getMarshaller());
+		store.start();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final TestObject obj = createTestObject("testLatencyIncludesLockWait");
+			final CountDownLatch locked = new CountDownLatch(1);
+			// the lock is released by the thread which holds it
+			Future<Void> holder = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					LockingKey lockingKey = store.lock(obj.getKey());
+					try {
+						locked.countDown();
+						Thread.sleep(LOCK_HELD_MILLIS);
+					} finally {
+						store.release(lockingKey);
+					}
+					return null;
+				}
+			});
+			assert locked.await(10, TimeUnit.SECONDS);
+
+			store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			holder.get();
+
+			// percentiles are within 25%
+			long latency = store.getStatistics().getLatencies(Operation.STORE).getPercentile(0.5);
+			assert latency >= TimeUnit.MILLISECONDS.toNanos(LOCK_HELD_MILLIS) * 3 / 4 : latency + " ns";
+		} finally {
+			executor.shutdownNow();
+			store.clear();
+			store.stop();
+		}
+	}
+}
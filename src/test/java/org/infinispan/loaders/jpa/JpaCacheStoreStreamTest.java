@@ -0,0 +1,116 @@
+package org.infinispan.loaders.jpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.infinispan.commons.marshall.StreamingMarshaller;
+import org.infinispan.io.UnclosableObjectInputStream;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheStore;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Streams entities in with a batch size of 2, committing every batch and inserting the
+ * entities with <code>persist</code>.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreStreamTest")
+public class JpaCacheStoreStreamTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setBatchSize(2);
+		config.setStreamCommitInterval(1);
+		config.setPersistStreamedEntities(true);
+	}
+
+	public void testStreamIsApplied() throws Exception {
+		fromStream(cs, stream("testStreamIsApplied", 5, true));
+
+		assert cs.loadAll().size() == 5;
+		for (int i = 0; i < 5; i++) {
+			TestObject obj = createTestObject("testStreamIsApplied" + i);
+			assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+		}
+	}
+
+	public void testFailedStreamKeepsCommittedBatches() throws Exception {
+		try {
+			fromStream(cs, stream("testFailedStreamKeepsCommittedBatches", 5, false));
+			assert false : "Applied a truncated stream";
+		} catch (CacheLoaderException e) {
+			// expected
+		}
+
+		// the fifth entity was in the batch being written when the stream failed
+		assert cs.loadAll().size() == 4;
+		assert cs.load(createTestObject("testFailedStreamKeepsCommittedBatches3").getKey()) != null;
+		assert cs.load(createTestObject("testFailedStreamKeepsCommittedBatches4").getKey()) == null;
+	}
+
+	public void testFailedStreamIsRolledBackWithoutCommitInterval() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setStreamCommitInterval(0);
+		CacheStore store = createCacheStore(config);
+		try {
+			try {
+				fromStream(store, stream("testFailedStreamIsRolledBackWithoutCommitInterval", 5, false));
+				assert false : "Applied a truncated stream";
+			} catch (CacheLoaderException e) {
+				// expected
+			}
+			assert store.loadAll().isEmpty();
+		} finally {
+			store.stop();
+		}
+	}
+
+	public void testStreamedEntitiesAreInserted() throws Exception {
+		TestObject obj = createTestObject("testStreamedEntitiesAreInserted0");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		// persist fails on an entity which is already stored, where merge would update it
+		try {
+			fromStream(cs, stream("testStreamedEntitiesAreInserted", 1, true));
+			assert false : "Persisted an entity which is already stored";
+		} catch (CacheLoaderException e) {
+			// expected
+		}
+		assert cs.load(obj.getKey()) != null;
+	}
+
+	/**
+	 * @return a stream of <code>count</code> users, ended as {@link JpaCacheStore#toStream}
+	 *         ends it if <code>complete</code>, otherwise truncated
+	 */
+	private byte[] stream(String prefix, int count, boolean complete) throws IOException {
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutput oo = marshaller.startObjectOutput(out, false, 12);
+		try {
+			for (int i = 0; i < count; i++)
+				marshaller.objectToObjectStream(createTestObject(prefix + i).getValue(), oo);
+			if (complete)
+				marshaller.objectToObjectStream((byte) 100, oo);
+		} finally {
+			marshaller.finishObjectOutput(oo);
+			out.close();
+		}
+		return out.toByteArray();
+	}
+
+	private void fromStream(CacheStore store, byte[] stream) throws Exception {
+		StreamingMarshaller marshaller = getMarshaller();
+		ByteArrayInputStream in = new ByteArrayInputStream(stream);
+		ObjectInput oi = marshaller.startObjectInput(in, false);
+		try {
+			store.fromStream(new UnclosableObjectInputStream(oi));
+		} finally {
+			marshaller.finishObjectInput(oi);
+			in.close();
+		}
+	}
+}
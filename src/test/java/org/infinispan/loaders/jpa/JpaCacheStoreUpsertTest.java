@@ -0,0 +1,31 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.jpa.entity.Vehicle;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreUpsertTest")
+public class JpaCacheStoreUpsertTest extends JpaCacheStoreVehicleEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setNativeUpsert(true);
+	}
+
+	public void testUpsertStatementIsUsed() {
+		UpsertStatement upsert = ((JpaCacheStore) cs).getUpsertStatement();
+		assert upsert != null;
+		assert upsert.toString().startsWith("MERGE INTO Vehicle (") : upsert;
+	}
+
+	public void testUpdate() throws Exception {
+		TestObject obj = createTestObject("testUpdate");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		Vehicle v = (Vehicle) obj.getValue();
+		v.setColor("updated");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), v));
+
+		assert "updated".equals(((Vehicle) cs.load(obj.getKey()).getValue()).getColor());
+	}
+}
@@ -17,19 +17,43 @@ public class JpaCacheStoreUserEntityTest extends BaseJpaCacheStoreTest {
 
 	@Override
 	protected CacheStore createCacheStore() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		JpaCacheStore store = createCacheStore(config);
+
+		if (!config.isAsyncStart()) {
+			assert store.getEntityManagerFactory() != null;
+			assert store.getEntityManagerFactory() instanceof HibernateEntityManagerFactory;
+		}
+
+		return store;
+	}
+
+	/**
+	 * @return the configuration of a store of users, adjusted by
+	 *         {@link #configure(JpaCacheStoreConfig)}
+	 */
+	protected JpaCacheStoreConfig createConfig() {
 		JpaCacheStoreConfig config = new JpaCacheStoreConfig();
 
 		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
 		config.setEntityClass(User.class);
 		config.setPurgeSynchronously(true);
+		configure(config);
 
+		return config;
+	}
+
+	/**
+	 * Enables the features of the store tested by a subclass.
+	 */
+	protected void configure(JpaCacheStoreConfig config) {
+	}
+
+	protected JpaCacheStore createCacheStore(JpaCacheStoreConfig config) throws Exception {
 		JpaCacheStore store = new JpaCacheStore();
 		store.init(config, cm.getCache(), getMarshaller());
 		store.start();
 
-		assert store.getEntityManagerFactory() != null;
-		assert store.getEntityManagerFactory() instanceof HibernateEntityManagerFactory;
-
 		return store;
 	}
 
@@ -0,0 +1,45 @@
+package org.infinispan.loaders.jpa;
+
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreUserUpsertTest")
+public class JpaCacheStoreUserUpsertTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setNativeUpsert(true);
+	}
+
+	public void testUpsertStatementIsUsed() {
+		UpsertStatement upsert = ((JpaCacheStore) cs).getUpsertStatement();
+		assert upsert != null;
+		assert upsert.toString().startsWith("MERGE INTO User (username, ") : upsert;
+	}
+
+	public void testUpdate() throws Exception {
+		TestObject obj = createTestObject("testUpdate");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		User user = (User) obj.getValue();
+		user.setNote("updated");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), user));
+
+		assert "updated".equals(((User) cs.load(obj.getKey()).getValue()).getNote());
+	}
+
+	public void testNullAttribute() throws Exception {
+		TestObject obj = createTestObject("testNullAttribute");
+		User user = (User) obj.getValue();
+		user.setNote(null);
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), user));
+		assert ((User) cs.load(obj.getKey()).getValue()).getNote() == null;
+
+		user.setNote("updated");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), user));
+		user.setNote(null);
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), user));
+		assert ((User) cs.load(obj.getKey()).getValue()).getNote() == null;
+	}
+}
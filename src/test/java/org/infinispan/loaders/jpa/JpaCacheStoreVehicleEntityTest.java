@@ -25,6 +25,7 @@ public class JpaCacheStoreVehicleEntityTest extends BaseJpaCacheStoreTest {
 		config.setPersistenceUnitName("org.infinispan.loaders.jpa");
 		config.setEntityClass(Vehicle.class);
 		config.setPurgeSynchronously(true);
+		configure(config);
 		
 		JpaCacheStore store = new JpaCacheStore();
 		store.init(config, cm.getCache(), getMarshaller());
@@ -36,6 +37,12 @@ public class JpaCacheStoreVehicleEntityTest extends BaseJpaCacheStoreTest {
 		return store;
 	}
 
+	/**
+	 * Enables the features of the store tested by a subclass.
+	 */
+	protected void configure(JpaCacheStoreConfig config) {
+	}
+
 	@Override
 	protected TestObject createTestObject(String key) {
 		VehicleId id = new VehicleId("CA" + key, key);
@@ -0,0 +1,188 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.Collections;
+
+import javax.persistence.EntityManager;
+
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.jpa.entity.User;
+import org.infinispan.test.fwk.TestInternalCacheEntryFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the store tests with write-behind, with an interval long enough for the flusher not
+ * to run during a test unless a test triggers it.
+ */
+@Test (groups = "functional", testName = "loaders.jpa.JpaCacheStoreWriteBehindTest")
+public class JpaCacheStoreWriteBehindTest extends JpaCacheStoreUserEntityTest {
+
+	@Override
+	protected void configure(JpaCacheStoreConfig config) {
+		config.setWriteBehindInterval(600000);
+		config.setWriteBehindThreshold(1000);
+	}
+
+	private long countUsers() {
+		EntityManager em = ((JpaCacheStore) cs).getEntityManagerFactory().createEntityManager();
+		try {
+			return (Long) em.createQuery("SELECT COUNT(u) FROM User u").getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	private boolean isWritten(Object key) {
+		EntityManager em = ((JpaCacheStore) cs).getEntityManagerFactory().createEntityManager();
+		try {
+			return em.find(User.class, key) != null;
+		} finally {
+			em.close();
+		}
+	}
+
+	public void testWritesAreCoalesced() throws Exception {
+		JpaCacheStore store = (JpaCacheStore) cs;
+		TestObject obj = createTestObject("testWritesAreCoalesced");
+		for (int i = 0; i < 10; i++) {
+			User user = (User) createTestObject("testWritesAreCoalesced").getValue();
+			user.setNote("note " + i);
+			cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), user));
+		}
+
+		assert countUsers() == 0;
+		assert ((User) cs.load(obj.getKey()).getValue()).getNote().equals("note 9");
+		assert store.getWriteBehindQueue().getCoalescedCount() == 9;
+
+		store.flushWriteBehind();
+		assert countUsers() == 1;
+		assert store.getWriteBehindQueue().getPendingCount() == 0;
+		assert store.getWriteBehindQueue().getFlushedCount() == 1;
+		assert ((User) cs.load(obj.getKey()).getValue()).getNote().equals("note 9");
+	}
+
+	public void testQueuedEntryIsLoadedAsACopy() throws Exception {
+		TestObject obj = createTestObject("testQueuedEntryIsLoadedAsACopy");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+
+		User loaded = (User) cs.load(obj.getKey()).getValue();
+		assert loaded != obj.getValue();
+		loaded.setNote("changed after loading");
+		User bulkLoaded = (User) ((JpaCacheStore) cs).loadAll(Collections.singleton(obj.getKey())).get(obj.getKey()).getValue();
+		assert bulkLoaded != obj.getValue();
+		bulkLoaded.setNote("changed after loading");
+
+		((JpaCacheStore) cs).flushWriteBehind();
+		assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+	}
+
+	public void testQueuedRemove() throws Exception {
+		TestObject obj = createTestObject("testQueuedRemove");
+		cs.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		((JpaCacheStore) cs).flushWriteBehind();
+
+		assert cs.remove(obj.getKey());
+		assert !cs.remove(obj.getKey());
+		assert !cs.containsKey(obj.getKey());
+		assert countUsers() == 1;
+
+		((JpaCacheStore) cs).flushWriteBehind();
+		assert countUsers() == 0;
+	}
+
+	public void testRemoveOfUnqueuedKeys() throws Exception {
+		TestObject stored = createTestObject("testRemoveOfUnqueuedKeys1");
+		TestObject missing = createTestObject("testRemoveOfUnqueuedKeys2");
+		cs.store(TestInternalCacheEntryFactory.create(stored.getKey(), stored.getValue()));
+		((JpaCacheStore) cs).flushWriteBehind();
+
+		assert cs.remove(stored.getKey());
+		assert !cs.remove(missing.getKey());
+		((JpaCacheStore) cs).flushWriteBehind();
+		assert countUsers() == 0;
+	}
+
+	public void testThresholdTriggersFlush() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setWriteBehindThreshold(3);
+		JpaCacheStore store = createCacheStore(config);
+		try {
+			for (int i = 0; i < 3; i++) {
+				TestObject obj = createTestObject("testThresholdTriggersFlush" + i);
+				store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			}
+
+			long timeout = System.currentTimeMillis() + 10000;
+			while (countUsers() < 3 && System.currentTimeMillis() < timeout)
+				Thread.sleep(50);
+			assert countUsers() == 3;
+		} finally {
+			store.stop();
+		}
+	}
+
+	public void testStopDrainsQueue() throws Exception {
+		JpaCacheStore store = createCacheStore(createConfig());
+		TestObject obj = createTestObject("testStopDrainsQueue");
+		store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+		assert countUsers() == 0;
+
+		store.stop();
+		assert countUsers() == 1;
+		assert cs.load(obj.getKey()).getValue().equals(obj.getValue());
+	}
+
+	public void testFullQueueWritesImmediately() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setWriteBehindMaxQueueSize(2);
+		JpaCacheStore store = createCacheStore(config);
+		try {
+			for (int i = 0; i < 2; i++) {
+				TestObject obj = createTestObject("testFullQueueWritesImmediately" + i);
+				store.store(TestInternalCacheEntryFactory.create(obj.getKey(), obj.getValue()));
+			}
+			assert countUsers() == 0;
+
+			TestObject overflow = createTestObject("testFullQueueWritesImmediately");
+			store.store(TestInternalCacheEntryFactory.create(overflow.getKey(), overflow.getValue()));
+			assert isWritten(overflow.getKey());
+			assert store.getWriteBehindQueue().getOverflowCount() == 1;
+
+			store.flushWriteBehind();
+			assert countUsers() == 3;
+		} finally {
+			store.stop();
+		}
+	}
+
+	public void testFailingModificationIsDropped() throws Exception {
+		JpaCacheStoreConfig config = createConfig();
+		config.setWriteBehindMaxAttempts(2);
+		JpaCacheStore store = createCacheStore(config);
+		try {
+			TestObject valid = createTestObject("testFailingModificationIsDropped");
+			store.store(TestInternalCacheEntryFactory.create(valid.getKey(), valid.getValue()));
+			// rejected by the database, since the first name is not nullable
+			TestObject invalid = createTestObject("testFailingModificationIsDroppedInvalid");
+			((User) invalid.getValue()).setFirstName(null);
+			store.store(TestInternalCacheEntryFactory.create(invalid.getKey(), invalid.getValue()));
+
+			try {
+				store.flushWriteBehind();
+				assert false : "The invalid user must fail to be written";
+			} catch (CacheLoaderException e) {
+				// expected
+			}
+			// the failing modification does not hold back the others
+			assert isWritten(valid.getKey());
+			assert !isWritten(invalid.getKey());
+			assert store.getWriteBehindQueue().getPendingCount() == 1;
+
+			store.flushWriteBehind();
+			assert store.getWriteBehindQueue().getPendingCount() == 0;
+			assert store.getWriteBehindQueue().getDroppedCount() == 1;
+			assert countUsers() == 1;
+		} finally {
+			store.stop();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.infinispan.loaders.jpa;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+@Test (groups = "unit", testName = "loaders.jpa.LockStripeStatisticsTest")
+public class LockStripeStatisticsTest {
+
+	public void testSequentialKeysSpreadOverStripes() {
+		LockStripeStatistics stats = new LockStripeStatistics(2048);
+		assert stats.getStripeCount() == 2048;
+
+		Set<Integer> intStripes = new HashSet<Integer>();
+		Set<Integer> stringStripes = new HashSet<Integer>();
+		for (int i = 0; i < 1024; i++) {
+			intStripes.add(stats.stripeOf(LockStripeStatistics.mix(Integer.valueOf(i).hashCode())));
+			stringStripes.add(stats.stripeOf(LockStripeStatistics.mix(("key" + i).hashCode())));
+		}
+
+		// a uniform spread of 1024 keys over 2048 stripes covers about 800 of them
+		assert intStripes.size() > 700 : "Integer keys only use " + intStripes.size() + " stripes";
+		assert stringStripes.size() > 700 : "String keys only use " + stringStripes.size() + " stripes";
+	}
+
+	public void testRecord() {
+		LockStripeStatistics stats = new LockStripeStatistics(16);
+		int lockingKey = LockStripeStatistics.mix(42);
+		int stripe = stats.stripeOf(lockingKey);
+
+		stats.record(lockingKey, TimeUnit.MILLISECONDS.toNanos(3));
+		stats.record(lockingKey, TimeUnit.MILLISECONDS.toNanos(1));
+
+		assert stats.getAcquisitions(stripe) == 2;
+		assert stats.getWaitTime(stripe, TimeUnit.MILLISECONDS) == 4;
+		assert stats.getMaxWaitTime(stripe, TimeUnit.MILLISECONDS) == 3;
+		assert stats.getMostContendedStripe() == stripe;
+		assert stats.getTotalAcquisitions() == 2;
+
+		stats.reset();
+		assert stats.getTotalAcquisitions() == 0;
+	}
+
+	public void testRecordAcquisition() {
+		LockStripeStatistics stats = new LockStripeStatistics(16);
+		int lockingKey = LockStripeStatistics.mix(42);
+		int stripe = stats.stripeOf(lockingKey);
+
+		stats.recordAcquisition(lockingKey);
+
+		assert stats.getAcquisitions(stripe) == 1;
+		assert stats.getTotalWaitTime(TimeUnit.NANOSECONDS) == 0;
+	}
+
+	public void testSingleStripe() {
+		LockStripeStatistics stats = new LockStripeStatistics(1);
+		assert stats.getStripeCount() == 1;
+		assert stats.stripeOf(LockStripeStatistics.mix(42)) == 0;
+		assert stats.stripeOf(-1) == 0;
+	}
+}
@@ -0,0 +1,42 @@
+package org.infinispan.loaders.jpa;
+
+import org.testng.annotations.Test;
+
+@Test (groups = "unit", testName = "loaders.jpa.LogHistogramTest")
+public class LogHistogramTest {
+
+	public void testBucketBounds() {
+		for (long value = 0; value < 100000; value++) {
+			int bucket = LogHistogram.bucketOf(value);
+			assert value <= LogHistogram.upperBoundOf(bucket) : value;
+			assert bucket == 0 || value > LogHistogram.upperBoundOf(bucket - 1) : value;
+			// buckets are at most 25% wider than their lower bound
+			assert LogHistogram.upperBoundOf(bucket) - value <= value / 4 : value;
+		}
+		assert LogHistogram.upperBoundOf(LogHistogram.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE;
+	}
+
+	public void testPercentiles() {
+		LogHistogram histogram = new LogHistogram();
+		assert histogram.getPercentile(0.99) == 0;
+
+		for (long value = 1; value <= 1000; value++)
+			histogram.record(value);
+
+		assert histogram.getCount() == 1000;
+		assert histogram.getSum() == 500500;
+		assert histogram.getMax() == 1000;
+		assertWithin(histogram.getPercentile(0.5), 500);
+		assertWithin(histogram.getPercentile(0.99), 990);
+		assert histogram.getPercentile(0.999) == 1000;
+		assert histogram.getPercentile(1) == 1000;
+
+		histogram.reset();
+		assert histogram.getCount() == 0;
+		assert histogram.getPercentile(0.5) == 0;
+	}
+
+	private static void assertWithin(long actual, long expected) {
+		assert actual >= expected && actual <= expected * 5 / 4 : actual + " is not within 25% of " + expected;
+	}
+}
@@ -3,12 +3,14 @@ package org.infinispan.loaders.jpa.config;
 import java.io.IOException;
 
 import org.infinispan.Cache;
+import org.infinispan.commons.CacheConfigurationException;
 import org.infinispan.configuration.cache.CacheLoaderConfiguration;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.loaders.jpa.JpaCacheStore;
+import org.infinispan.loaders.jpa.ShardedJpaCacheStore;
 import org.infinispan.loaders.jpa.configuration.JpaCacheStoreConfiguration;
 import org.infinispan.loaders.jpa.configuration.JpaCacheStoreConfigurationBuilder;
 import org.infinispan.loaders.jpa.entity.Document;
@@ -59,6 +61,26 @@ public class ConfigurationTest {
 		cacheManager.stop();
 	}
 
+	@Test(expectedExceptions = CacheConfigurationException.class)
+	public void testWriteBehindThresholdMustBePositive() {
+		new ConfigurationBuilder().loaders()
+				.addLoader(JpaCacheStoreConfigurationBuilder.class)
+				.persistenceUnitName("org.infinispan.loaders.jpa.configurationTest")
+				.entityClass(User.class)
+				.writeBehindInterval(1000)
+				.writeBehindThreshold(0).build();
+	}
+
+	public void testShardedConfigCreatesShardedStore() {
+		Configuration cacheConfig = new ConfigurationBuilder().loaders()
+				.addLoader(JpaCacheStoreConfigurationBuilder.class)
+				.shardPersistenceUnitNames("org.infinispan.loaders.jpa, org.infinispan.loaders.jpa.configurationTest")
+				.entityClass(User.class).build();
+
+		JpaCacheStoreConfiguration jpaCacheLoaderConfig = (JpaCacheStoreConfiguration) cacheConfig.loaders().cacheLoaders().get(0);
+		assert jpaCacheLoaderConfig.adapt().getCacheLoaderClassName().equals(ShardedJpaCacheStore.class.getName());
+	}
+
 	public void testLegacyJavaConfig() {
 		GlobalConfiguration globalConfig = new GlobalConfigurationBuilder()
 				.globalJmxStatistics().transport().defaultTransport().build();
@@ -147,5 +169,27 @@ public class ConfigurationTest {
 		vehicleCache.stop();
 		cacheManager.stop();
 	}
+
+	public void testXmlConfig60() throws IOException {
+		EmbeddedCacheManager cacheManager = new DefaultCacheManager(
+				"config/jpa-config-60.xml");
+
+		Cache<VehicleId, Vehicle> vehicleCache = cacheManager
+				.getCache("vehicleCache");
+		validateConfig(vehicleCache);
+
+		JpaCacheStoreConfiguration jpaConfig = (JpaCacheStoreConfiguration) vehicleCache
+				.getCacheConfiguration().loaders().cacheLoaders().get(0);
+		assert jpaConfig.streamCommitInterval() == 10;
+		assert jpaConfig.persistStreamedEntities();
+
+		Vehicle v = new Vehicle();
+		v.setId(new VehicleId("NY", "123456"));
+		v.setColor("GREEN");
+		vehicleCache.put(v.getId(), v);
+
+		vehicleCache.stop();
+		cacheManager.stop();
+	}
 	
 }
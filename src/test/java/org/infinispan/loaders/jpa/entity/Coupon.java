@@ -0,0 +1,90 @@
+package org.infinispan.loaders.jpa.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * 
+ */
+@Entity
+public class Coupon implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 6022853961307126374L;
+
+	@Id
+	private String code;
+	
+	private String description;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date validUntil;
+
+	public String getCode() {
+		return code;
+	}
+
+	public void setCode(String code) {
+		this.code = code;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public Date getValidUntil() {
+		return validUntil;
+	}
+
+	public void setValidUntil(Date validUntil) {
+		this.validUntil = validUntil;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((code == null) ? 0 : code.hashCode());
+		result = prime * result + ((description == null) ? 0 : description.hashCode());
+		result = prime * result + ((validUntil == null) ? 0 : (int) validUntil.getTime());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		Coupon other = (Coupon) obj;
+		if (code == null) {
+			if (other.code != null)
+				return false;
+		} else if (!code.equals(other.code))
+			return false;
+		if (description == null) {
+			if (other.description != null)
+				return false;
+		} else if (!description.equals(other.description))
+			return false;
+		// compare instants, as the loaded value is a java.sql.Timestamp
+		if (validUntil == null) {
+			if (other.validUntil != null)
+				return false;
+		} else if (other.validUntil == null || validUntil.getTime() != other.validUntil.getTime())
+			return false;
+		return true;
+	}
+}
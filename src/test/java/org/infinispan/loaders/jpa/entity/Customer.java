@@ -0,0 +1,67 @@
+package org.infinispan.loaders.jpa.entity;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A customer with a lazily fetched collection of phone numbers.
+ */
+@Entity
+public class Customer implements Serializable {
+	private static final long serialVersionUID = -4263128519846736810L;
+
+	@Id
+	private String id;
+
+	private String name;
+
+	// lazy by default
+	@ElementCollection
+	private Set<String> phoneNumbers = new HashSet<String>();
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Set<String> getPhoneNumbers() {
+		return phoneNumbers;
+	}
+
+	public void setPhoneNumbers(Set<String> phoneNumbers) {
+		this.phoneNumbers = phoneNumbers;
+	}
+
+	@Override
+	public int hashCode() {
+		return id == null ? 0 : id.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Customer))
+			return false;
+		Customer other = (Customer) obj;
+		return (id == null ? other.id == null : id.equals(other.id))
+				&& (name == null ? other.name == null : name.equals(other.name))
+				&& new HashSet<String>(phoneNumbers).equals(new HashSet<String>(other.phoneNumbers));
+	}
+}